@@ -0,0 +1,52 @@
+package au.com.codeka.warworlds.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import au.com.codeka.common.model.DesignKind;
+import au.com.codeka.warworlds.server.model.DesignManager;
+
+/**
+ * A \c DesignManager that reads the design files straight out of the server's data directory,
+ * so the benchmarks don't need a full server config file.
+ */
+public class BenchmarkDesignManager extends DesignManager {
+    public static final String DATA_DIRECTORY_PROPERTY =
+            "au.com.codeka.warworlds.benchmarks.DataDirectory";
+
+    private final File mDataDirectory;
+
+    private BenchmarkDesignManager(File dataDirectory) {
+        mDataDirectory = dataDirectory;
+    }
+
+    /** Sets up \c DesignManager.i, if it hasn't already been set up. */
+    public static synchronized void setup() {
+        if (DesignManager.i != null) {
+            return;
+        }
+
+        File dataDirectory = new File(System.getProperty(DATA_DIRECTORY_PROPERTY, "../server/data"));
+        if (!new File(dataDirectory, "designs").isDirectory()) {
+            throw new IllegalStateException("Could not find designs under " + dataDirectory.getAbsolutePath()
+                    + ", set -D" + DATA_DIRECTORY_PROPERTY + " to the server's data directory.");
+        }
+
+        BenchmarkDesignManager designManager = new BenchmarkDesignManager(dataDirectory);
+        DesignManager.i = designManager;
+        designManager.parseDesigns();
+    }
+
+    @Override
+    protected InputStream open(DesignKind designKind) throws IOException {
+        File file;
+        if (designKind == DesignKind.SHIP) {
+            file = new File(mDataDirectory, "designs/ships.xml");
+        } else {
+            file = new File(mDataDirectory, "designs/buildings.xml");
+        }
+        return new FileInputStream(file);
+    }
+}
@@ -0,0 +1,127 @@
+package au.com.codeka.warworlds.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.codeka.common.model.Simulation;
+import au.com.codeka.common.protobuf.Messages;
+import au.com.codeka.warworlds.server.model.Star;
+
+/**
+ * Measures how many stars per second \c Simulation.simulate() can get through, on synthetic stars
+ * generated by \c SyntheticStarGenerator.
+ *
+ * Pass <code>-p phaseTimings=true</code> to have the time split between growth, builds, combat
+ * and the prediction pass printed at the end of each trial. That adds a few \c System.nanoTime()
+ * calls to every step, so leave it off when comparing throughput numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SimulationBenchmark {
+    @Param({"3", "8"})
+    public int numColonies;
+
+    @Param({"2", "20"})
+    public int numFleets;
+
+    @Param({"0", "10"})
+    public int buildQueueLength;
+
+    @Param({"2"})
+    public int numEmpires;
+
+    @Param({"1", "24"})
+    public int hoursSinceLastSimulation;
+
+    @Param({"false", "true"})
+    public boolean combat;
+
+    @Param({"false"})
+    public boolean phaseTimings;
+
+    private DateTime mNow;
+    private Messages.Star mStarPb;
+    private Star mStar;
+    private Simulation.PhaseTimings mPhaseTimings;
+    private long mNumSimulations;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        BenchmarkDesignManager.setup();
+
+        mNow = DateTime.now(DateTimeZone.UTC);
+        mStarPb = new SyntheticStarGenerator(42)
+                .setNumColonies(numColonies)
+                .setNumFleets(numFleets)
+                .setBuildQueueLength(buildQueueLength)
+                .setNumEmpires(numEmpires)
+                .setHoursSinceLastSimulation(hoursSinceLastSimulation)
+                .setCombat(combat)
+                .generate(mNow.getMillis());
+        mPhaseTimings = phaseTimings ? new Simulation.PhaseTimings() : null;
+        mNumSimulations = 0;
+    }
+
+    /** The simulation modifies the star in place, so every invocation gets a fresh copy. */
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        mStar = new Star();
+        mStar.fromProtocolBuffer(mStarPb);
+    }
+
+    @Benchmark
+    public Star simulate() {
+        Simulation sim = new Simulation(mNow, true, null);
+        sim.setPhaseTimings(mPhaseTimings);
+        sim.simulate(mStar);
+        mNumSimulations ++;
+        return mStar;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        printPhaseTimings(mPhaseTimings, mNumSimulations);
+    }
+
+    /** Prints the average time spent in each phase of a simulation, per simulated star. */
+    static void printPhaseTimings(Simulation.PhaseTimings timings, long numSimulations) {
+        if (timings == null || numSimulations == 0) {
+            return;
+        }
+
+        long totalNanos = timings.growthNanos + timings.buildNanos + timings.combatNanos
+                + timings.predictionNanos;
+        System.out.println(String.format(
+                "Phase timings over %d simulations (per star): growth %.2fus (%.1f%%), "
+                + "build %.2fus (%.1f%%), combat %.2fus (%.1f%%), prediction %.2fus (%.1f%%)",
+                numSimulations,
+                timings.growthNanos / 1000.0 / numSimulations, percent(timings.growthNanos, totalNanos),
+                timings.buildNanos / 1000.0 / numSimulations, percent(timings.buildNanos, totalNanos),
+                timings.combatNanos / 1000.0 / numSimulations, percent(timings.combatNanos, totalNanos),
+                timings.predictionNanos / 1000.0 / numSimulations,
+                percent(timings.predictionNanos, totalNanos)));
+    }
+
+    private static double percent(long nanos, long totalNanos) {
+        return totalNanos == 0 ? 0.0 : 100.0 * nanos / totalNanos;
+    }
+}
@@ -0,0 +1,119 @@
+package au.com.codeka.warworlds.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.codeka.common.model.Simulation;
+import au.com.codeka.common.protobuf.Messages;
+import au.com.codeka.warworlds.server.model.Star;
+
+/**
+ * Runs \c Simulation.simulate() over stars recorded from a real server, one after the other.
+ *
+ * \c snapshotDir is a directory of files ending in ".pb", each one a serialized \c Messages.Star
+ * (the same files \c SimulationRegressionTest reads). Each star is simulated up to
+ * \c hoursSinceLastSimulation hours after its own last simulation time, so old snapshots don't
+ * end up simulating weeks of history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StarSnapshotBenchmark {
+    @Param({"snapshots"})
+    public String snapshotDir;
+
+    @Param({"1", "24"})
+    public int hoursSinceLastSimulation;
+
+    @Param({"false"})
+    public boolean phaseTimings;
+
+    private Messages.Star[] mSnapshots;
+    private int mNextSnapshot;
+    private Star mStar;
+    private DateTime mNow;
+    private Simulation.PhaseTimings mPhaseTimings;
+    private long mNumSimulations;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        BenchmarkDesignManager.setup();
+
+        File dir = new File(snapshotDir);
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".pb");
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new IllegalStateException("No star snapshots (*.pb) found in "
+                    + dir.getAbsolutePath() + ", pass -p snapshotDir=<directory>.");
+        }
+        Arrays.sort(files);
+
+        ArrayList<Messages.Star> snapshots = new ArrayList<Messages.Star>();
+        for (File file : files) {
+            InputStream ins = new FileInputStream(file);
+            try {
+                snapshots.add(Messages.Star.parseFrom(ins));
+            } finally {
+                ins.close();
+            }
+        }
+        mSnapshots = snapshots.toArray(new Messages.Star[snapshots.size()]);
+        mNextSnapshot = 0;
+        mPhaseTimings = phaseTimings ? new Simulation.PhaseTimings() : null;
+        mNumSimulations = 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        Messages.Star star_pb = mSnapshots[mNextSnapshot];
+        mNextSnapshot = (mNextSnapshot + 1) % mSnapshots.length;
+
+        mStar = new Star();
+        mStar.fromProtocolBuffer(star_pb);
+        mNow = new DateTime(star_pb.getLastSimulation() * 1000, DateTimeZone.UTC)
+                .plusHours(hoursSinceLastSimulation);
+    }
+
+    @Benchmark
+    public Star simulate() {
+        Simulation sim = new Simulation(mNow, true, null);
+        sim.setPhaseTimings(mPhaseTimings);
+        sim.simulate(mStar);
+        mNumSimulations ++;
+        return mStar;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        SimulationBenchmark.printPhaseTimings(mPhaseTimings, mNumSimulations);
+    }
+}
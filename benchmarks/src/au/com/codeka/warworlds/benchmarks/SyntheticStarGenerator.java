@@ -0,0 +1,164 @@
+package au.com.codeka.warworlds.benchmarks;
+
+import java.util.Random;
+
+import au.com.codeka.common.protobuf.Messages;
+
+/**
+ * Generates stars for the simulation benchmarks. The same seed and settings always give the same
+ * star, so runs with the same parameters are comparable with each other.
+ */
+public class SyntheticStarGenerator {
+    private static final String[] SHIP_DESIGNS = {"colonyship", "scout", "fighter", "troopcarrier"};
+    private static final String[] BUILDING_DESIGNS = {"shipyard", "silo", "research", "groundshield",
+            "biosphere", "radar"};
+
+    private final long mSeed;
+    private int mNumColonies = 3;
+    private int mNumFleets = 2;
+    private int mBuildQueueLength = 0;
+    private int mNumEmpires = 1;
+    private int mHoursSinceLastSimulation = 1;
+    private boolean mCombat = false;
+
+    public SyntheticStarGenerator(long seed) {
+        mSeed = seed;
+    }
+
+    public SyntheticStarGenerator setNumColonies(int numColonies) {
+        mNumColonies = numColonies;
+        return this;
+    }
+
+    public SyntheticStarGenerator setNumFleets(int numFleets) {
+        mNumFleets = numFleets;
+        return this;
+    }
+
+    /** The total number of build requests on the star, spread over the colonies. */
+    public SyntheticStarGenerator setBuildQueueLength(int buildQueueLength) {
+        mBuildQueueLength = buildQueueLength;
+        return this;
+    }
+
+    public SyntheticStarGenerator setNumEmpires(int numEmpires) {
+        mNumEmpires = numEmpires;
+        return this;
+    }
+
+    public SyntheticStarGenerator setHoursSinceLastSimulation(int hoursSinceLastSimulation) {
+        mHoursSinceLastSimulation = hoursSinceLastSimulation;
+        return this;
+    }
+
+    /**
+     * If true, every second fleet is put in the ATTACKING state so the star goes into combat
+     * (as long as there's more than one empire).
+     */
+    public SyntheticStarGenerator setCombat(boolean combat) {
+        mCombat = combat;
+        return this;
+    }
+
+    /** Generates the star, last simulated \c hoursSinceLastSimulation hours before \c now. */
+    public Messages.Star generate(long nowMillis) {
+        Random rand = new Random(mSeed);
+        String starKey = Long.toString(1000 + mSeed);
+        long lastSimulation = nowMillis / 1000 - mHoursSinceLastSimulation * 3600L;
+
+        Messages.Star.Builder star_pb = Messages.Star.newBuilder()
+                .setKey(starKey)
+                .setName("Benchmark " + mSeed)
+                .setClassification(Messages.Star.CLASSIFICATION.YELLOW)
+                .setSize(10)
+                .setSectorX(0)
+                .setSectorY(0)
+                .setOffsetX(512)
+                .setOffsetY(512)
+                .setLastSimulation(lastSimulation);
+
+        int numPlanets = Math.max(1, mNumColonies);
+        for (int i = 0; i < numPlanets; i++) {
+            star_pb.addPlanets(Messages.Planet.newBuilder()
+                    .setIndex(i + 1)
+                    .setPlanetType(Messages.Planet.PLANET_TYPE.TERRAN)
+                    .setSize(20)
+                    .setPopulationCongeniality(100 + rand.nextInt(900))
+                    .setFarmingCongeniality(rand.nextInt(100))
+                    .setMiningCongeniality(rand.nextInt(100)));
+        }
+
+        for (int i = 0; i < mNumEmpires; i++) {
+            star_pb.addEmpires(Messages.EmpirePresence.newBuilder()
+                    .setKey(Integer.toString(500 + i))
+                    .setEmpireKey(getEmpireKey(i))
+                    .setStarKey(starKey)
+                    .setTotalGoods(rand.nextInt(500))
+                    .setTotalMinerals(rand.nextInt(500))
+                    .setMaxGoods(500 + rand.nextInt(1000))
+                    .setMaxMinerals(500 + rand.nextInt(1000)));
+        }
+
+        for (int i = 0; i < mNumColonies; i++) {
+            float population = rand.nextFloat();
+            float farming = rand.nextFloat();
+            float mining = rand.nextFloat();
+            float construction = rand.nextFloat();
+            float total = population + farming + mining + construction;
+
+            star_pb.addColonies(Messages.Colony.newBuilder()
+                    .setKey(Integer.toString(i + 1))
+                    .setStarKey(starKey)
+                    .setPlanetIndex(i + 1)
+                    .setEmpireKey(getEmpireKey(i % Math.max(1, mNumEmpires)))
+                    .setPopulation(5 + rand.nextInt(800))
+                    .setMaxPopulation(200 + rand.nextInt(1000))
+                    .setFocusPopulation(population / total)
+                    .setFocusFarming(farming / total)
+                    .setFocusMining(mining / total)
+                    .setFocusConstruction(construction / total)
+                    .setUncollectedTaxes(rand.nextInt(100)));
+        }
+
+        for (int i = 0; i < mBuildQueueLength && mNumColonies > 0; i++) {
+            Messages.Colony colony_pb = star_pb.getColonies(i % mNumColonies);
+            boolean isShip = rand.nextBoolean();
+            long startTime = lastSimulation - rand.nextInt(2 * 3600);
+            star_pb.addBuildRequests(Messages.BuildRequest.newBuilder()
+                    .setKey(Integer.toString(i + 1))
+                    .setColonyKey(colony_pb.getKey())
+                    .setEmpireKey(colony_pb.getEmpireKey())
+                    .setStarKey(starKey)
+                    .setPlanetIndex(colony_pb.getPlanetIndex())
+                    .setBuildKind(isShip ? Messages.BuildRequest.BUILD_KIND.SHIP
+                                         : Messages.BuildRequest.BUILD_KIND.BUILDING)
+                    .setDesignName(isShip ? SHIP_DESIGNS[rand.nextInt(SHIP_DESIGNS.length)]
+                                          : BUILDING_DESIGNS[rand.nextInt(BUILDING_DESIGNS.length)])
+                    .setCount(isShip ? 1 + rand.nextInt(50) : 1)
+                    .setStartTime(startTime)
+                    .setEndTime(startTime + rand.nextInt(10 * 3600))
+                    .setProgress(rand.nextFloat() * 0.5f));
+        }
+
+        for (int i = 0; i < mNumFleets; i++) {
+            boolean attacking = mCombat && (i % 2 == 0);
+            star_pb.addFleets(Messages.Fleet.newBuilder()
+                    .setKey(Integer.toString(100 + i))
+                    .setEmpireKey(getEmpireKey(i % Math.max(1, mNumEmpires)))
+                    .setStarKey(starKey)
+                    .setDesignName(mCombat ? "fighter" : SHIP_DESIGNS[rand.nextInt(SHIP_DESIGNS.length)])
+                    .setNumShips(1 + rand.nextInt(200))
+                    .setState(attacking ? Messages.Fleet.FLEET_STATE.ATTACKING
+                                        : Messages.Fleet.FLEET_STATE.IDLE)
+                    .setStateStartTime(lastSimulation)
+                    .setStance(attacking ? Messages.Fleet.FLEET_STANCE.AGGRESSIVE
+                                         : Messages.Fleet.FLEET_STANCE.NEUTRAL));
+        }
+
+        return star_pb.build();
+    }
+
+    private static String getEmpireKey(int index) {
+        return Integer.toString(index + 1);
+    }
+}
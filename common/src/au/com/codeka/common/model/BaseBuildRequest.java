@@ -10,7 +10,7 @@ import au.com.codeka.common.protobuf.Messages;
 /**
  * Represents an in-progress build order.
  */
-public abstract class BaseBuildRequest  {
+public abstract class BaseBuildRequest implements Cloneable {
     protected String mKey;
     protected DesignKind mDesignKind;
     protected String mDesignID;
@@ -142,6 +142,17 @@ public abstract class BaseBuildRequest  {
         mEndTime = dt;
     }
 
+    /**
+     * Makes a shallow copy of this build request, see \c BaseStar.cloneForPrediction().
+     */
+    BaseBuildRequest shallowCopy() {
+        try {
+            return (BaseBuildRequest) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+    }
+
     public void fromProtocolBuffer(Messages.BuildRequest pb) {
         if (pb.hasKey()) {
             mKey = pb.getKey();
@@ -5,7 +5,7 @@ import au.com.codeka.common.protobuf.Messages;
 /**
  * Represents a single building on a colony.
  */
-public class BaseBuilding {
+public class BaseBuilding implements Cloneable {
     protected String mKey;
     protected String mColonyKey;
     protected String mEmpireKey;
@@ -29,6 +29,17 @@ public class BaseBuilding {
         return mNotes;
     }
 
+    /**
+     * Makes a copy of this building, see \c BaseStar.deepCopy().
+     */
+    BaseBuilding copy() {
+        try {
+            return (BaseBuilding) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+    }
+
     public void fromProtocolBuffer(Messages.Building pb) {
         mKey = pb.getKey();
         mColonyKey = pb.getColonyKey();
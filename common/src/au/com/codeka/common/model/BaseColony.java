@@ -8,7 +8,7 @@ import org.joda.time.DateTimeZone;
 
 import au.com.codeka.common.protobuf.Messages;
 
-public abstract class BaseColony {
+public abstract class BaseColony implements Cloneable {
     protected String mKey;
     protected String mStarKey;
     protected int mPlanetIndex;
@@ -116,6 +116,31 @@ public abstract class BaseColony {
         return mCooldownTimeEnd;
     }
 
+    /**
+     * Makes a shallow copy of this colony, see \c BaseStar.cloneForPrediction().
+     */
+    BaseColony shallowCopy() {
+        try {
+            return (BaseColony) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+    }
+
+    /**
+     * Makes a copy of this colony and its buildings, see \c BaseStar.deepCopy().
+     */
+    BaseColony deepCopy() {
+        BaseColony copy = shallowCopy();
+        if (mBuildings != null) {
+            copy.mBuildings = new ArrayList<BaseBuilding>(mBuildings.size());
+            for (BaseBuilding building : mBuildings) {
+                copy.mBuildings.add(building.copy());
+            }
+        }
+        return copy;
+    }
+
     public void fromProtocolBuffer(Messages.Colony pb) {
         mKey = pb.getKey();
         mStarKey = pb.getStarKey();
@@ -8,7 +8,7 @@ import org.joda.time.DateTimeZone;
 
 import au.com.codeka.common.protobuf.Messages;
 
-public class BaseCombatReport {
+public class BaseCombatReport implements Cloneable {
     protected String mKey;
     protected String mStarKey;
     protected DateTime mStartTime;
@@ -53,6 +53,27 @@ public class BaseCombatReport {
         return mCombatRounds;
     }
 
+    /**
+     * Makes a copy of this combat report, see \c BaseStar.deepCopy(). The rounds themselves are
+     * shared, they're not modified once they've been added.
+     */
+    BaseCombatReport deepCopy() {
+        BaseCombatReport copy;
+        try {
+            copy = (BaseCombatReport) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+        if (mStartEmpires != null) {
+            copy.mStartEmpires = new ArrayList<String>(mStartEmpires);
+        }
+        if (mEndEmpires != null) {
+            copy.mEndEmpires = new ArrayList<String>(mEndEmpires);
+        }
+        copy.mCombatRounds = new ArrayList<CombatRound>(mCombatRounds);
+        return copy;
+    }
+
     public void fromProtocolBuffer(Messages.CombatReport pb) {
         if (pb.hasKey()) {
             mKey = pb.getKey();
@@ -261,6 +282,11 @@ public class BaseCombatReport {
         public float getNumShips() {
             return mNumShips;
         }
+        public void addFleet(BaseFleet fleet) {
+            mFleetKeys.add(fleet.getKey());
+            mFleets.add(fleet);
+            mNumShips += fleet.getNumShips();
+        }
         public void addShips(FleetSummary otherFleet) {
             mFleetKeys.addAll(otherFleet.getFleetKeys());
             mFleets.addAll(otherFleet.getFleets());
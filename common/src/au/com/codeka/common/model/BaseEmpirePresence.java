@@ -11,7 +11,7 @@ import au.com.codeka.common.protobuf.Messages;
  * @author dean@codeka.com.au
  *
  */
-public abstract class BaseEmpirePresence {
+public abstract class BaseEmpirePresence implements Cloneable {
     protected String mKey;
     protected String mEmpireKey;
     protected String mStarKey;
@@ -87,6 +87,17 @@ public abstract class BaseEmpirePresence {
         mGoodsZeroTime = dt;
     }
 
+    /**
+     * Makes a shallow copy of this empire presence, see \c BaseStar.cloneForPrediction().
+     */
+    BaseEmpirePresence shallowCopy() {
+        try {
+            return (BaseEmpirePresence) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+    }
+
     public void fromProtocolBuffer(Messages.EmpirePresence pb) {
         mKey = pb.getKey();
         mEmpireKey = pb.getEmpireKey();
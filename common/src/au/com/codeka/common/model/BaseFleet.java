@@ -8,7 +8,7 @@ import org.joda.time.Seconds;
 
 import au.com.codeka.common.protobuf.Messages;
 
-public abstract class BaseFleet {
+public abstract class BaseFleet implements Cloneable {
     protected String mKey;
     protected String mEmpireKey;
     protected Integer mAllianceID;
@@ -110,6 +110,25 @@ public abstract class BaseFleet {
         return (getUpgrade(upgradeID) != null);
     }
 
+    /**
+     * Makes a copy of this fleet and its upgrades, see \c BaseStar.deepCopy().
+     */
+    BaseFleet deepCopy() {
+        BaseFleet copy;
+        try {
+            copy = (BaseFleet) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+        if (mUpgrades != null) {
+            copy.mUpgrades = new ArrayList<BaseFleetUpgrade>(mUpgrades.size());
+            for (BaseFleetUpgrade upgrade : mUpgrades) {
+                copy.mUpgrades.add(upgrade.copy());
+            }
+        }
+        return copy;
+    }
+
     public void move(DateTime now, String destinationStarKey, DateTime eta) {
         mState = State.MOVING;
         mStateStartTime = now;
@@ -5,7 +5,7 @@ import com.google.gson.JsonParser;
 
 import au.com.codeka.common.protobuf.Messages;
 
-public class BaseFleetUpgrade {
+public class BaseFleetUpgrade implements Cloneable {
     protected int mFleetID;
     protected String mUpgradeID;
     protected int mStarID;
@@ -23,6 +23,17 @@ public class BaseFleetUpgrade {
     public String getExtra() {
         return mExtra;
     }
+    /**
+     * Makes a copy of this upgrade, see \c BaseStar.deepCopy().
+     */
+    BaseFleetUpgrade copy() {
+        try {
+            return (BaseFleetUpgrade) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+    }
+
     public JsonObject getExtraJson() {
         if (mExtra == null) {
             return null;
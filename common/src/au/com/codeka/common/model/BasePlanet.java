@@ -3,7 +3,7 @@ package au.com.codeka.common.model;
 import au.com.codeka.common.protobuf.Messages;
 
 
-public class BasePlanet {
+public class BasePlanet implements Cloneable {
     protected static PlanetType[] sPlanetTypes = {
         new PlanetType.Builder().setIndex(0)
                                 .setDisplayName("Gas Giant")
@@ -76,6 +76,20 @@ public class BasePlanet {
         return mMiningCongeniality;
     }
 
+    /**
+     * Makes a copy of this planet that belongs to the given star, see \c BaseStar.deepCopy().
+     */
+    BasePlanet copyForStar(BaseStar star) {
+        BasePlanet copy;
+        try {
+            copy = (BasePlanet) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+        copy.mStar = star;
+        return copy;
+    }
+
     @Override
     public int hashCode() {
         return mStar.getKey().hashCode() ^ (mIndex * 632548);
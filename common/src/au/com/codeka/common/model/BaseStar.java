@@ -12,7 +12,7 @@ import au.com.codeka.common.protobuf.Messages;
 /**
  * A star is \i basically a container for planets. It shows up on the starfield list.
  */
-public abstract class BaseStar {
+public abstract class BaseStar implements Cloneable {
 
     public enum Type {
         Blue, White, Yellow, Orange, Red, Neutron, BlackHole, Marker, Wormhole,
@@ -110,6 +110,126 @@ public abstract class BaseStar {
     public abstract BaseCombatReport createCombatReport(Messages.CombatReport pb);
     public abstract BaseStar clone();
 
+    /**
+     * Creates a copy of this star for the \c Simulation to run its prediction pass on. Unlike
+     * \c clone(), this shares everything the simulation won't modify with the original star:
+     * the planets, the buildings and (unless there's a fleet attacking) the fleets and combat
+     * report. Colonies, empire presences and build requests are shallow copies.
+     */
+    public BaseStar cloneForPrediction() {
+        BaseStar clone;
+        try {
+            clone = (BaseStar) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+
+        if (mColonies != null) {
+            clone.mColonies = new ArrayList<BaseColony>(mColonies.size());
+            for (BaseColony colony : mColonies) {
+                if (colony.getPopulation() < 1.0) {
+                    // same as fromProtocolBuffer, dead colonies don't take part any more
+                    continue;
+                }
+                clone.mColonies.add(colony.shallowCopy());
+            }
+        }
+        if (mEmpires != null) {
+            clone.mEmpires = new ArrayList<BaseEmpirePresence>(mEmpires.size());
+            for (BaseEmpirePresence empire : mEmpires) {
+                clone.mEmpires.add(empire.shallowCopy());
+            }
+        }
+        if (mBuildRequests != null) {
+            clone.mBuildRequests = new ArrayList<BaseBuildRequest>(mBuildRequests.size());
+            for (BaseBuildRequest buildRequest : mBuildRequests) {
+                clone.mBuildRequests.add(buildRequest.shallowCopy());
+            }
+        }
+
+        // Fleets (and the combat report) are only modified by combat, which only happens if
+        // there's a fleet attacking.
+        boolean inCombat = false;
+        if (mFleets != null) {
+            for (BaseFleet fleet : mFleets) {
+                if (fleet.getState() == BaseFleet.State.ATTACKING) {
+                    inCombat = true;
+                    break;
+                }
+            }
+        }
+        if (inCombat) {
+            clone.mFleets = new ArrayList<BaseFleet>(mFleets.size());
+            for (BaseFleet fleet : mFleets) {
+                Messages.Fleet.Builder fleet_pb = Messages.Fleet.newBuilder();
+                fleet.toProtocolBuffer(fleet_pb);
+                clone.mFleets.add(clone.createFleet(fleet_pb.build()));
+            }
+            if (mCombatReport != null) {
+                Messages.CombatReport.Builder combat_report_pb = Messages.CombatReport.newBuilder();
+                mCombatReport.toProtocolBuffer(combat_report_pb);
+                clone.mCombatReport = clone.createCombatReport(combat_report_pb.build());
+            }
+        }
+
+        return clone;
+    }
+
+    /**
+     * Creates a copy of this star that shares nothing mutable with the original, so that either
+     * one can be modified without affecting the other. Unlike \c clone(), this doesn't go via
+     * protocol buffers, so nothing that only exists on the subclass (IDs and so on) is lost.
+     *
+     * Combat rounds are the exception: they're shared, because a round is never modified once
+     * it's been added to the combat report.
+     */
+    public BaseStar deepCopy() {
+        BaseStar copy;
+        try {
+            copy = (BaseStar) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e); // can't happen, we're Cloneable
+        }
+
+        if (mPlanets != null) {
+            copy.mPlanets = new BasePlanet[mPlanets.length];
+            for (int i = 0; i < mPlanets.length; i++) {
+                copy.mPlanets[i] = mPlanets[i].copyForStar(copy);
+            }
+        }
+        if (mColonies != null) {
+            copy.mColonies = new ArrayList<BaseColony>(mColonies.size());
+            for (BaseColony colony : mColonies) {
+                copy.mColonies.add(colony.deepCopy());
+            }
+        }
+        if (mEmpires != null) {
+            copy.mEmpires = new ArrayList<BaseEmpirePresence>(mEmpires.size());
+            for (BaseEmpirePresence empire : mEmpires) {
+                copy.mEmpires.add(empire.shallowCopy());
+            }
+        }
+        if (mFleets != null) {
+            copy.mFleets = new ArrayList<BaseFleet>(mFleets.size());
+            for (BaseFleet fleet : mFleets) {
+                copy.mFleets.add(fleet.deepCopy());
+            }
+        }
+        if (mBuildRequests != null) {
+            copy.mBuildRequests = new ArrayList<BaseBuildRequest>(mBuildRequests.size());
+            for (BaseBuildRequest buildRequest : mBuildRequests) {
+                copy.mBuildRequests.add(buildRequest.shallowCopy());
+            }
+        }
+        if (mCombatReport != null) {
+            copy.mCombatReport = mCombatReport.deepCopy();
+        }
+        if (mWormholeExtra != null) {
+            copy.mWormholeExtra = mWormholeExtra.copy();
+        }
+        return copy;
+    }
+
     public String getKey() {
         return mKey;
     }
@@ -495,6 +615,16 @@ public abstract class BaseStar {
             return mEmpireID;
         }
 
+        WormholeExtra copy() {
+            WormholeExtra copy = new WormholeExtra(mEmpireID);
+            copy.mDestWormholeID = mDestWormholeID;
+            copy.mTuneCompleteTime = mTuneCompleteTime;
+            if (mTuneHistory != null) {
+                copy.mTuneHistory = new ArrayList<DateTime>(mTuneHistory);
+            }
+            return copy;
+        }
+
         public int getTuneTimeHours() {
             if (mTuneHistory == null || mTuneHistory.size() == 0) {
                 return 0;
@@ -1,15 +1,13 @@
 package au.com.codeka.common.model;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Duration;
-import org.joda.time.Interval;
-import org.joda.time.Seconds;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.model.BaseFleet.Stance;
@@ -23,10 +21,27 @@ public class Simulation {
     private final LogHandler logHandler;
     private final boolean predict;
     private DateTime now;
+    private DateTimeZone zone;
+
+    private boolean fastForwardEnabled = true;
+    private PhaseTimings phaseTimings;
+    private boolean predicting;
+    private float stepTolerance = DEFAULT_STEP_TOLERANCE;
+    private final ProductionRates rates = new ProductionRates();
+
+    /** Scratch list of the build requests for the colony we're currently simulating. */
+    private final ArrayList<BaseBuildRequest> buildRequestsScratch = new ArrayList<BaseBuildRequest>();
 
     private static boolean sDebug = false;
     private static int sNumSimulations;
     private static DateTime year2k = new DateTime(2000, 1, 1, 0, 0);
+    private static final long YEAR_2K_MILLIS = year2k.getMillis();
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long MILLIS_PER_HOUR = 3600L * MILLIS_PER_SECOND;
+    private static final long STEP_MILLIS = 15L * 60L * MILLIS_PER_SECOND;
+    private static final long MAX_STEP_MILLIS = 8L * STEP_MILLIS;
+    private static final float DEFAULT_STEP_TOLERANCE = 0.01f;
 
     public Simulation() {
         this(DateTime.now(DateTimeZone.UTC), true, sDebug ? new BasicLogHandler() : null);
@@ -46,6 +61,30 @@ public class Simulation {
         this.logHandler = logHandler;
     }
 
+    /**
+     * Enables or disables skipping over steady-state periods of time (enabled by default). This
+     * is mostly useful for comparing the results against plain fixed-step simulation.
+     */
+    public void setFastForwardEnabled(boolean enabled) {
+        fastForwardEnabled = enabled;
+    }
+
+    /**
+     * Sets the largest fraction of a colony's population we'll let change in a single step before
+     * we fall back to 15 minute steps. Zero means always use fixed 15 minute steps.
+     */
+    public void setStepTolerance(float tolerance) {
+        stepTolerance = tolerance;
+    }
+
+    /**
+     * If set, we'll add the time spent in each phase of the simulation to the given
+     * \c PhaseTimings. This is used by the benchmarks, and is off by default.
+     */
+    public void setPhaseTimings(PhaseTimings timings) {
+        phaseTimings = timings;
+    }
+
     public static int getNumRunningSimulations() {
         return sNumSimulations;
     }
@@ -58,14 +97,17 @@ public class Simulation {
 
     /**
      * Simulate the given star, and make sure it's "current".
+     *
+     * Internally, all of the time arithmetic is done on epoch millis, and we only create
+     * \c DateTime objects when we actually need to store a new time back into the star.
      * @param star
      */
     public void simulate(BaseStar star) {
         sNumSimulations ++;
         if (logHandler != null) {
             logHandler.setStarName(star.getName());
+            log(String.format("Begin simulation for '%s'", star.getName()));
         }
-        log(String.format("Begin simulation for '%s'", star.getName()));
 
         HashSet<String> empireKeys = new HashSet<String>();
         for (BaseColony colony : star.getColonies()) {
@@ -75,55 +117,76 @@ public class Simulation {
         }
 
         // figure out the start time, which is the oldest last_simulation time
-        DateTime startTime = getSimulateStartTime(star);
-        if (startTime == null) {
+        DateTime simulateStartTime = getSimulateStartTime(star);
+        if (simulateStartTime == null) {
             // Nothing worth simulating...
             return;
         }
+        zone = simulateStartTime.getZone();
+        long startTime = simulateStartTime.getMillis();
+        long nowMillis = now.getMillis();
 
         // if the start time is in the future, actually start it now.
-        if (startTime.isAfter(now.plusSeconds(30))) {
+        if (startTime > nowMillis + 30 * MILLIS_PER_SECOND) {
             throw new IllegalStateException("Start time is too far in the future");
         }
-        if (startTime.isAfter(now)) {
-            startTime = now.minusSeconds(1);
+        if (startTime > nowMillis) {
+            startTime = nowMillis - MILLIS_PER_SECOND;
         }
 
         // if we have less than a few seconds of time to simulate, we'll extend the end time
         // a little to ensure there's no rounding errors and such
-        DateTime endTime = now;
-        if (endTime.minusSeconds(3).isBefore(startTime)) {
-            endTime = startTime.plusSeconds(3);
+        long endTime = nowMillis;
+        if (endTime - 3 * MILLIS_PER_SECOND < startTime) {
+            endTime = startTime + 3 * MILLIS_PER_SECOND;
         }
 
         // We'll simulate in "prediction mode" for an extra bit of time so that we can get a
         // more accurate estimate of the end time for builds. We won't *record* the population
         // growth and such, just the end time of builds. We'll also record the time that the
         // population drops below a certain threshold so that we can warn the player.
-        DateTime predictionTime = endTime.plusHours(24);
+        long predictionTime = endTime + 24 * MILLIS_PER_HOUR;
         BaseStar predictionStar = null;
+        long stepSize = STEP_MILLIS;
+        long predictionStartNanos = 0;
+        predicting = false;
         while (true) {
-            Duration dt = Duration.standardMinutes(15);
-            DateTime stepEndTime = startTime.plus(dt);
-            if (stepEndTime.compareTo(endTime) < 0) {
+            long dt = stepSize;
+            long stepEndTime = startTime + dt;
+            if (stepEndTime < endTime) {
                 simulateStepForAllEmpires(dt, startTime, star, empireKeys);
-                startTime = stepEndTime;
-            } else if (predictionStar == null && startTime.isBefore(endTime)) {
+                startTime = fastForward(star, stepEndTime, endTime, empireKeys);
+                stepSize = getAdaptiveStepSize(star, startTime, endTime, empireKeys);
+            } else if (predictionStar == null && startTime < endTime) {
                 // We have to do the last little before of the simulation before predicting
-                now = endTime;
-                dt = new Interval(startTime, endTime).toDuration();
-                if (dt.getMillis() > 1000) {
+                if (endTime != nowMillis) {
+                    now = new DateTime(endTime, now.getZone());
+                }
+                dt = endTime - startTime;
+                if (dt > MILLIS_PER_SECOND) {
                     simulateStepForAllEmpires(dt, startTime, star, empireKeys);
                 }
                 startTime = endTime;
 
                 if (predict) {
-                    predictionStar = star.clone();
-                    dt = Duration.standardMinutes(15);
+                    if (fastForwardEnabled
+                            && getSteadyStateEndTime(star, endTime, empireKeys) >= predictionTime) {
+                        // Nothing is going to happen in the next 24 hours, so the prediction
+                        // wouldn't tell us anything we don't already know.
+                        log("Star is in a steady state, skipping prediction.");
+                        break;
+                    }
+                    if (phaseTimings != null) {
+                        predictionStartNanos = System.nanoTime();
+                    }
+                    predicting = true;
+                    predictionStar = star.cloneForPrediction();
                 }
-            } else if (predict && stepEndTime.compareTo(predictionTime) < 0) {
+                stepSize = STEP_MILLIS;
+            } else if (predict && stepEndTime < predictionTime) {
                 simulateStepForAllEmpires(dt, startTime, predictionStar, empireKeys);
-                startTime = stepEndTime;
+                startTime = fastForward(predictionStar, stepEndTime, predictionTime, empireKeys);
+                stepSize = getAdaptiveStepSize(predictionStar, startTime, predictionTime, empireKeys);
             } else {
                 break;
             }
@@ -131,38 +194,60 @@ public class Simulation {
 
         if (predictionStar != null) {
             // copy the end times for builds from prediction_star_pb
+            HashMap<String, BaseBuildRequest> predictedBuildRequests =
+                    new HashMap<String, BaseBuildRequest>();
+            for (BaseBuildRequest predictedBuildRequest : predictionStar.getBuildRequests()) {
+                predictedBuildRequests.put(predictedBuildRequest.getKey(), predictedBuildRequest);
+            }
             for (BaseBuildRequest starBuildRequest : star.getBuildRequests()) {
-                for (BaseBuildRequest predictedBuildRequest : predictionStar.getBuildRequests()) {
-                    if (starBuildRequest.getKey().equals(predictedBuildRequest.getKey())) {
-                        starBuildRequest.setEndTime(predictedBuildRequest.getEndTime());
-                    }
+                BaseBuildRequest predictedBuildRequest = predictedBuildRequests.get(starBuildRequest.getKey());
+                if (predictedBuildRequest != null) {
+                    starBuildRequest.setEndTime(predictedBuildRequest.getEndTime());
                 }
             }
 
-            // any fleets that *will be* destroyed, remember the time of their death
-            for (BaseFleet fleet : star.getFleets()) {
+            // any fleets that *will be* destroyed, remember the time of their death (if there was
+            // no combat, the prediction star shares our fleets and there's nothing to copy)
+            if (predictionStar.getFleets() != star.getFleets()) {
+                HashMap<String, BaseFleet> predictedFleets = new HashMap<String, BaseFleet>();
                 for (BaseFleet predictedFleet : predictionStar.getFleets()) {
-                    if (fleet.getKey().equals(predictedFleet.getKey())) {
-                        log(String.format("Fleet #%s updating timeDestroyed to: %s", fleet.getKey(), predictedFleet.getTimeDestroyed()));
+                    predictedFleets.put(predictedFleet.getKey(), predictedFleet);
+                }
+                for (BaseFleet fleet : star.getFleets()) {
+                    BaseFleet predictedFleet = predictedFleets.get(fleet.getKey());
+                    if (predictedFleet != null) {
+                        if (logHandler != null) {
+                            log(String.format("Fleet #%s updating timeDestroyed to: %s", fleet.getKey(), predictedFleet.getTimeDestroyed()));
+                        }
                         fleet.setTimeDestroyed(predictedFleet.getTimeDestroyed());
                     }
                 }
             }
 
             // if the empire is going to run out of resources, save that time as well.
+            HashMap<String, BaseEmpirePresence> predictedEmpirePresences =
+                    new HashMap<String, BaseEmpirePresence>();
+            for (BaseEmpirePresence predictedEmpirePresence : predictionStar.getEmpirePresences()) {
+                predictedEmpirePresences.put(predictedEmpirePresence.getKey(), predictedEmpirePresence);
+            }
             for (BaseEmpirePresence empirePresence : star.getEmpirePresences()) {
-                for (BaseEmpirePresence predictedEmpirePresence : predictionStar.getEmpirePresences()) {
-                    if (empirePresence.getKey().equals(predictedEmpirePresence.getKey())) {
-                        empirePresence.setGoodsZeroTime(predictedEmpirePresence.getGoodsZeroTime());
-                    }
+                BaseEmpirePresence predictedEmpirePresence =
+                        predictedEmpirePresences.get(empirePresence.getKey());
+                if (predictedEmpirePresence != null) {
+                    empirePresence.setGoodsZeroTime(predictedEmpirePresence.getGoodsZeroTime());
                 }
             }
 
             // also, the prediction combat report (if any) is the one to use
             star.setCombatReport(predictionStar.getCombatReport());
+
+            if (phaseTimings != null) {
+                phaseTimings.predictionNanos += System.nanoTime() - predictionStartNanos;
+            }
         }
+        predicting = false;
 
-        star.setLastSimulation(endTime);
+        star.setLastSimulation(new DateTime(endTime, zone));
         sNumSimulations --;
     }
 
@@ -201,16 +286,326 @@ public class Simulation {
         return lastSimulation;
     }
 
-    private void simulateStepForAllEmpires(Duration dt, DateTime now, BaseStar star, Set<String> empireKeys) {
-        log(String.format("- Step [dt=%.2f hrs] [now=%s]", (float)(dt.toStandardSeconds().getSeconds()) / 3600.0f, now));
+    /**
+     * If the star is in a steady state from \c from, skip over as many whole steps as we can
+     * (without reaching \c limit) in one go, and return the time we skipped to. If the star is
+     * not in a steady state, we just return \c from and the caller steps as normal.
+     *
+     * A steady state means no build requests in progress, no combat, every colony at its maximum
+     * population and goods that aren't going to run out. In that state, all a step does is add a
+     * constant amount of goods, minerals and taxes (clamped to the storage maximum), so we can do
+     * the same thing for any number of steps at once.
+     */
+    private long fastForward(BaseStar star, long from, long limit, Set<String> empireKeys) {
+        if (!fastForwardEnabled) {
+            return from;
+        }
+
+        long until = Math.min(getSteadyStateEndTime(star, from, empireKeys), limit - 1);
+        long numSteps = (until - from) / STEP_MILLIS;
+        if (numSteps < 2) {
+            return from;
+        }
+        long to = from + numSteps * STEP_MILLIS;
+        float dtInHours = ((float) (to - from)) / (1000.0f * 3600.0f);
+        if (logHandler != null) {
+            log(String.format("- Fast forward [steps=%d] [dt=%.2f hrs]", numSteps, dtInHours));
+        }
+
+        for (BaseColony colony : star.getColonies()) {
+            float taxPerHour = 0.012f * colony.getPopulation();
+            colony.setUncollectedTaxes(colony.getUncollectedTaxes() + taxPerHour * dtInHours);
+        }
+
+        for (String empireKey : empireKeys) {
+            BaseEmpirePresence empire = findEmpirePresence(star, empireKey);
+            if (empire == null) {
+                // Without an empire presence, goods and minerals aren't stored between steps.
+                continue;
+            }
+
+            calculateProductionRates(star, empireKey, rates);
+            float totalGoods = empire.getTotalGoods() + rates.netGoodsPerHour * dtInHours;
+            if (totalGoods > empire.getMaxGoods()) {
+                totalGoods = empire.getMaxGoods();
+            }
+            float totalMinerals = empire.getTotalMinerals() + rates.mineralsPerHour * dtInHours;
+            if (totalMinerals > empire.getMaxMinerals()) {
+                totalMinerals = empire.getMaxMinerals();
+            }
+            empire.setTotalGoods(totalGoods);
+            empire.setTotalMinerals(totalMinerals);
+        }
+
+        return to;
+    }
+
+    /**
+     * Works out how big the next step starting at \c from can be. We start at the largest step
+     * (2 hours) and keep halving it, down to the normal 15 minute step, until it ends before
+     * \c limit and nothing interesting happens during it (combat, a build starting or finishing,
+     * goods running out, a colony dying) and no colony's population would change by more than
+     * \c stepTolerance of itself in a single step.
+     */
+    private long getAdaptiveStepSize(BaseStar star, long from, long limit, Set<String> empireKeys) {
+        if (stepTolerance <= 0.0f) {
+            return STEP_MILLIS;
+        }
+
+        long dt = MAX_STEP_MILLIS;
+        while (dt > STEP_MILLIS && from + dt >= limit) {
+            dt /= 2;
+        }
+        while (dt > STEP_MILLIS && !canTakeStep(star, from, dt, empireKeys)) {
+            dt /= 2;
+        }
+        return dt;
+    }
+
+    /**
+     * Checks whether a single step of \c dt starting at \c from gives (within \c stepTolerance)
+     * the same result as doing it in 15 minute steps.
+     */
+    private boolean canTakeStep(BaseStar star, long from, long dt, Set<String> empireKeys) {
+        for (BaseFleet fleet : star.getFleets()) {
+            if (fleet.getState() == BaseFleet.State.ATTACKING) {
+                return false;
+            }
+        }
+
+        float dtInHours = ((float) dt) / (1000.0f * 3600.0f);
+        long windowEnd = from + dt + STEP_MILLIS;
+        for (String empireKey : empireKeys) {
+            calculateProductionRates(star, empireKey, rates);
+            BaseEmpirePresence empire = findEmpirePresence(star, empireKey);
+
+            // Population only grows (at a rate that doesn't depend on the step size) as long as
+            // goods don't run out during the step.
+            if (empire == null) {
+                if (50.0f + rates.netGoodsPerHour * dtInHours < 0.0f) {
+                    return false;
+                }
+            } else {
+                float margin = Math.abs(rates.netGoodsPerHour) * STEP_MILLIS / MILLIS_PER_HOUR;
+                if (empire.getTotalGoods() + rates.netGoodsPerHour * dtInHours <= margin) {
+                    return false;
+                }
+            }
+
+            float mineralsRequired = 0.0f;
+            int maxBuildRequests = 0;
+            for (BaseColony colony : star.getColonies()) {
+                if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
+                    continue;
+                }
+
+                float population = colony.getPopulation();
+                float populationChange = 0.0f;
+                if (population < colony.getMaxPopulation()) {
+                    populationChange = Math.max(population, 10.0f) * colony.getPopulationFocus()
+                            * 0.5f * dtInHours;
+                }
+                if (populationChange > stepTolerance * Math.max(population, 10.0f)) {
+                    return false;
+                }
+                if (population < 1.0f || (population < 100.0f && colony.isInCooldown())) {
+                    return false;
+                }
+
+                ArrayList<BaseBuildRequest> buildRequests = buildRequestsScratch;
+                buildRequests.clear();
+                for (BaseBuildRequest br : star.getBuildRequests()) {
+                    if (!br.getColonyKey().equals(colony.getKey())) {
+                        continue;
+                    }
+                    long endTime = br.getEndTime().getMillis();
+                    if (endTime < from && endTime > YEAR_2K_MILLIS) {
+                        continue;
+                    }
+                    long startTime = br.getStartTime().getMillis();
+                    if (startTime > from) {
+                        if (startTime < windowEnd) {
+                            // starts during the step
+                            buildRequests.clear();
+                            return false;
+                        }
+                        continue;
+                    }
+                    if (endTime < windowEnd) {
+                        // finishes during the step
+                        buildRequests.clear();
+                        return false;
+                    }
+                    buildRequests.add(br);
+                }
+                if (buildRequests.isEmpty()) {
+                    continue;
+                }
+
+                // Progress on a build is linear in the step size, as long as it isn't held up by a
+                // lack of minerals. Work out how many minerals we'd use over the whole step.
+                float workersPerBuildRequest = population * colony.getConstructionFocus()
+                        / buildRequests.size();
+                if (workersPerBuildRequest < 1.0f) {
+                    workersPerBuildRequest = 1.0f;
+                }
+                for (int i = 0; i < buildRequests.size(); i++) {
+                    BaseBuildRequest br = buildRequests.get(i);
+                    Design design = BaseDesignManager.i.getDesign(br.getDesignKind(), br.getDesignID());
+                    Design.BuildCost buildCost = design.getBuildCost();
+                    if (br.mExistingFleetID != null) {
+                        buildCost = ((ShipDesign) design).getUpgrade(br.getUpgradeID()).getBuildCost();
+                    }
+                    float totalBuildTimeInHours = (float)(br.getCount() * (double) buildCost.getTimeInSeconds() / 3600.0);
+                    totalBuildTimeInHours *= (100.0 / workersPerBuildRequest);
+                    mineralsRequired += br.getCount() * buildCost.getCostInMinerals()
+                            * (dtInHours / totalBuildTimeInHours);
+                }
+                maxBuildRequests = Math.max(maxBuildRequests, buildRequests.size());
+                buildRequests.clear();
+            }
+
+            if (maxBuildRequests > 0) {
+                // Each build request gets an equal share of what's left in the pool when its colony
+                // is processed, so make sure even the smallest share covers all of them.
+                if (empire == null
+                        || mineralsRequired * (maxBuildRequests + 1) > empire.getTotalMinerals()) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the time up until which we know the given star will remain in a steady state (see
+     * \c fastForward), or \c from if it's not in a steady state right now.
+     */
+    private long getSteadyStateEndTime(BaseStar star, long from, Set<String> empireKeys) {
+        for (BaseFleet fleet : star.getFleets()) {
+            if (fleet.getState() == BaseFleet.State.ATTACKING) {
+                return from;
+            }
+        }
+
+        long until = Long.MAX_VALUE;
+        for (BaseBuildRequest br : star.getBuildRequests()) {
+            long endTime = br.getEndTime().getMillis();
+            if (endTime < from && endTime > YEAR_2K_MILLIS) {
+                // already finished, it'll be ignored from now on
+                continue;
+            }
+            long startTime = br.getStartTime().getMillis();
+            if (startTime <= from) {
+                return from;
+            }
+            // hasn't started yet, we can go as far as the step where it starts.
+            until = Math.min(until, startTime - STEP_MILLIS);
+        }
+
+        float stepInHours = ((float) STEP_MILLIS) / (1000.0f * 3600.0f);
+        for (String empireKey : empireKeys) {
+            for (BaseColony colony : star.getColonies()) {
+                if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
+                    continue;
+                }
+                float population = colony.getPopulation();
+                if (population < 1.0f || population != colony.getMaxPopulation()) {
+                    return from;
+                }
+                if (population < 100.0f && colony.isInCooldown()) {
+                    return from;
+                }
+            }
+
+            calculateProductionRates(star, empireKey, rates);
+            BaseEmpirePresence empire = findEmpirePresence(star, empireKey);
+            if (empire == null) {
+                // Each step starts with a fresh 50 goods, that just needs to cover one step.
+                if (50.0f + rates.netGoodsPerHour * stepInHours < 0.0f) {
+                    return from;
+                }
+                continue;
+            }
+
+            if (empire.getTotalGoods() > empire.getMaxGoods()
+                    || empire.getTotalMinerals() > empire.getMaxMinerals()) {
+                return from;
+            }
+            if (rates.netGoodsPerHour < 0.0f) {
+                // We'll run out of goods eventually, make sure we step through that normally.
+                float hoursRemaining = empire.getTotalGoods() / -rates.netGoodsPerHour;
+                until = Math.min(until,
+                        from + (long) (hoursRemaining * MILLIS_PER_HOUR) - 2 * STEP_MILLIS);
+            }
+        }
+
+        return Math.max(from, until);
+    }
+
+    /**
+     * Calculates the per-hour goods and minerals for the given empire's colonies at their current
+     * population, ignoring any minerals that build requests will use.
+     */
+    private static void calculateProductionRates(BaseStar star, String empireKey,
+            ProductionRates rates) {
+        float goodsPerHour = 0.0f;
+        float mineralsPerHour = 0.0f;
+        float totalPopulation = 0.0f;
+        for (BaseColony colony : star.getColonies()) {
+            if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
+                continue;
+            }
+            BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
+            goodsPerHour += colony.getPopulation() * colony.getFarmingFocus() *
+                    (planet.getFarmingCongeniality() / 100.0f);
+            mineralsPerHour += colony.getPopulation() * colony.getMiningFocus() *
+                    (planet.getMiningCongeniality() / 100.0f);
+            totalPopulation += colony.getPopulation();
+        }
+
+        float goodsRequiredPerHour = totalPopulation / 10.0f;
+        if (totalPopulation > 0.0001f && goodsRequiredPerHour < 10.0f) {
+            goodsRequiredPerHour = 10.0f;
+        }
+        rates.netGoodsPerHour = goodsPerHour - goodsRequiredPerHour;
+        rates.mineralsPerHour = mineralsPerHour;
+    }
+
+    private static BaseEmpirePresence findEmpirePresence(BaseStar star, String empireKey) {
+        if (empireKey == null) {
+            return null;
+        }
+        for (BaseEmpirePresence e : star.getEmpirePresences()) {
+            if (equalEmpireKey(e.getEmpireKey(), empireKey)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void simulateStepForAllEmpires(long dt, long now, BaseStar star, Set<String> empireKeys) {
+        if (logHandler != null) {
+            log(String.format("- Step [dt=%.2f hrs] [now=%s]", (float)(dt / MILLIS_PER_SECOND) / 3600.0f,
+                    new DateTime(now, zone)));
+        }
         for (String empireKey : empireKeys) {
-            log(String.format("-- Empire [%s]", empireKey == null ? "Native" : empireKey));
+            if (logHandler != null) {
+                log(String.format("-- Empire [%s]", empireKey == null ? "Native" : empireKey));
+            }
             simulateStep(dt, now, star, empireKey);
         }
 
         // Don't forget to simulate combat for this step as well (what to do if combat continues
         // after the prediction phase?)
-        simulateCombat(star, now, dt);
+        if (phaseTimings != null && !predicting) {
+            long startNanos = System.nanoTime();
+            simulateCombat(star, now, dt);
+            phaseTimings.combatNanos += System.nanoTime() - startNanos;
+        } else {
+            simulateCombat(star, now, dt);
+        }
     }
 
     private static boolean equalEmpireKey(String keyOne, String keyTwo) {
@@ -223,7 +618,11 @@ public class Simulation {
         return keyOne.equals(keyTwo);
     }
 
-    private void simulateStep(Duration dt, DateTime now, BaseStar star, String empireKey) {
+    private void simulateStep(long dt, long now, BaseStar star, String empireKey) {
+        boolean timed = (phaseTimings != null && !predicting);
+        long startNanos = timed ? System.nanoTime() : 0;
+        long buildNanos = 0;
+
         float totalGoods = 50.0f;
         float totalMinerals = 50.0f;
         float totalPopulation = 0.0f;
@@ -231,19 +630,24 @@ public class Simulation {
         float maxMinerals = 50.0f;
         float totalTaxPerHour = 0.0f;
 
+        // Note: this is the same as iterating star.getEmpires(), since empireKey always comes from
+        // one of the star's colonies, but it doesn't allocate a new list every step.
         BaseEmpirePresence empire = null;
-        for (BaseEmpirePresence e : star.getEmpires()) {
-            if (!equalEmpireKey(e.getEmpireKey(), empireKey)) {
-                continue;
+        if (empireKey != null) {
+            for (BaseEmpirePresence e : star.getEmpirePresences()) {
+                if (!equalEmpireKey(e.getEmpireKey(), empireKey)) {
+                    continue;
+                }
+                empire = e;
+                totalGoods = empire.getTotalGoods();
+                totalMinerals = empire.getTotalMinerals();
+                maxGoods = empire.getMaxGoods();
+                maxMinerals = empire.getMaxMinerals();
             }
-            empire = e;
-            totalGoods = empire.getTotalGoods();
-            totalMinerals = empire.getTotalMinerals();
-            maxGoods = empire.getMaxGoods();
-            maxMinerals = empire.getMaxMinerals();
         }
 
-        float dtInHours = ((float) dt.getMillis()) / (1000.0f * 3600.0f);
+        long stepEndTime = now + dt;
+        float dtInHours = ((float) dt) / (1000.0f * 3600.0f);
         float goodsDeltaPerHour = 0.0f;
         float mineralsDeltaPerHour = 0.0f;
 
@@ -252,8 +656,10 @@ public class Simulation {
                 continue;
             }
 
-            log(String.format("--- Colony [planetIndex=%d] [population=%.2f]",
-                    colony.getPlanetIndex(), colony.getPopulation()));
+            if (logHandler != null) {
+                log(String.format("--- Colony [planetIndex=%d] [population=%.2f]",
+                        colony.getPlanetIndex(), colony.getPopulation()));
+            }
             BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
 
             // calculate the output from farming this turn and add it to the star global
@@ -262,7 +668,9 @@ public class Simulation {
             colony.setGoodsDelta(goods);
             totalGoods += goods * dtInHours;
             goodsDeltaPerHour += goods;
-            log(String.format("    Goods: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            if (logHandler != null) {
+                log(String.format("    Goods: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            }
 
             // calculate the output from mining this turn and add it to the star global
             float minerals = colony.getPopulation() * colony.getMiningFocus() *
@@ -270,7 +678,9 @@ public class Simulation {
             colony.setMineralsDelta(minerals);
             totalMinerals += minerals * dtInHours;
             mineralsDeltaPerHour += minerals;
-            log(String.format("    Minerals: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            if (logHandler != null) {
+                log(String.format("    Minerals: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            }
 
             totalPopulation += colony.getPopulation();
 
@@ -278,19 +688,23 @@ public class Simulation {
             float taxPerPopulationPerHour = 0.012f;
             float taxPerHour = taxPerPopulationPerHour * colony.getPopulation();
             float taxThisTurn = taxPerHour * dtInHours;
-            log(String.format("    Taxes %.2f + %.2f = %.2f uncollected", colony.getUncollectedTaxes(), taxThisTurn, colony.getUncollectedTaxes() + taxThisTurn));
+            if (logHandler != null) {
+                log(String.format("    Taxes %.2f + %.2f = %.2f uncollected", colony.getUncollectedTaxes(), taxThisTurn, colony.getUncollectedTaxes() + taxThisTurn));
+            }
             totalTaxPerHour += taxPerHour;
             colony.setUncollectedTaxes(colony.getUncollectedTaxes() + taxThisTurn);
         }
 
         // A second loop though the colonies, once the goods/minerals have been calculated. This way,
         // goods minerals are shared between colonies
+        long buildStartNanos = timed ? System.nanoTime() : 0;
         for (BaseColony colony : star.getColonies()) {
             if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
                 continue;
             }
 
-            ArrayList<BaseBuildRequest> buildRequests = new ArrayList<BaseBuildRequest>();
+            ArrayList<BaseBuildRequest> buildRequests = buildRequestsScratch;
+            buildRequests.clear();
             for (BaseBuildRequest br : star.getBuildRequests()) {
                 if (br.getColonyKey().equals(colony.getKey())) {
                     buildRequests.add(br);
@@ -300,13 +714,15 @@ public class Simulation {
             // not all build requests will be processed this turn. We divide up the population
             // based on the number of ACTUAL build requests they'll be working on this turn
             int numValidBuildRequests = 0;
-            for (BaseBuildRequest br : buildRequests) {
-                if (br.getStartTime().compareTo(now.plus(dt)) > 0) {
+            for (int i = 0; i < buildRequests.size(); i++) {
+                BaseBuildRequest br = buildRequests.get(i);
+                if (br.getStartTime().getMillis() > stepEndTime) {
                     continue;
                 }
 
                 // the end_time will be accurate, since it'll have been updated last step
-                if (br.getEndTime().compareTo(now) < 0 && br.getEndTime().compareTo(year2k) > 0) {
+                long brEndTime = br.getEndTime().getMillis();
+                if (brEndTime < now && brEndTime > YEAR_2K_MILLIS) {
                     continue;
                 }
 
@@ -318,8 +734,10 @@ public class Simulation {
             if (numValidBuildRequests > 0) {
                 float totalWorkers = colony.getPopulation() * colony.getConstructionFocus();
                 float workersPerBuildRequest = totalWorkers / numValidBuildRequests;
-                log(String.format("--- Building [buildRequests=%d] [planetIndex=%d] [totalWorker=%.2f]",
-                        numValidBuildRequests, colony.getPlanetIndex(), totalWorkers));
+                if (logHandler != null) {
+                    log(String.format("--- Building [buildRequests=%d] [planetIndex=%d] [totalWorker=%.2f]",
+                            numValidBuildRequests, colony.getPlanetIndex(), totalWorkers));
+                }
 
                 // OK, we can spare at least ONE population
                 if (workersPerBuildRequest < 1.0f) {
@@ -331,13 +749,16 @@ public class Simulation {
                 // see how this goes initially
                 float mineralsPerBuildRequest = totalMinerals / numValidBuildRequests;
 
-                for (BaseBuildRequest br : buildRequests) {
+                for (int i = 0; i < buildRequests.size(); i++) {
+                    BaseBuildRequest br = buildRequests.get(i);
                     Design design = BaseDesignManager.i.getDesign(br.getDesignKind(), br.getDesignID());
-                    log(String.format("---- Building [design=%s %s] [count=%d]",
-                            br.getDesignKind(), br.getDesignID(), br.getCount()));
+                    if (logHandler != null) {
+                        log(String.format("---- Building [design=%s %s] [count=%d]",
+                                br.getDesignKind(), br.getDesignID(), br.getCount()));
+                    }
 
-                    DateTime startTime = br.getStartTime();
-                    if (startTime.compareTo(now.plus(dt)) > 0) {
+                    long startTime = br.getStartTime().getMillis();
+                    if (startTime > stepEndTime) {
                         continue;
                     }
 
@@ -362,13 +783,14 @@ public class Simulation {
                         // if there's less than 10 seconds to go, just say it's done now.
                         timeRemainingInHours = 0.0f;
                     }
-                    log(String.format("     Time [total=%.2f hrs] [remaining=%.2f hrs]",
-                            totalBuildTimeInHours, timeRemainingInHours));
+                    if (logHandler != null) {
+                        log(String.format("     Time [total=%.2f hrs] [remaining=%.2f hrs]",
+                                totalBuildTimeInHours, timeRemainingInHours));
+                    }
 
                     float dtUsed = dtInHours;
-                    if (startTime.isAfter(now)) {
-                        Duration startOffset = new Interval(now, startTime).toDuration();
-                        dtUsed -= startOffset.getMillis() / (1000.0f * 3600.0f);
+                    if (startTime > now) {
+                        dtUsed -= (startTime - now) / (1000.0f * 3600.0f);
                     }
                     if (dtUsed > timeRemainingInHours) {
                         dtUsed = timeRemainingInHours;
@@ -377,17 +799,19 @@ public class Simulation {
                     // what is the current amount of time we have now as a percentage of the total build
                     // time?
                     float progressThisTurn = dtUsed / totalBuildTimeInHours;
-                    log(String.format("Progress this turn: %f", progressThisTurn));
+                    if (logHandler != null) {
+                        log(String.format("Progress this turn: %f", progressThisTurn));
+                    }
                     if (progressThisTurn <= 0) {
-                        DateTime endTime;
+                        long endTime;
                         timeRemainingInHours = (1.0f - br.getProgress(false)) * totalBuildTimeInHours;
                         if (timeRemainingInHours < (10.0f / 3600.0f)) {
                             endTime = now;
                         } else {
-                            endTime = now.plus((long)(timeRemainingInHours * 3600.0f * 1000.0f));
+                            endTime = now + (long)(timeRemainingInHours * 3600.0f * 1000.0f);
                         }
-                        if (br.getEndTime().compareTo(endTime) > 0) {
-                            br.setEndTime(endTime);
+                        if (br.getEndTime().getMillis() > endTime) {
+                            br.setEndTime(new DateTime(endTime, zone));
                         }
                         log("    Finished this turn.");
                         continue;
@@ -395,28 +819,36 @@ public class Simulation {
 
                     // work out how many minerals we require for this turn
                     float mineralsRequired = br.getCount() * buildCost.getCostInMinerals() * progressThisTurn;
-                    log(String.format("Cost in minerals: %f", mineralsRequired));
+                    if (logHandler != null) {
+                        log(String.format("Cost in minerals: %f", mineralsRequired));
+                    }
                     if (mineralsRequired > mineralsPerBuildRequest) {
                         // if we don't have enough minerals, we'll just do a percentage of the work
                         // this turn
                         totalMinerals -= mineralsPerBuildRequest;
                         float percentMineralsAvailable = mineralsPerBuildRequest / mineralsRequired;
                         br.setProgress(br.getProgress(false) + (progressThisTurn * percentMineralsAvailable));
-                        log(String.format("     Progress %.4f%% + %.4f%% (this turn, adjusted - %.4f%% originally) ",
-                            br.getProgress(false) * 100.0f,
-                            progressThisTurn * percentMineralsAvailable * 100.0f,
-                            progressThisTurn * 100.0f));
+                        if (logHandler != null) {
+                            log(String.format("     Progress %.4f%% + %.4f%% (this turn, adjusted - %.4f%% originally) ",
+                                br.getProgress(false) * 100.0f,
+                                progressThisTurn * percentMineralsAvailable * 100.0f,
+                                progressThisTurn * 100.0f));
+                        }
                     } else {
                         // awesome, we have enough minerals so we can make some progress. We'll start by
                         // removing the minerals we need from the global pool...
                         totalMinerals -= mineralsRequired;
                         br.setProgress(br.getProgress(false) + progressThisTurn);
-                        log(String.format("     Progress %.4f%% + %.4f%% (this turn)",
-                            br.getProgress(false) * 100.0f, progressThisTurn * 100.0f));
+                        if (logHandler != null) {
+                            log(String.format("     Progress %.4f%% + %.4f%% (this turn)",
+                                br.getProgress(false) * 100.0f, progressThisTurn * 100.0f));
+                        }
                     }
                     mineralsDeltaPerHour -= mineralsRequired / dtInHours;
-                    log(String.format("     Minerals [required=%.2f] [available=%.2f] [available per build=%.2f]",
-                            mineralsRequired, totalMinerals, mineralsPerBuildRequest));
+                    if (logHandler != null) {
+                        log(String.format("     Minerals [required=%.2f] [available=%.2f] [available per build=%.2f]",
+                                mineralsRequired, totalMinerals, mineralsPerBuildRequest));
+                    }
 
                     // adjust the end_time for this turn
                     timeRemainingInHours = (1.0f - br.getProgress(false)) * totalBuildTimeInHours;
@@ -425,9 +857,14 @@ public class Simulation {
                         // avoid overflow errors.
                         timeRemainingInHours = 100000;
                     }
-                    DateTime endTime = now.plus((long)(dtUsed * 1000 * 3600) + (long)(timeRemainingInHours * 1000 * 3600));
-                    br.setEndTime(endTime);
-                    log(String.format("     End Time: %s (%.2f hrs)", endTime, Seconds.secondsBetween(now, endTime).getSeconds() / 3600.0f));
+                    long endTime = now + (long)(dtUsed * 1000 * 3600) + (long)(timeRemainingInHours * 1000 * 3600);
+                    if (br.getEndTime().getMillis() != endTime) {
+                        br.setEndTime(new DateTime(endTime, zone));
+                    }
+                    if (logHandler != null) {
+                        log(String.format("     End Time: %s (%.2f hrs)", br.getEndTime(),
+                                ((endTime - now) / MILLIS_PER_SECOND) / 3600.0f));
+                    }
 
                     if (br.getProgress(false) >= 1.0f) {
                         // if we've finished this turn, just set progress
@@ -436,6 +873,10 @@ public class Simulation {
                 }
             }
         }
+        buildRequestsScratch.clear();
+        if (timed) {
+            buildNanos = System.nanoTime() - buildStartNanos;
+        }
 
         // Finally, update the population. The first thing we need to do is evenly distribute goods
         // between all of the colonies.
@@ -453,8 +894,10 @@ public class Simulation {
             goodsEfficiency = totalGoods / totalGoodsRequired;
         }
 
-        log(String.format("--- Updating Population [goods required=%.2f] [goods available=%.2f] [efficiency=%.2f]",
-                          totalGoodsRequired, totalGoods, goodsEfficiency));
+        if (logHandler != null) {
+            log(String.format("--- Updating Population [goods required=%.2f] [goods available=%.2f] [efficiency=%.2f]",
+                              totalGoodsRequired, totalGoods, goodsEfficiency));
+        }
 
         // subtract all the goods we'll need
         totalGoods -= totalGoodsRequired;
@@ -463,9 +906,9 @@ public class Simulation {
             totalGoods = 0.0f;
 
             if (empire != null) {
-                if (empire.getGoodsZeroTime() == null || empire.getGoodsZeroTime().isAfter(now.plus(dt))) {
-                    log(String.format("    GOODS HAVE HIT ZERO"));
-                    empire.setGoodsZeroTime(now.plus(dt));
+                if (empire.getGoodsZeroTime() == null || empire.getGoodsZeroTime().getMillis() > stepEndTime) {
+                    log("    GOODS HAVE HIT ZERO");
+                    empire.setGoodsZeroTime(new DateTime(stepEndTime, zone));
                 }
             }
         }
@@ -498,8 +941,10 @@ public class Simulation {
             if (newPopulation < 100.0f && colony.isInCooldown()) {
                 newPopulation = 100.0f;
             }
-            log(String.format("    Colony[%d]: [delta=%.2f] [new=%.2f]",
-                              colony.getPlanetIndex(), populationIncrease, newPopulation));
+            if (logHandler != null) {
+                log(String.format("    Colony[%d]: [delta=%.2f] [new=%.2f]",
+                                  colony.getPlanetIndex(), populationIncrease, newPopulation));
+            }
             colony.setPopulation(newPopulation);
         }
 
@@ -517,10 +962,16 @@ public class Simulation {
             empire.setDeltaMineralsPerHour(mineralsDeltaPerHour);
             empire.setTaxPerHour(totalTaxPerHour);
         }
+
+        if (timed) {
+            phaseTimings.buildNanos += buildNanos;
+            phaseTimings.growthNanos += System.nanoTime() - startNanos - buildNanos;
+        }
     }
 
-    private void simulateCombat(BaseStar star, DateTime now, Duration dt) {
-        // if there's no fleets in ATTACKING mode, then there's nothing to do
+    private void simulateCombat(BaseStar star, long now, long dt) {
+        // if there's no fleets in ATTACKING mode, then there's nothing to do. This is by far the
+        // common case, so we check it before creating any DateTime objects.
         int numAttacking = 0;
         for (BaseFleet fleet : star.getFleets()) {
             if (fleet.getState() != BaseFleet.State.ATTACKING || isDestroyed(fleet, now)) {
@@ -532,10 +983,16 @@ public class Simulation {
             return;
         }
 
+        simulateCombat(star, new DateTime(now, zone), new Duration(dt), numAttacking);
+    }
+
+    private void simulateCombat(BaseStar star, DateTime now, Duration dt, int numAttacking) {
         // get the existing combat report, or create a new one
         BaseCombatReport combatReport = star.getCombatReport();
         if (combatReport == null) {
-            log(String.format("-- Combat [new combat report] [%d attacking]", numAttacking));
+            if (logHandler != null) {
+                log(String.format("-- Combat [new combat report] [%d attacking]", numAttacking));
+            }
             combatReport = star.createCombatReport(null);
             star.setCombatReport(combatReport);
         } else {
@@ -548,7 +1005,9 @@ public class Simulation {
                 }
             }
 
-            log(String.format("-- Combat, [loaded %d rounds] [%d attacking]", combatReport.getCombatRounds().size(), numAttacking));
+            if (logHandler != null) {
+                log(String.format("-- Combat, [loaded %d rounds] [%d attacking]", combatReport.getCombatRounds().size(), numAttacking));
+            }
         }
 
         DateTime attackStartTime = null;
@@ -574,7 +1033,9 @@ public class Simulation {
             return;
         }
 
-        // attacks happen in turns, each turn lasts for one minute
+        // attacks happen in turns, each turn lasts for one minute. Designs are looked up once for
+        // the whole combat.
+        HashMap<String, ShipDesign> designs = new HashMap<String, ShipDesign>();
         DateTime attackEndTime = now.plus(dt);
         while (now.isBefore(attackEndTime)) {
             if (now.isBefore(attackStartTime)) {
@@ -588,8 +1049,10 @@ public class Simulation {
             BaseCombatReport.CombatRound round = new BaseCombatReport.CombatRound();
             round.setStarKey(star.getKey());
             round.setRoundTime(now);
-            log(String.format("--- Round #%d [%s]", combatReport.getCombatRounds().size() + 1, now));
-            boolean stillAttacking = simulateCombatRound(now, star, round);
+            if (logHandler != null) {
+                log(String.format("--- Round #%d [%s]", combatReport.getCombatRounds().size() + 1, now));
+            }
+            boolean stillAttacking = simulateCombatRound(now, star, round, designs);
             if (combatReport.getStartTime() == null) {
                 combatReport.setStartTime(now);
             }
@@ -597,14 +1060,19 @@ public class Simulation {
             combatReport.getCombatRounds().add(round);
 
             if (!stillAttacking) {
-                log(String.format("--- Combat finished."));
+                log("--- Combat finished.");
                 break;
             }
             now = now.plusMinutes(1);
         }
     }
 
-    private boolean simulateCombatRound(DateTime now, BaseStar star, BaseCombatReport.CombatRound round) {
+    private boolean simulateCombatRound(DateTime now, BaseStar star, BaseCombatReport.CombatRound round,
+            HashMap<String, ShipDesign> designs) {
+        // Fleets that are friendly, with the same design and the same stance/state, fight as one
+        // fleet summary. We group them by a key made up of all those things.
+        HashMap<String, BaseCombatReport.FleetSummary> fleetSummaries =
+                new HashMap<String, BaseCombatReport.FleetSummary>();
         for (BaseFleet fleet : star.getFleets()) {
             if (isDestroyed(fleet, now)) {
                 continue;
@@ -614,71 +1082,64 @@ public class Simulation {
                 continue;
             }
 
-            BaseCombatReport.FleetSummary fleetSummary = new BaseCombatReport.FleetSummary(fleet);
-            round.getFleets().add(fleetSummary);
-        }
-
-        // now we go through the fleet summaries and join them together
-        for (int i = 0; i < round.getFleets().size(); i++) {
-            BaseCombatReport.FleetSummary fs1 = round.getFleets().get(i);
-            for (int j = i + 1; j < round.getFleets().size(); j++) {
-                BaseCombatReport.FleetSummary fs2 = round.getFleets().get(j);
-
-                if (!isFriendly(fs1, fs2)) {
-                    continue;
-                }
-                if (!fs1.getDesignID().equals(fs2.getDesignID())) {
-                    continue;
-                }
-                if (fs1.getFleetStance() != fs2.getFleetStance()) {
-                    continue;
-                }
-                if (fs1.getFleetState() != fs2.getFleetState()) {
-                    continue;
-                }
-
+            String summaryKey = getFriendlyGroupKey(fleet) + ":" + fleet.getDesignID() + ":"
+                    + fleet.getStance() + ":" + fleet.getState();
+            BaseCombatReport.FleetSummary fleetSummary = fleetSummaries.get(summaryKey);
+            if (fleetSummary == null) {
+                fleetSummary = new BaseCombatReport.FleetSummary(fleet);
+                fleetSummaries.put(summaryKey, fleetSummary);
+                round.getFleets().add(fleetSummary);
+            } else {
                 // same empire, same design, same stance/state -- join 'em!
-                fs1.addShips(fs2);
-                round.getFleets().remove(j);
-                j--;
+                fleetSummary.addFleet(fleet);
             }
         }
 
-        for (int i = 0; i < round.getFleets().size(); i++) {
+        // Work out everything we need to know about each fleet summary up front, so that the
+        // rest of the round is just array lookups.
+        int numFleets = round.getFleets().size();
+        ShipDesign[] fleetDesigns = new ShipDesign[numFleets];
+        String[] friendlyGroups = new String[numFleets];
+        for (int i = 0; i < numFleets; i++) {
             BaseCombatReport.FleetSummary fleet = round.getFleets().get(i);
             fleet.setIndex(i);
+            fleetDesigns[i] = getShipDesign(designs, fleet.getDesignID());
+            friendlyGroups[i] = getFriendlyGroupKey(fleet.getFleets().get(0));
         }
 
         // each fleet targets and fires at once
-        TreeMap<Integer, Double> hits = new TreeMap<Integer, Double>();
-        for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
+        double[] hits = new double[numFleets];
+        boolean[] wasHit = new boolean[numFleets];
+        for (int i = 0; i < numFleets; i++) {
+            BaseCombatReport.FleetSummary fleet = round.getFleets().get(i);
             if (fleet.getFleetState() != BaseFleet.State.ATTACKING) {
                 continue;
             }
 
-            BaseCombatReport.FleetSummary target = findTarget(round, fleet);
-            if (target == null) {
+            int targetIndex = findTarget(round, fleetDesigns, friendlyGroups, i);
+            if (targetIndex < 0) {
                 // if there's no more available targets, then we're no longer attacking
-                log(String.format("    Fleet #%d no suitable target.", fleet.getIndex()));
+                if (logHandler != null) {
+                    log(String.format("    Fleet #%d no suitable target.", fleet.getIndex()));
+                }
                 fleet.setFleetState(BaseFleet.State.IDLE);
                 continue;
-            } else {
+            }
+            BaseCombatReport.FleetSummary target = round.getFleets().get(targetIndex);
+            if (logHandler != null) {
                 log(String.format("    Fleet #%d attacking fleet #%d", fleet.getIndex(), target.getIndex()));
             }
 
-            ShipDesign fleetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-            float damage = fleet.getNumShips() * fleetDesign.getBaseAttack();
-            log(String.format("    Fleet #%d (%s x %.2f) hit by fleet #%d (%s x %.2f) for %.2f damage",
-                    target.getIndex(), target.getDesignID(), target.getNumShips(),
-                    fleet.getIndex(), fleet.getDesignID(), fleet.getNumShips(), damage));
-
-            Double totalDamage = hits.get(target.getIndex());
-            if (totalDamage == null) {
-                hits.put(target.getIndex(), new Double(damage));
-            } else {
-                hits.put(target.getIndex(), new Double(totalDamage + damage));
+            float damage = fleet.getNumShips() * fleetDesigns[i].getBaseAttack();
+            if (logHandler != null) {
+                log(String.format("    Fleet #%d (%s x %.2f) hit by fleet #%d (%s x %.2f) for %.2f damage",
+                        target.getIndex(), target.getDesignID(), target.getNumShips(),
+                        fleet.getIndex(), fleet.getDesignID(), fleet.getNumShips(), damage));
             }
 
+            hits[targetIndex] += damage;
+            wasHit[targetIndex] = true;
+
             BaseCombatReport.FleetAttackRecord attackRecord = new BaseCombatReport.FleetAttackRecord(
                     round.getFleets(), fleet.getIndex(), target.getIndex(), damage);
             round.getFleetAttackRecords().add(attackRecord);
@@ -686,41 +1147,40 @@ public class Simulation {
 
         // any fleets that were attacked this round will want to change to attacking for the next
         // round, if they're not attacking already...
-        for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-            if (!hits.keySet().contains(fleet.getIndex())) {
+        for (int i = 0; i < numFleets; i++) {
+            if (!wasHit[i]) {
                 continue;
             }
+            BaseCombatReport.FleetSummary fleet = round.getFleets().get(i);
             for (BaseFleet targetFleet : fleet.getFleets()) {
                 if (targetFleet.getState() == BaseFleet.State.IDLE) {
-                    ShipDesign targetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-                    ArrayList<ShipEffect> effects = targetDesign.getEffects(ShipEffect.class);
+                    ArrayList<ShipEffect> effects = fleetDesigns[i].getEffects(ShipEffect.class);
                     for (ShipEffect effect : effects) {
                         effect.onAttacked(star, targetFleet);
                     }
                 }
             }
-
         }
 
         // next, apply the damage from this round
-        for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-            Double damage = hits.get(fleet.getIndex());
-            if (damage == null) {
+        for (int i = 0; i < numFleets; i++) {
+            if (!wasHit[i]) {
                 continue;
             }
+            BaseCombatReport.FleetSummary fleet = round.getFleets().get(i);
 
-            ShipDesign fleetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-            damage /= fleetDesign.getBaseDefence();
-            fleet.removeShips((float) (double) damage);
-            log(String.format("    Fleet #%d %.2f ships lost (%.2f ships remaining)", fleet.getIndex(), damage, fleet.getNumShips()));
+            double damage = hits[i] / fleetDesigns[i].getBaseDefence();
+            fleet.removeShips((float) damage);
+            if (logHandler != null) {
+                log(String.format("    Fleet #%d %.2f ships lost (%.2f ships remaining)", fleet.getIndex(), damage, fleet.getNumShips()));
+            }
 
             BaseCombatReport.FleetDamagedRecord damageRecord = new BaseCombatReport.FleetDamagedRecord(
-                    round.getFleets(), fleet.getIndex(), (float) damage.doubleValue());
+                    round.getFleets(), fleet.getIndex(), (float) damage);
             round.getFleetDamagedRecords().add(damageRecord);
 
             // go through the "real" fleets and apply the damage as well
-            for (String fleetKey : fleet.getFleetKeys()) {
-                BaseFleet realFleet = star.findFleet(fleetKey);
+            for (BaseFleet realFleet : fleet.getFleets()) {
                 float newNumShips = (float)(realFleet.getNumShips() - damage);
                 if (newNumShips <= 0) {
                     newNumShips = 0;
@@ -738,25 +1198,17 @@ public class Simulation {
 
         // if all the fleets are friendly (or running away), we can stop attacking
         boolean enemyExists = false;
-        for (int i = 0; i < star.getFleets().size(); i++) {
-            BaseFleet fleet1 = star.getFleets().get(i);
-            if (isDestroyed(fleet1, now) || fleet1.getState() == BaseFleet.State.MOVING) {
+        String firstFriendlyGroup = null;
+        for (BaseFleet fleet : star.getFleets()) {
+            if (isDestroyed(fleet, now) || fleet.getState() == BaseFleet.State.MOVING) {
                 continue;
             }
-
-            for (int j = i + 1; j < star.getFleets().size(); j++) {
-                BaseFleet fleet2 = star.getFleets().get(j);
-                if (isDestroyed(fleet2, now)) {
-                    continue;
-                }
-
-                if (!isFriendly(fleet1, fleet2)) {
-                    if (fleet2.getState() == BaseFleet.State.MOVING) {
-                        // if it's moving, it doesn't count
-                        continue;
-                    }
-                    enemyExists = true;
-                }
+            String friendlyGroup = getFriendlyGroupKey(fleet);
+            if (firstFriendlyGroup == null) {
+                firstFriendlyGroup = friendlyGroup;
+            } else if (!firstFriendlyGroup.equals(friendlyGroup)) {
+                enemyExists = true;
+                break;
             }
         }
         if (!enemyExists) {
@@ -772,34 +1224,54 @@ public class Simulation {
     }
 
     /**
-     * Searches for an enemy fleet with the lowest priority.
+     * Searches for an enemy fleet with the lowest priority, and returns its index (or -1 if there
+     * isn't one).
      */
-    private BaseCombatReport.FleetSummary findTarget(BaseCombatReport.CombatRound round,
-                                                     BaseCombatReport.FleetSummary fleet) {
+    private static int findTarget(BaseCombatReport.CombatRound round, ShipDesign[] fleetDesigns,
+            String[] friendlyGroups, int fleetIndex) {
         int foundPriority = 9999;
-        BaseCombatReport.FleetSummary foundFleet = null;
+        int foundIndex = -1;
 
-        for (BaseCombatReport.FleetSummary otherFleet : round.getFleets()) {
-            if (isFriendly(fleet, otherFleet)) {
+        for (int i = 0; i < friendlyGroups.length; i++) {
+            if (friendlyGroups[i].equals(friendlyGroups[fleetIndex])) {
                 continue;
             }
-            if (otherFleet.getFleetState() == BaseFleet.State.MOVING) {
+            if (round.getFleets().get(i).getFleetState() == BaseFleet.State.MOVING) {
                 continue;
             }
-            ShipDesign design = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, otherFleet.getDesignID());
-            if (foundFleet == null || design.getCombatPriority() < foundPriority) {
-                foundFleet = otherFleet;
-                foundPriority = design.getCombatPriority();
+            int priority = fleetDesigns[i].getCombatPriority();
+            if (foundIndex < 0 || priority < foundPriority) {
+                foundIndex = i;
+                foundPriority = priority;
             }
         }
 
-        return foundFleet;
+        return foundIndex;
     }
 
-    private static boolean isFriendly(BaseCombatReport.FleetSummary fleet1, BaseCombatReport.FleetSummary fleet2) {
-        BaseFleet baseFleet1 = fleet1.getFleets().get(0);
-        BaseFleet baseFleet2 = fleet2.getFleets().get(0);
-        return isFriendly(baseFleet1, baseFleet2);
+    /**
+     * Gets a key which is the same for two fleets if and only if they're friendly (see
+     * \c isFriendly): natives are all friendly with each other, and otherwise fleets are friendly
+     * if they're in the same alliance or (if they're not in an alliance) the same empire.
+     */
+    private static String getFriendlyGroupKey(BaseFleet fleet) {
+        if (fleet.getEmpireKey() == null) {
+            return "native";
+        }
+        if (fleet.getAllianceID() != null) {
+            return "alliance:" + fleet.getAllianceID();
+        }
+        return "empire:" + fleet.getEmpireKey();
+    }
+
+    /** Gets the \c ShipDesign with the given ID, caching it in the given map. */
+    private static ShipDesign getShipDesign(HashMap<String, ShipDesign> designs, String designID) {
+        ShipDesign design = designs.get(designID);
+        if (design == null) {
+            design = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, designID);
+            designs.put(designID, design);
+        }
+        return design;
     }
 
     public static boolean isFriendly(BaseFleet fleet1, BaseFleet fleet2) {
@@ -827,12 +1299,34 @@ public class Simulation {
     }
 
     private boolean isDestroyed(BaseFleet fleet, DateTime now) {
-        if (fleet.getTimeDestroyed() != null && !fleet.getTimeDestroyed().isAfter(now)) {
+        return isDestroyed(fleet, now.getMillis());
+    }
+
+    private boolean isDestroyed(BaseFleet fleet, long now) {
+        if (fleet.getTimeDestroyed() != null && fleet.getTimeDestroyed().getMillis() <= now) {
             return true;
         }
         return false;
     }
 
+    /**
+     * The total time (in nanoseconds) spent in each phase of the simulation. Growth, build and
+     * combat only count the simulation up to "now", everything after that (including growth,
+     * builds and combat in the prediction star) counts as prediction.
+     */
+    public static class PhaseTimings {
+        public long growthNanos;
+        public long buildNanos;
+        public long combatNanos;
+        public long predictionNanos;
+    }
+
+    /** Scratch space for \c calculateProductionRates. */
+    private static class ProductionRates {
+        public float netGoodsPerHour;
+        public float mineralsPerHour;
+    }
+
     /**
      * This interface is used to help debug the simulation code. Implement it to receive a bunch
      * of debug log messages during the simulation process.
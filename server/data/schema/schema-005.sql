@@ -0,0 +1,16 @@
+
+-- Every server node that's taking part in event processing and star simulation heartbeats its
+-- row in this table. Nodes that haven't heartbeated recently are considered dead.
+CREATE TABLE server_nodes (
+  name VARCHAR(200) NOT NULL PRIMARY KEY,
+  heartbeat_time TIMESTAMP WITH TIME ZONE NOT NULL
+);
+
+-- Stars are hashed into a fixed number of buckets (see ShardManager.NUM_BUCKETS), and each bucket
+-- is leased to one node, which processes the events and simulations of the stars in it.
+CREATE TABLE shard_leases (
+  bucket INT NOT NULL PRIMARY KEY,
+  node_name VARCHAR(200), -- null if nobody owns the bucket
+  lease_expiry TIMESTAMP WITH TIME ZONE
+);
+INSERT INTO shard_leases (bucket) SELECT generate_series(0, 255);
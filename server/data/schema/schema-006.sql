@@ -0,0 +1,4 @@
+
+-- Bumped every time the star is saved. StarController only saves a star if the version is still
+-- the one it loaded, so a concurrent writer can't silently overwrite somebody else's changes.
+ALTER TABLE stars ADD COLUMN version BIGINT NOT NULL DEFAULT 0;
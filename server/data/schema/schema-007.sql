@@ -0,0 +1,8 @@
+
+-- Every server node with a read replica configured sets this (on the primary) every second, and
+-- reads it back from the replica to work out how far behind the replica is.
+CREATE TABLE replication_heartbeat (
+  id INT NOT NULL PRIMARY KEY,
+  heartbeat_time TIMESTAMP WITH TIME ZONE NOT NULL
+);
+INSERT INTO replication_heartbeat (id, heartbeat_time) VALUES (1, NOW());
@@ -0,0 +1,4 @@
+
+-- The empires with a notification handler (i.e. a long-poll) on each server node, updated with its
+-- heartbeat, so that every node knows who's online no matter which node they're connected to.
+ALTER TABLE server_nodes ADD COLUMN online_empire_ids INT[];
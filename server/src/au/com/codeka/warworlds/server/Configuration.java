@@ -3,6 +3,9 @@ package au.com.codeka.warworlds.server;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.util.Map;
+
+import au.com.codeka.warworlds.server.ctrl.NotificationBus;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -33,8 +36,14 @@ public class Configuration {
   private String dataDirectory;
   private int listenPort;
   private Integer numStarSimulationThreads;
+  private String starSimulationPolicy;
+  private Integer numEventThreads;
+  private String notificationBus;
+  private Integer slowQueryThresholdMs;
+  private Integer starCacheMaxWeight;
   private DatabaseConfiguration database;
   private SinbinConfiguration sinbin;
+  private ShardingConfiguration sharding;
 
   public String getRealmName() {
     return realmName;
@@ -55,6 +64,52 @@ public class Configuration {
     return numStarSimulationThreads.intValue();
   }
 
+  /** The name of the {@link StarSimulationPolicy} to use, "urgency" by default. */
+  public String getStarSimulationPolicy() {
+    if (starSimulationPolicy == null) {
+      return StarSimulationPolicy.Urgency.NAME;
+    }
+    return starSimulationPolicy;
+  }
+
+  /** The number of threads that process events (fleets arriving, builds completing, etc). */
+  public int getNumEventThreads() {
+    if (numEventThreads == null) {
+      return 4;
+    }
+    return numEventThreads.intValue();
+  }
+
+  /** The name of the {@link NotificationBus} to use, "in-process" by default. */
+  public String getNotificationBus() {
+    if (notificationBus == null) {
+      return NotificationBus.InProcess.NAME;
+    }
+    return notificationBus;
+  }
+
+  /**
+   * SQL statements that take at least this long are logged, and shown (with their parameters) in
+   * the backend. 0 turns it off.
+   */
+  public int getSlowQueryThresholdMs() {
+    if (slowQueryThresholdMs == null) {
+      return 500;
+    }
+    return slowQueryThresholdMs.intValue();
+  }
+
+  /**
+   * How big \c StarCache is allowed to get: each star weighs one, plus one for each of its
+   * colonies, buildings, fleets, empire presences and build requests. 0 turns it off.
+   */
+  public int getStarCacheMaxWeight() {
+    if (starCacheMaxWeight == null) {
+      return 100000;
+    }
+    return starCacheMaxWeight.intValue();
+  }
+
   public DatabaseConfiguration getDatabaseConfig() {
     return database;
   }
@@ -63,6 +118,11 @@ public class Configuration {
     return sinbin;
   }
 
+  /** Configuration for running more than one node against the same database, may be null. */
+  public ShardingConfiguration getShardingConfig() {
+    return sharding;
+  }
+
   public static class DatabaseConfiguration {
     private String server;
     private int port;
@@ -70,6 +130,8 @@ public class Configuration {
     private String schema;
     private String username;
     private String password;
+    private Map<String, PoolConfiguration> pools;
+    private ReplicaConfiguration replica;
 
     public String getServer() {
       return server;
@@ -94,6 +156,60 @@ public class Configuration {
     public String getPassword() {
       return password;
     }
+
+    /** The read replica to send read-only queries to, null if there isn't one. */
+    public ReplicaConfiguration getReplicaConfig() {
+      return replica;
+    }
+
+    /** Overrides for the connection pool with the given name (see \c DB.Pool), may be null. */
+    public PoolConfiguration getPoolConfig(String name) {
+      if (pools == null) {
+        return null;
+      }
+      return pools.get(name);
+    }
+  }
+
+  /**
+   * A streaming replica of the main database. It's assumed to have the same database name, schema
+   * and users as the primary.
+   */
+  public static class ReplicaConfiguration {
+    private String server;
+    private int port;
+    private Long maxStalenessMs;
+
+    public String getServer() {
+      return server;
+    }
+
+    public int getPort() {
+      return port;
+    }
+
+    /** If the replica is further behind the primary than this, we use the primary instead. */
+    public long getMaxStalenessMs() {
+      if (maxStalenessMs == null) {
+        return 5000;
+      }
+      return maxStalenessMs.longValue();
+    }
+  }
+
+  public static class PoolConfiguration {
+    private Integer maxConnections;
+    private Long connectionTimeoutMs;
+
+    /** The most connections the pool will open, or null for the pool's default. */
+    public Integer getMaxConnections() {
+      return maxConnections;
+    }
+
+    /** How long to wait for a connection before giving up, or null for the pool's default. */
+    public Long getConnectionTimeoutMs() {
+      return connectionTimeoutMs;
+    }
   }
 
   public static class SinbinConfiguration {
@@ -118,4 +234,18 @@ public class Configuration {
       return maxVotesPerDay;
     }
   }
+
+  public static class ShardingConfiguration {
+    private boolean enabled;
+    private String nodeName;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    /** The name of this node, must be unique among nodes. Null to use host name and port. */
+    public String getNodeName() {
+      return nodeName;
+    }
+  }
 }
@@ -1,11 +1,11 @@
 package au.com.codeka.warworlds.server;
 
-import java.sql.Timestamp;
-
 import org.joda.time.DateTime;
 
-import au.com.codeka.warworlds.server.data.DB;
-import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.common.Log;
+import au.com.codeka.common.model.Simulation;
+import au.com.codeka.warworlds.server.ctrl.StarController;
+import au.com.codeka.warworlds.server.model.Star;
 
 /**
  * This is the base class for events, which the \see EventProcessor uses to schedule
@@ -13,32 +13,145 @@ import au.com.codeka.warworlds.server.data.SqlStmt;
  * is schedule to be run when the fleet arrives at it's destination.
  */
 public abstract class Event {
+    private static final Log log = new Log("Event");
+    private final EventMetrics mMetrics = new EventMetrics(getClass().getSimpleName());
+
+    /**
+     * Gets the \see DateTime the next event of this type is supposed to run on the given star, or
+     * null if there's nothing scheduled on it. It's used by the default \c schedule.
+     */
+    protected DateTime getNextEventTime(Star star) {
+        return null;
+    }
+
+    /**
+     * This is called every time a star is saved, to tell the \c EventProcessor when the next
+     * events of this kind that the star knows about are due. Usually that's just the next event
+     * on the star itself, but a fleet's arrival (for example) is processed on the star it's moving
+     * to, while the fleet is still on the star it's leaving.
+     */
+    public void schedule(Star star, EventProcessor.Schedule schedule) {
+        schedule.set(star.getID(), getNextEventTime(star));
+    }
+
+    /**
+     * Processes all of the events of this kind that are due on the given star. We'll need to fetch
+     * details of the events from the database and perform whatever actions are required. If this
+     * throws, the star is rescheduled to try again a little later.
+     */
+    protected abstract void processStar(int starID) throws Exception;
+
+    /**
+     * Gets the SQL that will return, for every star with an event of this kind scheduled, the
+     * star's ID and the date/time of the next event on it. It's used to build the
+     * \see EventProcessor's schedule at startup, and to find the next event on a star once its
+     * events have been processed.
+     */
+    protected abstract String getScheduleSql();
+
     /**
-     * Gets the \see DateTime the next event of this type is supposed to run.
+     * This is called by the \c EventProcessor when the next event of this kind on the given star is
+     * due. It queues a task that calls \c processStar (see \c EventProcessor.submit), so events on
+     * different stars are processed in parallel.
+     *
+     * Stars that belong to another node (see \c ShardManager) are skipped, that node will process
+     * their events.
      */
-    public DateTime getNextEventTime() {
-        try (SqlStmt stmt = DB.prepare(getNextEventTimeSql())) {
-            Timestamp ts = stmt.selectFirstValue(Timestamp.class);
-            if (ts == null) {
-                return null;
+    public void process(final int starID) {
+        if (!ShardManager.i.isOwned(starID)) {
+            return;
+        }
+        final String name = mMetrics.getName();
+        EventProcessor.i.submit(starID, name + ":" + starID, new Runnable() {
+            @Override
+            public void run() {
+                RequestContext.i.setContext("event: " + name + " star.id=" + starID);
+                mMetrics.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processStar(starID);
+                            EventProcessor.i.onProcessed(Event.this, starID);
+                        } catch (Exception e) {
+                            log.error("Error processing %s on star %d, will try again later.",
+                                    name, starID, e);
+                            EventProcessor.i.retry(Event.this, starID);
+                        }
+                    }
+                });
             }
+        });
+    }
 
-            return new DateTime(ts.getTime());
-        } catch(Exception e) {
-            // todo: log errors
-            return null;
+    /**
+     * Processes the events of this kind that are due on the given star on this thread, rather than
+     * queuing them like \c process does. It's for request handlers that have just made an event
+     * due and want it done before they respond (e.g. accelerating a build to completion).
+     *
+     * Unlike \c process, this doesn't care which node owns the star, so \c processStar must be
+     * safe to run on two nodes at once (e.g. by claiming the events it processes).
+     */
+    public void processNow(int starID) {
+        try {
+            processStar(starID);
+            EventProcessor.i.onProcessed(this, starID);
+        } catch (Exception e) {
+            log.error("Error processing %s on star %d, will try again later.",
+                    mMetrics.getName(), starID, e);
+            EventProcessor.i.retry(this, starID);
         }
     }
 
     /**
-     * This is called when it's time to process (at least) one event. We'll need to fetch details
-     * from the database of the event and perform whatever actions are required.
+     * Should be called for each event as it's processed, with the time it was scheduled for, so
+     * that we can keep track of how far behind we're running.
      */
-    public abstract void process();
+    protected void onEventProcessed(DateTime scheduledTime) {
+        mMetrics.onEventProcessed(scheduledTime);
+    }
 
     /**
-     * Gets the SQL that will return (as the first column in the first row) the date/time the next
-     * event of this kind is scheduled to run.
+     * Saves the given star, which has been simulated with \c sim. If somebody else has saved it
+     * since we loaded it, we can't just give up (the event has happened), so we load it again,
+     * simulate it and save it with \c StarController.modify, letting \c mutator make our changes
+     * to the fresh copy. Anything we've written to the database directly (new fleets, buildings and
+     * so on) is already in the fresh copy, so \c mutator only has to redo in-memory changes.
+     *
+     * @return The star, as it was saved.
      */
-    protected abstract String getNextEventTimeSql();
+    protected static Star saveStar(Star star, Simulation sim, StarController.StarMutator mutator)
+            throws RequestException {
+        try {
+            new StarController().update(star);
+            return star;
+        } catch (StarController.StarModifiedException e) {
+            log.info("Star %d was modified while we were processing its events, retrying.",
+                    star.getID());
+            return new StarController().modify(star.getID(), sim, mutator);
+        }
+    }
+
+    /** Like \c saveStar(Star, Simulation, StarMutator), when we've got nothing to redo. */
+    protected static Star saveStar(Star star, Simulation sim) throws RequestException {
+        return saveStar(star, sim, new StarController.StarMutator() {
+            @Override
+            public void mutate(Star star) {
+            }
+        });
+    }
+
+    public EventMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** Returns the earlier of the two given times, either of which may be null. */
+    protected static DateTime earliest(DateTime a, DateTime b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return a.isBefore(b) ? a : b;
+    }
 }
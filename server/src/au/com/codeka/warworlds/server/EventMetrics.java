@@ -0,0 +1,70 @@
+package au.com.codeka.warworlds.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.warworlds.server.utils.Histogram;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Keeps track of how one kind of \see Event is doing: how late events run compared to when they
+ * were scheduled, how long each pass over a star takes, and how many events each pass handles.
+ */
+public class EventMetrics {
+    private final String mName;
+    private final Histogram mLagMs = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+    private final Histogram mDurationMs = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+    private final Histogram mEventsPerPass = new Histogram(Histogram.COUNT_BOUNDS);
+    private final AtomicLong mNumProcessed = new AtomicLong();
+
+    /** The number of events processed so far by the pass running on the current thread. */
+    private final ThreadLocal<int[]> mCurrentPass = new ThreadLocal<int[]>();
+
+    public EventMetrics(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /** Runs one pass of processing (usually all of the due events on one star) and times it. */
+    public void run(Runnable pass) {
+        int[] numEvents = new int[1];
+        mCurrentPass.set(numEvents);
+        long startTime = System.nanoTime();
+        try {
+            pass.run();
+        } finally {
+            mDurationMs.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            mEventsPerPass.record(numEvents[0]);
+            mCurrentPass.remove();
+        }
+    }
+
+    /**
+     * Records that an event scheduled for the given time has been processed. Events are picked up
+     * a little before they're due, so anything early counts as being on time.
+     */
+    public void onEventProcessed(DateTime scheduledTime) {
+        mNumProcessed.incrementAndGet();
+        if (scheduledTime != null) {
+            mLagMs.record(Math.max(0, System.currentTimeMillis() - scheduledTime.getMillis()));
+        }
+
+        int[] numEvents = mCurrentPass.get();
+        if (numEvents != null) {
+            numEvents[0]++;
+        }
+    }
+
+    public void populateMetrics(JsonObject json) {
+        json.addProperty("num_processed", mNumProcessed.get());
+        json.add("lag_ms", mLagMs.toJson());
+        json.add("duration_ms", mDurationMs.toJson());
+        json.add("events_per_pass", mEventsPerPass.toJson());
+    }
+}
@@ -1,35 +1,86 @@
 package au.com.codeka.warworlds.server;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.joda.time.DateTime;
-import org.joda.time.Seconds;
 
 import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.ctrl.NotificationController;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.SqlResult;
+import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.events.*;
+import au.com.codeka.warworlds.server.model.Star;
+import au.com.codeka.warworlds.server.utils.Histogram;
+
+import com.google.gson.JsonObject;
 
 /**
  * The \c EventProcessor looks at all events scheduled for the future (e.g. fleet arrives at
  * star, build completes, etc) and schedules itself to pick up the work of the event when it's
  * scheduled to occur.
+ *
+ * We keep the schedule in memory: it's loaded from the database when the processor starts, and
+ * after that every star that's saved tells us about its next events (see \c onStarUpdated). So
+ * we only ever wake up when there's actually something to do.
+ *
+ * The event thread itself only takes each star off the schedule as its next event comes due: the
+ * work of processing that star's events is handed off to a \c StarPartitionedExecutor (see
+ * \c submit), so events on different stars are processed in parallel. If that fails, the star is
+ * put back in the schedule to try again (see \c retry).
  */
 public class EventProcessor {
     private final Log log = new Log("EventProcessor");
     public static EventProcessor i = new EventProcessor();
 
-    private static ArrayList<Class<?>> sEventClasses;
+    /**
+     * Every now and then we reload the schedule from the database, in case something changed an
+     * event's time without going through \c StarController.update.
+     */
+    private static final long RELOAD_INTERVAL_MS = 10 * 60 * 1000L;
+
+    /** If processing the events on a star fails, we try again after this long. */
+    private static final long RETRY_INTERVAL_MS = 60 * 1000L;
+
+    /** We compact the queue once it has this many more entries than there are events scheduled. */
+    private static final int MAX_STALE_ENTRIES = 1000;
+
+    private static ArrayList<Event> sEvents;
     static {
-        sEventClasses = new ArrayList<Class<?>>();
-        sEventClasses.add(FleetMoveCompleteEvent.class);
-        sEventClasses.add(BuildCompleteEvent.class);
-        sEventClasses.add(FleetDestroyedEvent.class);
-        sEventClasses.add(EmpireStarGoodsReachedZeroEvent.class);
+        sEvents = new ArrayList<Event>();
+        sEvents.add(new FleetMoveCompleteEvent());
+        sEvents.add(new BuildCompleteEvent());
+        sEvents.add(new FleetDestroyedEvent());
+        sEvents.add(new EmpireStarGoodsReachedZeroEvent());
     }
 
+    /**
+     * The next event of each kind on each star, ordered by time. Like the star simulator's
+     * schedule, rescheduled entries are left in the queue and skipped if they no longer match
+     * what's in \c mScheduled when they come up. Some of them (e.g. builds that have stalled) are
+     * due years from now, so if too many build up, \c compact rebuilds the queue.
+     */
+    private final DelayQueue<ScheduledEvent> mQueue = new DelayQueue<ScheduledEvent>();
+    private final ConcurrentHashMap<Long, ScheduledEvent> mScheduled =
+            new ConcurrentHashMap<Long, ScheduledEvent>();
+    private final AtomicBoolean mCompacting = new AtomicBoolean();
+
+    /** How late the event thread picks up events, and how many tasks are queued after each one. */
+    private final Histogram mDispatchLagMs = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+    private final Histogram mQueueDepth = new Histogram(Histogram.COUNT_BOUNDS);
+
     private Thread mThread;
+    private volatile StarPartitionedExecutor mExecutor;
+    private volatile boolean mStarted;
     private Runnable mThreadRunnable = new Runnable() {
         @Override
         public void run() {
+            DB.setThreadPool(DB.Pool.EVENTS);
             while (true) {
                 threadProc();
             }
@@ -37,81 +88,327 @@ public class EventProcessor {
     };
 
     /**
-     * Call this every now and then (at the very least, every time a new event is scheduled)
-     * to make sure we're going to wake up at the correct time to handle the next event.
+     * Makes sure the event processor is running. It doesn't need to be told about new events,
+     * since it hears about them from \c onStarUpdated.
      */
-    public void ping() {
+    public synchronized void ping() {
         if (mThread == null || !mThread.isAlive()) {
+            if (mExecutor == null) {
+                mExecutor = new StarPartitionedExecutor("EventWorker",
+                        Configuration.i.getNumEventThreads(), DB.Pool.EVENTS);
+            }
+            mStarted = true;
             mThread = new Thread(mThreadRunnable);
             mThread.setDaemon(true);
             mThread.setName("EventProcessor");
             mThread.start();
+        }
+    }
+
+    /**
+     * Queues the given task to process an event on the given star. Tasks for the same star are run
+     * in order, tasks for different stars in parallel. If a task with the same \c key is already
+     * queued, this one is ignored. If the event processor isn't running, the task is run now.
+     */
+    public void submit(int starID, String key, Runnable task) {
+        StarPartitionedExecutor executor = mExecutor;
+        if (executor == null) {
+            task.run();
         } else {
-            // calling interrupt will cause the thread to wake up and loop around again
-            mThread.interrupt();
+            executor.submit(starID, key, task);
+        }
+    }
+
+    /**
+     * Called whenever a star is saved, to update the schedule of events on that star (and on the
+     * stars it has fleets moving to). Events on stars that belong to another node are sent to
+     * that node over the \c NotificationBus, see \c onStarUpdatedElsewhere.
+     */
+    public void onStarUpdated(Star star) {
+        if (!mStarted) {
+            return;
+        }
+
+        ArrayList<ScheduledEvent> elsewhere = new ArrayList<ScheduledEvent>();
+        for (int eventIndex = 0; eventIndex < sEvents.size(); eventIndex++) {
+            sEvents.get(eventIndex).schedule(star, new Schedule(eventIndex, elsewhere));
+        }
+        if (elsewhere.isEmpty()) {
+            return;
+        }
+
+        int[] starIDs = new int[elsewhere.size()];
+        int[] eventIndices = new int[elsewhere.size()];
+        long[] dueTimesMs = new long[elsewhere.size()];
+        for (int i = 0; i < elsewhere.size(); i++) {
+            starIDs[i] = elsewhere.get(i).starID;
+            eventIndices[i] = elsewhere.get(i).eventIndex;
+            dueTimesMs[i] = elsewhere.get(i).dueTimeMs;
+        }
+        NotificationController.publishEvents(starIDs, eventIndices, dueTimesMs);
+    }
+
+    /**
+     * Called (on every node) when a star that belongs to another node was saved, with the events
+     * that are now due on it, see \c onStarUpdated. The node that owns each star brings its next
+     * event forward, if it's earlier than what we've got. If it's later, we'll find nothing to do
+     * when we get to the earlier time, and pick up the right time from the database then.
+     */
+    public void onStarUpdatedElsewhere(int[] starIDs, int[] eventIndices, long[] dueTimesMs) {
+        if (!mStarted) {
+            return;
+        }
+
+        for (int i = 0; i < starIDs.length; i++) {
+            if (ShardManager.i.isOwned(starIDs[i])) {
+                scheduleIfEarlier(eventIndices[i], starIDs[i], dueTimesMs[i]);
+            }
+        }
+    }
+
+    /**
+     * Called when processing the given kind of event on the given star fails, so that it's tried
+     * again in a little while (unless it's already due before then).
+     */
+    public void retry(Event event, int starID) {
+        scheduleIfEarlier(getEventIndex(event), starID,
+                System.currentTimeMillis() + RETRY_INTERVAL_MS);
+    }
+
+    /**
+     * Called after the given kind of event has been processed on the given star, to schedule the
+     * next one. Normally saving the star has already done that, but not all events are known to
+     * the star they're processed on (see \c Schedule.bringForward), so we check the database.
+     */
+    public void onProcessed(Event event, int starID) {
+        int eventIndex = getEventIndex(event);
+        String sql = "SELECT due_time FROM (" + event.getScheduleSql() + ") AS s (star_id, due_time)"
+                + " WHERE star_id = ?";
+        try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setInt(1, starID);
+            SqlResult res = stmt.select();
+            if (res.next()) {
+                schedule(eventIndex, starID, res.getDateTime(1).getMillis());
+            } else {
+                mScheduled.remove(getKey(eventIndex, starID));
+            }
+        } catch (Exception e) {
+            log.error("Error rescheduling events.", e);
+            retry(event, starID);
+        }
+    }
+
+    /**
+     * Reloads the schedule from the database, e.g. because we've just taken over some stars from
+     * another node (see \c ShardManager).
+     */
+    public void reloadSchedule() {
+        if (mStarted) {
+            loadSchedule();
+        }
+    }
+
+    /**
+     * Adds metrics about the event schedule and queue, and about each kind of event, to the given
+     * \c JsonObject.
+     */
+    public void populateMetrics(JsonObject json) {
+        StarPartitionedExecutor executor = mExecutor;
+        json.addProperty("num_scheduled", mScheduled.size());
+        json.addProperty("queue_size", mQueue.size());
+        json.addProperty("num_queued", executor == null ? 0 : executor.getNumPending());
+        json.add("dispatch_lag_ms", mDispatchLagMs.toJson());
+        json.add("queue_depth", mQueueDepth.toJson());
+
+        JsonObject eventsJson = new JsonObject();
+        for (Event event : sEvents) {
+            JsonObject eventJson = new JsonObject();
+            event.getMetrics().populateMetrics(eventJson);
+            eventsJson.add(event.getMetrics().getName(), eventJson);
         }
+        json.add("events", eventsJson);
     }
 
     /**
      * This method is called in a background thread to actually process events. Basically, we
-     * just loop forever checking for new events and waiting for those events to happen.
+     * just loop forever waiting for the next event in the schedule to come due.
      */
     private void threadProc() {
         log.info("EventProcessor thread starting.");
-        DateTime lastEventDateTime = null;
+        loadSchedule();
+        long nextReloadTime = System.currentTimeMillis() + RELOAD_INTERVAL_MS;
 
         while (true) {
-            // work out when the next event is scheduled
-            DateTime nextEventDateTime = null;
-            ArrayList<Event> events = new ArrayList<Event>();
-            for (Class<?> eventClass : sEventClasses) {
-                Event event;
-                try {
-                    event = (Event) eventClass.newInstance();
-                } catch (InstantiationException | IllegalAccessException e) {
-                    continue;
-                }
+            long now = System.currentTimeMillis();
+            if (now >= nextReloadTime) {
+                loadSchedule();
+                nextReloadTime = now + RELOAD_INTERVAL_MS;
+            }
 
-                DateTime next = event.getNextEventTime();
-                if (next != null) {
-                    log.debug(String.format("Event %s says next event is at %s", eventClass.getName(), next));
-                }
-                if (next != null && next.isBefore(DateTime.now())) {
-                    events.add(event);
-                }
-                if (next != null && (nextEventDateTime == null || next.isBefore(nextEventDateTime))) {
-                    nextEventDateTime = next;
-                }
+            ScheduledEvent next;
+            try {
+                next = mQueue.poll(nextReloadTime - now, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (next == null) {
+                continue;
+            }
+            if (!mScheduled.remove(getKey(next.eventIndex, next.starID), next)) {
+                // it's been rescheduled (or removed) since this entry was added
+                continue;
+            }
+            if (!ShardManager.i.isOwned(next.starID)) {
+                // another node has taken this star over
+                continue;
             }
 
-            if (nextEventDateTime == null) {
-                // if there's nothing scheduled, let's just sleep for ten minutes and try again
-                nextEventDateTime = DateTime.now().plusMinutes(10);
+            Event event = sEvents.get(next.eventIndex);
+            log.debug(String.format("Processing %s scheduled at %s for star %d",
+                    event.getClass().getSimpleName(), new DateTime(next.dueTimeMs), next.starID));
+            mDispatchLagMs.record(Math.max(0, System.currentTimeMillis() - next.dueTimeMs));
+            event.process(next.starID);
+
+            StarPartitionedExecutor executor = mExecutor;
+            if (executor != null) {
+                mQueueDepth.record(executor.getNumPending());
             }
+        }
+    }
 
-            if (lastEventDateTime == null || (nextEventDateTime.getMillis() / 1000) != (lastEventDateTime.getMillis() / 1000)) {
-                log.info(String.format("Next event is scheduled at %s", nextEventDateTime));
-                lastEventDateTime = nextEventDateTime;
+    private void loadSchedule() {
+        for (int eventIndex = 0; eventIndex < sEvents.size(); eventIndex++) {
+            try (SqlStmt stmt = DB.prepare(sEvents.get(eventIndex).getScheduleSql())) {
+                SqlResult res = stmt.select();
+                while (res.next()) {
+                    int starID = res.getInt(1);
+                    if (ShardManager.i.isOwned(starID)) {
+                        schedule(eventIndex, starID, res.getDateTime(2).getMillis());
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error loading event schedule.", e);
             }
+        }
+        log.info(String.format("Loaded event schedule, %d events scheduled.", mScheduled.size()));
+    }
 
-            // make sure we don't try to sleep for a negative amount of time...
-            if (nextEventDateTime.isBefore(DateTime.now())) {
-                nextEventDateTime = DateTime.now();
-            } else {
-                try {
-                    int seconds = Seconds.secondsBetween(DateTime.now(), nextEventDateTime).getSeconds();
-                    Thread.sleep(seconds * 1000);
-                } catch(InterruptedException e) {
-                    // if we get interrupted it's because somebody pinged us and we need to
-                    // check the next time again
-                    log.debug("EventProcessor pinged, checking for new events.");
-                    continue;
+    private void scheduleIfEarlier(int eventIndex, int starID, long dueTimeMs) {
+        ScheduledEvent existing = mScheduled.get(getKey(eventIndex, starID));
+        if (existing == null || existing.dueTimeMs > dueTimeMs) {
+            schedule(eventIndex, starID, dueTimeMs);
+        }
+    }
+
+    private void schedule(int eventIndex, int starID, long dueTimeMs) {
+        long key = getKey(eventIndex, starID);
+        ScheduledEvent existing = mScheduled.get(key);
+        if (existing != null && existing.dueTimeMs == dueTimeMs) {
+            // most updates to a star don't change when its events are due.
+            return;
+        }
+
+        ScheduledEvent scheduledEvent = new ScheduledEvent(eventIndex, starID, dueTimeMs);
+        mScheduled.put(key, scheduledEvent);
+        mQueue.add(scheduledEvent);
+
+        if (mQueue.size() > mScheduled.size() + MAX_STALE_ENTRIES) {
+            compact();
+        }
+    }
+
+    /**
+     * Rebuilds the queue from \c mScheduled, dropping all the stale entries. Entries that are
+     * scheduled while we're doing this are either added by us or by \c schedule, or both (in
+     * which case the extra one will be skipped like any other stale entry).
+     */
+    private void compact() {
+        if (!mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mQueue.clear();
+            mQueue.addAll(mScheduled.values());
+        } finally {
+            mCompacting.set(false);
+        }
+    }
+
+    /** Gets the index of the given kind of event, which may not be the instance in \c sEvents. */
+    private static int getEventIndex(Event event) {
+        for (int eventIndex = 0; eventIndex < sEvents.size(); eventIndex++) {
+            if (sEvents.get(eventIndex).getClass() == event.getClass()) {
+                return eventIndex;
+            }
+        }
+        throw new IllegalArgumentException("Unknown event: " + event.getClass().getSimpleName());
+    }
+
+    private static long getKey(int eventIndex, int starID) {
+        return ((long) eventIndex << 32) | (starID & 0xffffffffL);
+    }
+
+    /**
+     * What an \c Event uses to tell us when its next events are due, see \c Event.schedule. Events
+     * on stars that belong to another node are added to \c elsewhere instead of our schedule.
+     */
+    public class Schedule {
+        private final int mEventIndex;
+        private final ArrayList<ScheduledEvent> mElsewhere;
+
+        private Schedule(int eventIndex, ArrayList<ScheduledEvent> elsewhere) {
+            mEventIndex = eventIndex;
+            mElsewhere = elsewhere;
+        }
+
+        /** Sets the time of the next event on the given star, or null if there's none. */
+        public void set(int starID, DateTime next) {
+            if (!ShardManager.i.isOwned(starID)) {
+                mScheduled.remove(getKey(mEventIndex, starID));
+                if (next != null) {
+                    mElsewhere.add(new ScheduledEvent(mEventIndex, starID, next.getMillis()));
                 }
+            } else if (next == null) {
+                mScheduled.remove(getKey(mEventIndex, starID));
+            } else {
+                schedule(mEventIndex, starID, next.getMillis());
             }
+        }
 
-            for (Event event : events) {
-                event.process();
+        /**
+         * Makes sure that the given star is processed by \c next, for events that we know about
+         * from a star other than the one they're processed on. If there's already an earlier
+         * event on the star, that stays.
+         */
+        public void bringForward(int starID, DateTime next) {
+            if (!ShardManager.i.isOwned(starID)) {
+                mElsewhere.add(new ScheduledEvent(mEventIndex, starID, next.getMillis()));
+            } else {
+                scheduleIfEarlier(mEventIndex, starID, next.getMillis());
             }
         }
     }
+
+    private static class ScheduledEvent implements Delayed {
+        public final int eventIndex;
+        public final int starID;
+        public final long dueTimeMs;
+
+        public ScheduledEvent(int eventIndex, int starID, long dueTimeMs) {
+            this.eventIndex = eventIndex;
+            this.starID = starID;
+            this.dueTimeMs = dueTimeMs;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueTimeMs - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long otherDueTimeMs = ((ScheduledEvent) other).dueTimeMs;
+            return dueTimeMs < otherDueTimeMs ? -1 : (dueTimeMs == otherDueTimeMs ? 0 : 1);
+        }
+    }
 }
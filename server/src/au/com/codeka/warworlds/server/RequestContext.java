@@ -1,6 +1,6 @@
 package au.com.codeka.warworlds.server;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -11,10 +11,10 @@ import javax.servlet.http.HttpServletRequest;
 public class RequestContext {
     public static RequestContext i = new RequestContext();
 
-    private HashMap<Long, Context> mContextMap;
+    private ConcurrentHashMap<Long, Context> mContextMap;
 
     private RequestContext() {
-        mContextMap = new HashMap<Long, Context>();
+        mContextMap = new ConcurrentHashMap<Long, Context>();
     }
 
     /**
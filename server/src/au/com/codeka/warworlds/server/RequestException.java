@@ -59,7 +59,7 @@ public class RequestException extends Exception {
     @SuppressWarnings("unchecked")
     private static <T extends Exception> T findInnerException(Throwable e, Class<T> exceptionType) {
         while (e != null) {
-            if (e.getClass().equals(exceptionType)) {
+            if (exceptionType.isInstance(e)) {
                 return (T) e;
             }
             e = e.getCause();
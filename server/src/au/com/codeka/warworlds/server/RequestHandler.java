@@ -25,6 +25,7 @@ import au.com.codeka.common.protoformat.PbFormatter;
 import au.com.codeka.warworlds.server.ctrl.AdminController;
 import au.com.codeka.warworlds.server.ctrl.NotificationController;
 import au.com.codeka.warworlds.server.ctrl.SessionController;
+import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlStateTranslater;
 import au.com.codeka.warworlds.server.model.BackendUser;
 
@@ -71,8 +72,19 @@ public class RequestHandler {
         // start off with status 200, but the handler might change it
         mResponse.setStatus(200);
 
+        // the request may switch to the replica and back, put the thread back how it was after.
+        boolean useReplica = request.getMethod().equals("GET") && canReadFromReplica();
+        try (DB.PoolScope scope = DB.usePool(DB.getThreadPool())) {
+            handleWithRetry(request, useReplica);
+        }
+    }
+
+    private void handleWithRetry(HttpServletRequest request, boolean useReplica) {
         RequestException lastException = null;
         for (int retries = 0; retries < 10; retries++) {
+            if (useReplica) {
+                DB.setThreadPool(DB.Pool.REPLICA);
+            }
             try {
                 onBeforeHandle();
                 if (request.getMethod().equals("GET")) {
@@ -89,6 +101,17 @@ public class RequestHandler {
 
                 return; // break out of the retry loop
             } catch(RequestException e) {
+                if (useReplica && isReadOnlyViolation(e)) {
+                    // it turns out this request does need to write something (e.g. a sector that
+                    // hasn't been generated yet). Nothing's been written, so just do it again on
+                    // the primary.
+                    log.info("Request tried to write on the replica, retrying on the primary: %s",
+                            request.getRequestURI());
+                    DB.setThreadPool(DB.Pool.REQUESTS);
+                    useReplica = false;
+                    continue;
+                }
+
                 Throwable cause = e.getCause();
                 if (cause instanceof SQLException
                         && SqlStateTranslater.isRetryable((SQLException) cause)
@@ -125,6 +148,17 @@ public class RequestHandler {
         }
     }
 
+    private static boolean isReadOnlyViolation(Throwable e) {
+        while (e != null) {
+            if (e instanceof SQLException
+                    && SqlStateTranslater.isReadOnlyViolation((SQLException) e)) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
     protected void handleException(RequestException e) {
         setResponseBody(e.getGenericError());
     }
@@ -160,6 +194,16 @@ public class RequestHandler {
         return false;
     }
 
+    /**
+     * You can override this in a subclass to indicate that GET requests only read, and don't
+     * mind if what they read is a few seconds out of date. They'll be served from the read
+     * replica (see \c DB.Pool.REPLICA) when it's available. If a request does try to write, it's
+     * run again on the primary.
+     */
+    protected boolean canReadFromReplica() {
+        return false;
+    }
+
     protected void setResponseText(String text) {
         mResponse.setContentType("text/plain");
         mResponse.setCharacterEncoding("utf-8");
@@ -290,7 +334,12 @@ public class RequestHandler {
             for (Cookie cookie : mRequest.getCookies()) {
                 if (cookie.getName().equals("SESSION")) {
                     sessionCookieValue = cookie.getValue();
-                    mSession = new SessionController().getSession(sessionCookieValue, impersonate);
+                    // a session that was only just created might not have made it to the
+                    // replica yet, so always look them up on the primary.
+                    try (DB.PoolScope scope = DB.usePool(DB.Pool.REQUESTS)) {
+                        mSession = new SessionController().getSession(sessionCookieValue,
+                                impersonate);
+                    }
                 }
             }
 
@@ -83,6 +83,10 @@ public class RequestRouter extends AbstractHandler {
         sRoutes.add(new Route("admin/debug/purchases", AdminDebugPurchasesHandler.class, "admin/"));
         sRoutes.add(new Route("admin/debug/error-reports", AdminDebugErrorReportsHandler.class, "admin/"));
         sRoutes.add(new Route("admin/debug/retrace", AdminDebugRetraceHandler.class, "admin/"));
+        sRoutes.add(new Route("admin/debug/events", AdminDebugEventsHandler.class));
+        sRoutes.add(new Route("admin/debug/events/metrics", AdminDebugEventsHandler.class, "metrics"));
+        sRoutes.add(new Route("admin/debug/sql", AdminDebugSqlHandler.class));
+        sRoutes.add(new Route("admin/debug/sql/metrics", AdminDebugSqlHandler.class, "metrics"));
         sRoutes.add(new Route("admin/empire/shields", AdminEmpireShieldsHandler.class, "admin/"));
         sRoutes.add(new Route("admin/empire/alts", AdminEmpireAltsHandler.class, "admin/"));
         sRoutes.add(new Route("admin/users", AdminUsersHandler.class, "admin/"));
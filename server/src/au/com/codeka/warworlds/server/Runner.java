@@ -6,6 +6,9 @@ import au.com.codeka.common.Log;
 import au.com.codeka.warworlds.server.cron.CronJob;
 import au.com.codeka.warworlds.server.cron.CronJobRegistry;
 import au.com.codeka.warworlds.server.ctrl.NameGenerator;
+import au.com.codeka.warworlds.server.ctrl.NotificationController;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.ReplicaMonitor;
 import au.com.codeka.warworlds.server.data.SchemaUpdater;
 import au.com.codeka.warworlds.server.model.DesignManager;
 
@@ -37,6 +40,7 @@ public class Runner {
   }
 
   private static void cronMain(String method, String extra) throws Exception {
+    DB.setThreadPool(DB.Pool.BACKGROUND);
     CronJob job = CronJobRegistry.getJob(method);
     if (job != null) {
       job.run(extra);
@@ -44,10 +48,12 @@ public class Runner {
   }
 
   private static void gameMain() throws Exception {
+    ShardManager.i.start();
+    ReplicaMonitor.i.start();
+    NotificationController.setup();
     EventProcessor.i.ping();
 
-    StarSimulatorThreadManager starSimulatorThreadManager = new StarSimulatorThreadManager();
-    starSimulatorThreadManager.start();
+    StarSimulatorThreadManager.i.start();
 
     int port = Configuration.i.getListenPort();
     Server server = new Server(port);
@@ -56,6 +62,8 @@ public class Runner {
     log.info("Server started on http://localhost:%d/", port);
     server.join();
 
-    starSimulatorThreadManager.stop();
+    StarSimulatorThreadManager.i.stop();
+    ShardManager.i.stop();
+    NotificationController.shutdown();
   }
 }
@@ -0,0 +1,327 @@
+package au.com.codeka.warworlds.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.ctrl.NotificationController;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.SqlResult;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Divides the stars between all of the server nodes that are running against the same database,
+ * so that each star's events are processed (and the star simulated in the background) by exactly
+ * one node. Requests can still be served by any node.
+ *
+ * Stars are hashed into {@link #NUM_BUCKETS} buckets, and each bucket is leased to one node via
+ * the \c shard_leases table. Every node heartbeats its row in \c server_nodes, and works out from
+ * the list of live nodes which buckets it should own. It renews the leases on those, takes over
+ * any whose lease has expired, and hands back any that now belong to someone else. So when a node
+ * joins or leaves, the buckets are rebalanced within a couple of heartbeats.
+ *
+ * A bucket that's being handed back stops being "owned" as soon as we decide to give it up, but
+ * we only release its lease on the following heartbeat, to give anything that was in the middle
+ * of processing one of its stars time to finish. If we can't renew our leases for long enough
+ * that they might have expired, we stop processing everything until we can.
+ *
+ * Each node also includes the empires connected to it in its heartbeat, so that
+ * {@link #isEmpireOnlineElsewhere} can tell who's online on the other nodes.
+ *
+ * If sharding isn't enabled in the configuration, this node owns every star.
+ */
+public class ShardManager {
+  public static ShardManager i = new ShardManager();
+
+  private static final Log log = new Log("ShardManager");
+
+  /** The number of buckets stars are hashed into. Must match the rows in shard_leases. */
+  public static final int NUM_BUCKETS = 256;
+
+  private static final long HEARTBEAT_INTERVAL_MS = 10 * 1000L;
+  private static final int LEASE_SECONDS = 30;
+
+  private boolean enabled;
+  private String nodeName;
+  private Thread thread;
+
+  /** The buckets we own, replaced wholesale on each heartbeat. */
+  private volatile boolean[] ownedBuckets = new boolean[NUM_BUCKETS];
+
+  /** Our leases are only good until this time (in terms of \c System.nanoTime). */
+  private volatile long leaseValidUntilNanos;
+
+  /** Buckets we've given up but not released yet. Only touched by the heartbeat thread. */
+  private ArrayList<Integer> releasingBuckets = new ArrayList<Integer>();
+  private volatile int numLiveNodes;
+
+  /** The empires connected to the other live nodes, replaced wholesale on each heartbeat. */
+  private volatile Set<Integer> otherNodesOnlineEmpireIDs = new HashSet<Integer>();
+
+  /**
+   * Starts heartbeating. The first heartbeat is done before we return, so that we know which
+   * stars we own before the event processor and star simulator threads start.
+   */
+  public void start() {
+    Configuration.ShardingConfiguration config = Configuration.i.getShardingConfig();
+    enabled = (config != null && config.isEnabled());
+    if (!enabled) {
+      return;
+    }
+    nodeName = config.getNodeName();
+    if (nodeName == null) {
+      nodeName = getDefaultNodeName();
+    }
+    log.info("Sharding enabled, this node is: %s", nodeName);
+
+    heartbeat();
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        DB.setThreadPool(DB.Pool.BACKGROUND);
+        while (true) {
+          try {
+            Thread.sleep(HEARTBEAT_INTERVAL_MS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          heartbeat();
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.setName("ShardManager");
+    thread.start();
+  }
+
+  /** Stops heartbeating and gives up all our buckets, so other nodes can take them over now. */
+  public void stop() {
+    if (!enabled) {
+      return;
+    }
+    thread.interrupt();
+    ownedBuckets = new boolean[NUM_BUCKETS];
+
+    try (SqlStmt stmt = DB.prepare(
+        "UPDATE shard_leases SET node_name = NULL, lease_expiry = NULL WHERE node_name = ?")) {
+      stmt.setString(1, nodeName);
+      stmt.update();
+    } catch (Exception e) {
+      log.error("Error releasing shard leases.", e);
+    }
+    try (SqlStmt stmt = DB.prepare("DELETE FROM server_nodes WHERE name = ?")) {
+      stmt.setString(1, nodeName);
+      stmt.update();
+    } catch (Exception e) {
+      log.error("Error removing server node.", e);
+    }
+  }
+
+  /** Returns true if this node is responsible for processing events on, and simulating, the star. */
+  public boolean isOwned(int starID) {
+    if (!enabled) {
+      return true;
+    }
+    return System.nanoTime() < leaseValidUntilNanos && ownedBuckets[getBucket(starID)];
+  }
+
+  /**
+   * Returns true if the given empire is connected to another node, as of that node's last
+   * heartbeat. Always false if sharding isn't enabled.
+   */
+  public boolean isEmpireOnlineElsewhere(int empireID) {
+    return otherNodesOnlineEmpireIDs.contains(empireID);
+  }
+
+  public void populateMetrics(JsonObject json) {
+    json.addProperty("enabled", enabled);
+    if (!enabled) {
+      return;
+    }
+
+    int numOwned = 0;
+    for (boolean owned : ownedBuckets) {
+      if (owned) {
+        numOwned++;
+      }
+    }
+    json.addProperty("node_name", nodeName);
+    json.addProperty("num_live_nodes", numLiveNodes);
+    json.addProperty("num_owned_buckets", numOwned);
+    json.addProperty("lease_valid", System.nanoTime() < leaseValidUntilNanos);
+  }
+
+  public static int getBucket(int starID) {
+    int h = starID * 0x9E3779B1;
+    return ((h ^ (h >>> 16)) & 0x7fffffff) % NUM_BUCKETS;
+  }
+
+  private void heartbeat() {
+    long startTime = System.nanoTime();
+    boolean wasValid = startTime < leaseValidUntilNanos;
+    try {
+      updateNode();
+      ArrayList<String> liveNodes = getLiveNodes();
+      numLiveNodes = liveNodes.size();
+      otherNodesOnlineEmpireIDs = getOtherNodesOnlineEmpireIDs();
+
+      // each live node gets every n'th bucket
+      int index = liveNodes.indexOf(nodeName);
+      ArrayList<Integer> targetBuckets = new ArrayList<Integer>();
+      for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+        if (index >= 0 && bucket % liveNodes.size() == index) {
+          targetBuckets.add(bucket);
+        }
+      }
+
+      releaseBuckets(releasingBuckets);
+      ArrayList<Integer> leasedBuckets = leaseBuckets(targetBuckets);
+
+      // anything else we're still holding has been given to somebody else
+      releasingBuckets = getHeldBuckets();
+      releasingBuckets.removeAll(leasedBuckets);
+
+      boolean[] owned = new boolean[NUM_BUCKETS];
+      for (int bucket : leasedBuckets) {
+        owned[bucket] = true;
+      }
+      // if our leases had lapsed, we've been dropping everything from the schedules
+      boolean acquiredNew = !wasValid;
+      for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+        if (owned[bucket] && !ownedBuckets[bucket]) {
+          acquiredNew = true;
+        }
+      }
+      if (!Arrays.equals(owned, ownedBuckets)) {
+        log.info("Now own %d of %d buckets (%d live nodes).", leasedBuckets.size(), NUM_BUCKETS,
+            liveNodes.size());
+      }
+
+      ownedBuckets = owned;
+      leaseValidUntilNanos = startTime + (LEASE_SECONDS * 1000L - HEARTBEAT_INTERVAL_MS) * 1000000L;
+
+      if (acquiredNew) {
+        // we've only been keeping track of the stars we owned, so pick up the new ones.
+        EventProcessor.i.reloadSchedule();
+        StarSimulatorThreadManager.i.reloadSchedule();
+      }
+    } catch (Exception e) {
+      log.error("Error heartbeating, will try again later.", e);
+    }
+  }
+
+  private void updateNode() throws Exception {
+    List<Integer> onlineEmpireIDs = new NotificationController().getConnectedEmpireIDs();
+    try (SqlStmt stmt = DB.prepare(
+        "UPDATE server_nodes SET heartbeat_time = NOW(), online_empire_ids = ? WHERE name = ?")) {
+      stmt.setIntArray(1, onlineEmpireIDs);
+      stmt.setString(2, nodeName);
+      if (stmt.update() > 0) {
+        return;
+      }
+    }
+    try (SqlStmt stmt = DB.prepare(
+        "INSERT INTO server_nodes (name, heartbeat_time, online_empire_ids) VALUES (?, NOW(), ?)")) {
+      stmt.setString(1, nodeName);
+      stmt.setIntArray(2, onlineEmpireIDs);
+      stmt.update();
+    }
+  }
+
+  private ArrayList<String> getLiveNodes() throws Exception {
+    ArrayList<String> nodes = new ArrayList<String>();
+    String sql = "SELECT name FROM server_nodes"
+        + " WHERE heartbeat_time > NOW() - CAST(? AS INTEGER) * INTERVAL '1 second'"
+        + " ORDER BY name";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setInt(1, LEASE_SECONDS);
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        nodes.add(res.getString(1));
+      }
+    }
+    return nodes;
+  }
+
+  private Set<Integer> getOtherNodesOnlineEmpireIDs() throws Exception {
+    Set<Integer> empireIDs = new HashSet<Integer>();
+    String sql = "SELECT DISTINCT UNNEST(online_empire_ids) FROM server_nodes"
+        + " WHERE name <> ? AND heartbeat_time > NOW() - CAST(? AS INTEGER) * INTERVAL '1 second'";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setString(1, nodeName);
+      stmt.setInt(2, LEASE_SECONDS);
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        empireIDs.add(res.getInt(1));
+      }
+    }
+    return empireIDs;
+  }
+
+  /**
+   * Renews our leases on the given buckets, and takes over any of them that nobody holds (or
+   * whose lease has expired). Returns the ones we now hold.
+   */
+  private ArrayList<Integer> leaseBuckets(ArrayList<Integer> buckets) throws Exception {
+    ArrayList<Integer> leased = new ArrayList<Integer>();
+    String sql = "UPDATE shard_leases"
+        + " SET node_name = ?, lease_expiry = NOW() + CAST(? AS INTEGER) * INTERVAL '1 second'"
+        + " WHERE bucket = ANY(?)"
+        + " AND (node_name = ? OR node_name IS NULL OR lease_expiry < NOW())"
+        + " RETURNING bucket";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setString(1, nodeName);
+      stmt.setInt(2, LEASE_SECONDS);
+      stmt.setIntArray(3, buckets);
+      stmt.setString(4, nodeName);
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        leased.add(res.getInt(1));
+      }
+    }
+    return leased;
+  }
+
+  private ArrayList<Integer> getHeldBuckets() throws Exception {
+    ArrayList<Integer> held = new ArrayList<Integer>();
+    try (SqlStmt stmt = DB.prepare("SELECT bucket FROM shard_leases WHERE node_name = ?")) {
+      stmt.setString(1, nodeName);
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        held.add(res.getInt(1));
+      }
+    }
+    return held;
+  }
+
+  private void releaseBuckets(ArrayList<Integer> buckets) throws Exception {
+    if (buckets.isEmpty()) {
+      return;
+    }
+
+    String sql = "UPDATE shard_leases SET node_name = NULL, lease_expiry = NULL"
+        + " WHERE node_name = ? AND bucket = ANY(?)";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setString(1, nodeName);
+      stmt.setIntArray(2, buckets);
+      stmt.update();
+    }
+  }
+
+  private static String getDefaultNodeName() {
+    String hostName;
+    try {
+      hostName = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      hostName = "localhost";
+    }
+    return hostName + ":" + Configuration.i.getListenPort();
+  }
+}
@@ -0,0 +1,144 @@
+package au.com.codeka.warworlds.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import au.com.codeka.common.Log;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Serializes everything that loads, modifies and saves a star: the star simulator threads, the
+ * events and the request handlers. Any code that's going to update a star should hold its lock
+ * from before it loads the star until after it's been saved (and committed), like so:
+ *
+ * <pre>
+ * try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+ *   Star star = new StarController().getStar(starID);
+ *   ...
+ *   new StarController().update(star);
+ * }
+ * </pre>
+ *
+ * Stars are mapped onto a fixed set of stripes, so unrelated stars occasionally share a lock. The
+ * locks are reentrant, and when locking more than one star we always go in stripe order. If a
+ * lock can't be acquired in {@link #LOCK_TIMEOUT_MS} (e.g. a thread holding one star locks
+ * another out of order) we give up with an error rather than deadlocking.
+ */
+public class StarLocks {
+  public static StarLocks i = new StarLocks();
+
+  private static final Log log = new Log("StarLocks");
+  private static final int NUM_STRIPES = 1024;
+  private static final long LOCK_TIMEOUT_MS = 30 * 1000L;
+
+  private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+
+  private final AtomicLong numAcquired = new AtomicLong();
+  private final AtomicLong numContended = new AtomicLong();
+  private final AtomicLong numTimedOut = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  private StarLocks() {
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /** Locks the given star(s), blocking until we have them all. */
+  public Lock lock(int... starIDs) throws RequestException {
+    int[] stripeIndices = new int[starIDs.length];
+    for (int i = 0; i < starIDs.length; i++) {
+      stripeIndices[i] = getStripeIndex(starIDs[i]);
+    }
+    Arrays.sort(stripeIndices);
+
+    Lock lock = new Lock();
+    try {
+      int lastStripeIndex = -1;
+      for (int stripeIndex : stripeIndices) {
+        if (stripeIndex == lastStripeIndex) {
+          continue;
+        }
+        acquire(stripes[stripeIndex], starIDs);
+        lock.held.add(stripes[stripeIndex]);
+        lastStripeIndex = stripeIndex;
+      }
+    } catch (RequestException e) {
+      lock.close();
+      throw e;
+    }
+    return lock;
+  }
+
+  /** Adds the lock contention metrics to the given \c JsonObject. */
+  public void populateMetrics(JsonObject json) {
+    long acquired = numAcquired.get();
+    json.addProperty("num_acquired", acquired);
+    json.addProperty("num_contended", numContended.get());
+    json.addProperty("num_timed_out", numTimedOut.get());
+    json.addProperty("avg_wait_ms", acquired == 0 ? 0
+        : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()) / acquired);
+    json.addProperty("max_wait_ms", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+  }
+
+  private void acquire(ReentrantLock stripe, int[] starIDs) throws RequestException {
+    numAcquired.incrementAndGet();
+    if (stripe.tryLock()) {
+      return;
+    }
+
+    numContended.incrementAndGet();
+    long startTime = System.nanoTime();
+    long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(LOCK_TIMEOUT_MS);
+    boolean acquired = false;
+    boolean interrupted = false;
+    while (!acquired && System.nanoTime() < deadline) {
+      // The event processor's thread is interrupted whenever it's pinged, so we can't treat that
+      // as a reason to give up. Just remember it, and pass it on once we've got the lock.
+      try {
+        acquired = stripe.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    long waitNanos = System.nanoTime() - startTime;
+    totalWaitNanos.addAndGet(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+
+    if (!acquired) {
+      numTimedOut.incrementAndGet();
+      log.error("Timed out waiting for lock on star(s) %s", Arrays.toString(starIDs));
+      throw new RequestException(503, "Timed out waiting for star lock.");
+    }
+  }
+
+  private static int getStripeIndex(int starID) {
+    // mix the bits up a little so that neighbouring stars don't end up in neighbouring stripes.
+    int h = starID * 0x9E3779B1;
+    return (h ^ (h >>> 16)) & (NUM_STRIPES - 1);
+  }
+
+  /** Represents the locks we're holding. Close it to release them. */
+  public static class Lock implements AutoCloseable {
+    private final ArrayList<ReentrantLock> held = new ArrayList<ReentrantLock>(2);
+
+    @Override
+    public void close() {
+      for (int i = held.size() - 1; i >= 0; i--) {
+        held.get(i).unlock();
+      }
+      held.clear();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package au.com.codeka.warworlds.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.data.DB;
+
+/**
+ * Runs tasks on a fixed number of threads, partitioned by star. Each thread has its own queue,
+ * and all the tasks for a given star go to the same one, so tasks for a star run one at a time
+ * in the order they were submitted while tasks for different stars run in parallel.
+ *
+ * Tasks that touch more than one star (e.g. a fleet moving between two stars) should be
+ * partitioned by one of them, and still take out \c StarLocks on all of them.
+ */
+public class StarPartitionedExecutor {
+    private static final Log log = new Log("StarPartitionedExecutor");
+
+    private final ExecutorService[] mPartitions;
+    private final Set<String> mPending =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param name The prefix for our threads' names.
+     * @param numThreads The number of threads (and so partitions) to run.
+     * @param pool The \c DB.Pool our threads get their database connections from.
+     */
+    public StarPartitionedExecutor(final String name, int numThreads, final DB.Pool pool) {
+        mPartitions = new ExecutorService[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final String threadName = String.format("%s-%d", name, i);
+            mPartitions[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            DB.setThreadPool(pool);
+                            runnable.run();
+                        }
+                    }, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the given task to run on the given star's partition. \c key identifies the task: if
+     * a task with the same key is still queued, this one is dropped and we return false. That way
+     * the same event isn't queued over and over just because it's still due every time somebody
+     * looks for due events.
+     *
+     * Once a task has started, another one with the same key can be queued behind it. So tasks
+     * should look up the work they're going to do when they run, and cope with finding that it's
+     * already been done.
+     */
+    public boolean submit(int starID, final String key, final Runnable task) {
+        if (!mPending.add(key)) {
+            return false;
+        }
+
+        mPartitions[getPartition(starID)].execute(new Runnable() {
+            @Override
+            public void run() {
+                mPending.remove(key);
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Unhandled exception running task: " + key, e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Gets the number of tasks that are queued and haven't started yet. */
+    public int getNumPending() {
+        return mPending.size();
+    }
+
+    public void shutdown() {
+        for (ExecutorService partition : mPartitions) {
+            partition.shutdown();
+        }
+    }
+
+    private int getPartition(int starID) {
+        int h = starID * 0x9E3779B1;
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % mPartitions.length;
+    }
+}
@@ -0,0 +1,251 @@
+package au.com.codeka.warworlds.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.common.model.BaseBuildRequest;
+import au.com.codeka.common.model.BaseEmpirePresence;
+import au.com.codeka.common.model.BaseFleet;
+import au.com.codeka.warworlds.server.ctrl.NotificationController;
+import au.com.codeka.warworlds.server.data.SqlResult;
+import au.com.codeka.warworlds.server.model.Star;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A policy decides when the {@link StarSimulatorThreadManager} should next simulate a star. Each
+ * policy also keeps metrics on what it scheduled and how late we were getting to it, so that
+ * policies can be compared on the admin dashboard.
+ */
+public abstract class StarSimulationPolicy {
+  /** We never simulate a star in the background more often than this. */
+  protected static final long MIN_INTERVAL_MS = 5 * 60 * 1000L;
+
+  /** Idle stars are simulated once this long has passed since the last simulation. */
+  protected static final long IDLE_INTERVAL_MS = 60 * 60 * 1000L;
+
+  /** The reason a star was scheduled for the time it was. */
+  public enum Reason {
+    IDLE,
+    EMPIRE_ONLINE,
+    BUILD_COMPLETE,
+    GOODS_ZERO,
+    COMBAT
+  }
+
+  /** Returns the policy with the given name, as given in the server's config. */
+  public static StarSimulationPolicy create(String name) {
+    if (name.equals(OldestFirst.NAME)) {
+      return new OldestFirst();
+    } else if (name.equals(Urgency.NAME)) {
+      return new Urgency();
+    }
+    throw new IllegalArgumentException("Unknown star simulation policy: " + name);
+  }
+
+  private final AtomicLong[] numScheduled = new AtomicLong[Reason.values().length];
+  private final AtomicLong[] numSimulated = new AtomicLong[Reason.values().length];
+  private final AtomicLong totalLatenessMs = new AtomicLong();
+
+  protected StarSimulationPolicy() {
+    for (int i = 0; i < numScheduled.length; i++) {
+      numScheduled[i] = new AtomicLong();
+      numSimulated[i] = new AtomicLong();
+    }
+  }
+
+  public abstract String getName();
+
+  protected abstract Schedule calculateSchedule(StarState state);
+
+  /** Works out when the given star should next be simulated. */
+  public Schedule schedule(StarState state) {
+    Schedule schedule = calculateSchedule(state);
+    numScheduled[schedule.reason.ordinal()].incrementAndGet();
+    return schedule;
+  }
+
+  /** Called when a star scheduled by this policy is handed out to be simulated. */
+  public void onSimulating(Schedule schedule) {
+    numSimulated[schedule.reason.ordinal()].incrementAndGet();
+    long latenessMs = System.currentTimeMillis() - schedule.dueTimeMs;
+    if (latenessMs > 0) {
+      totalLatenessMs.addAndGet(latenessMs);
+    }
+  }
+
+  /** Adds this policy's metrics to the given \c JsonObject. */
+  public void populateMetrics(JsonObject json) {
+    json.addProperty("policy", getName());
+    long totalSimulated = 0;
+    for (Reason reason : Reason.values()) {
+      JsonObject reasonJson = new JsonObject();
+      reasonJson.addProperty("scheduled", numScheduled[reason.ordinal()].get());
+      reasonJson.addProperty("simulated", numSimulated[reason.ordinal()].get());
+      json.add(reason.toString().toLowerCase(), reasonJson);
+      totalSimulated += numSimulated[reason.ordinal()].get();
+    }
+    json.addProperty("avg_lateness_ms",
+        totalSimulated == 0 ? 0 : totalLatenessMs.get() / totalSimulated);
+  }
+
+  /** The time a star is due to be simulated, and why. */
+  public static class Schedule {
+    public final long dueTimeMs;
+    public final Reason reason;
+
+    public Schedule(long dueTimeMs, Reason reason) {
+      this.dueTimeMs = dueTimeMs;
+      this.reason = reason;
+    }
+  }
+
+  /** The bits of a star's state that policies look at. */
+  public static class StarState {
+    public int starID;
+    public DateTime lastSimulation;
+    public boolean hasEmpire;
+    public boolean empireOnline;
+    public boolean inCombat;
+    public DateTime nextBuildEndTime;
+    public DateTime nextGoodsZeroTime;
+
+    /**
+     * The query that {@link #fromSqlResult} expects, for all stars with an empire on them. We
+     * can't know who is online from the database, so \c empireOnline is always false.
+     */
+    public static final String SQL = "SELECT stars.id, stars.last_simulation,"
+        + " (SELECT MIN(end_time) FROM build_requests WHERE star_id = stars.id),"
+        + " (SELECT MIN(goods_zero_time) FROM empire_presences WHERE star_id = stars.id),"
+        + " (SELECT COUNT(*) FROM fleets WHERE star_id = stars.id AND state = "
+        + BaseFleet.State.ATTACKING.getValue() + ")"
+        + " FROM stars WHERE empire_count > 0";
+
+    public static StarState fromSqlResult(SqlResult res) throws Exception {
+      StarState state = new StarState();
+      state.starID = res.getInt(1);
+      state.lastSimulation = res.getDateTime(2);
+      state.nextBuildEndTime = res.getDateTime(3);
+      state.nextGoodsZeroTime = res.getDateTime(4);
+      state.inCombat = res.getLong(5) > 0;
+      state.hasEmpire = true;
+      return state;
+    }
+
+    public static StarState fromStar(Star star) {
+      StarState state = new StarState();
+      state.starID = star.getID();
+      state.lastSimulation = star.getLastSimulation();
+
+      NotificationController notificationController = new NotificationController();
+      for (BaseEmpirePresence baseEmpirePresence : star.getEmpirePresences()) {
+        if (baseEmpirePresence.getEmpireKey() == null) {
+          continue;
+        }
+        state.hasEmpire = true;
+        int empireID = Integer.parseInt(baseEmpirePresence.getEmpireKey());
+        if (notificationController.isEmpireOnline(empireID)) {
+          state.empireOnline = true;
+        }
+        state.nextGoodsZeroTime =
+            min(state.nextGoodsZeroTime, baseEmpirePresence.getGoodsZeroTime());
+      }
+      for (BaseBuildRequest buildRequest : star.getBuildRequests()) {
+        state.nextBuildEndTime = min(state.nextBuildEndTime, buildRequest.getEndTime());
+      }
+      for (BaseFleet fleet : star.getFleets()) {
+        if (fleet.getState() == BaseFleet.State.ATTACKING) {
+          state.inCombat = true;
+        }
+      }
+      return state;
+    }
+
+    private static DateTime min(DateTime a, DateTime b) {
+      if (a == null) {
+        return b;
+      }
+      if (b == null) {
+        return a;
+      }
+      return a.isBefore(b) ? a : b;
+    }
+  }
+
+  /** Simulates stars in order of their last simulation time, regardless of what's on them. */
+  public static class OldestFirst extends StarSimulationPolicy {
+    public static final String NAME = "oldest-first";
+
+    @Override
+    public String getName() {
+      return NAME;
+    }
+
+    @Override
+    protected Schedule calculateSchedule(StarState state) {
+      return new Schedule(state.lastSimulation.getMillis() + IDLE_INTERVAL_MS, Reason.IDLE);
+    }
+  }
+
+  /**
+   * Brings stars forward when something is about to happen on them (a build finishing, goods
+   * running out, combat) or when their empire is online and likely to be looking at them. That's
+   * where a background simulation saves the most simulation time on the request path.
+   */
+  public static class Urgency extends StarSimulationPolicy {
+    public static final String NAME = "urgency";
+
+    /** Stars of online empires are simulated this often. */
+    private static final long ONLINE_INTERVAL_MS = 15 * 60 * 1000L;
+
+    /** How long before a build completes or goods run out that we'll simulate the star. */
+    private static final long LEAD_TIME_MS = 5 * 60 * 1000L;
+
+    @Override
+    public String getName() {
+      return NAME;
+    }
+
+    @Override
+    protected Schedule calculateSchedule(StarState state) {
+      long lastSimulationMs = state.lastSimulation.getMillis();
+      long earliestMs = lastSimulationMs + MIN_INTERVAL_MS;
+      if (state.inCombat) {
+        return new Schedule(earliestMs, Reason.COMBAT);
+      }
+
+      Schedule schedule = new Schedule(lastSimulationMs + IDLE_INTERVAL_MS, Reason.IDLE);
+      if (state.empireOnline) {
+        schedule = earliest(schedule, lastSimulationMs + ONLINE_INTERVAL_MS, Reason.EMPIRE_ONLINE);
+      }
+      if (isUpcoming(state.nextBuildEndTime, lastSimulationMs)) {
+        schedule = earliest(schedule,
+            Math.max(earliestMs, state.nextBuildEndTime.getMillis() - LEAD_TIME_MS),
+            Reason.BUILD_COMPLETE);
+      }
+      if (isUpcoming(state.nextGoodsZeroTime, lastSimulationMs)) {
+        schedule = earliest(schedule,
+            Math.max(earliestMs, state.nextGoodsZeroTime.getMillis() - LEAD_TIME_MS),
+            Reason.GOODS_ZERO);
+      }
+      return schedule;
+    }
+
+    /**
+     * Whether \c time is still ahead of the star's last simulation. Goods that already hit zero
+     * (or a build that's overdue) were dealt with by that simulation, so they shouldn't keep
+     * pulling the star back every \c MIN_INTERVAL_MS.
+     */
+    private static boolean isUpcoming(DateTime time, long lastSimulationMs) {
+      return time != null && time.getMillis() > lastSimulationMs;
+    }
+
+    private static Schedule earliest(Schedule schedule, long dueTimeMs, Reason reason) {
+      if (dueTimeMs < schedule.dueTimeMs) {
+        return new Schedule(dueTimeMs, reason);
+      }
+      return schedule;
+    }
+  }
+}
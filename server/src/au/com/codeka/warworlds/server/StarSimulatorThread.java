@@ -1,17 +1,15 @@
 package au.com.codeka.warworlds.server;
 
-import org.joda.time.DateTime;
-import org.joda.time.Seconds;
-
 import au.com.codeka.common.Log;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.warworlds.server.ctrl.StarController;
+import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.model.Star;
 
 /**
- * This is a background thread that runs every 2 seconds and simulates the
- * oldest star in the system. This ensures we never let our stars get TOO
- * out-of-date.
+ * This is a background thread that simulates stars as they become due in the
+ * \c StarSimulatorThreadManager's schedule. This ensures we never let our
+ * stars get TOO out-of-date.
  */
 public class StarSimulatorThread {
   private static final Log log = new Log("StarSimulatorThread");
@@ -19,8 +17,6 @@ public class StarSimulatorThread {
   private boolean stopped;
   private final StarSimulatorThreadManager manager;
 
-  private static int WAIT_TIME_NO_STARS = 10 * 60 * 1000; // 10 minutes, after
-                                                          // no stars found
   private static int WAIT_TIME_ERROR = 60 * 1000; // 1 minute, in case of error
   private static int WAIT_TIME_NORMAL = 0; // don't wait if there's more stars
                                            // to simulate
@@ -63,16 +59,9 @@ public class StarSimulatorThread {
   }
 
   private void threadproc() {
-    int numSimulatedSinceEventProcessorPinged = 0;
+    DB.setThreadPool(DB.Pool.SIMULATION);
     while (!stopped) {
       int waitTimeMs = simulateOneStar();
-      numSimulatedSinceEventProcessorPinged++;
-
-      if (numSimulatedSinceEventProcessorPinged >= 50) {
-        EventProcessor.i.ping();
-        numSimulatedSinceEventProcessorPinged = 0;
-      }
-
       if (waitTimeMs > 0) {
         log.info(String
             .format("Waiting %d seconds before simulating next star.", waitTimeMs / 1000));
@@ -85,35 +74,43 @@ public class StarSimulatorThread {
   }
 
   private int simulateOneStar() {
+    int starID = manager.getNextStar();
+    if (starID == 0) {
+      // we were interrupted while waiting for a star, probably because we're stopping.
+      return WAIT_TIME_NORMAL;
+    }
+
     try {
-      int starID = manager.getNextStar();
-      if (starID == 0) {
-        return WAIT_TIME_NO_STARS;
-      }
       log.debug("Simulating star: " + starID);
       long startTime = System.currentTimeMillis();
 
-      Star star = new StarController().getStar(starID);
-      if (star.getLastSimulation().isAfter(DateTime.now().minusHours(1))) {
-        // how long would we have to wait (in seconds) before there WOULD HAVE
-        // been one
-        // hour since it was last simulated?
-        int seconds = Seconds
-            .secondsBetween(DateTime.now().minusHours(1), star.getLastSimulation()).getSeconds();
-        return seconds * 1000;
-      }
+      try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+        Star star = new StarController().getStar(starID);
+        if (!manager.isDue(star)) {
+          // it's been simulated since it was scheduled (e.g. by a request), and
+          // the manager has put it back in the schedule.
+          return WAIT_TIME_NORMAL;
+        }
 
-      new Simulation().simulate(star);
-      long simulateEndTime = System.currentTimeMillis();
-      // we don't ping event processor now, because we rather do it once every
-      // 50 stars or so.
-      new StarController().update(star, false);
+        new Simulation().simulate(star);
+        long simulateEndTime = System.currentTimeMillis();
+        // no need to ping the event processor, it's already running and it
+        // hears about any new events from StarController.update.
+        try {
+          new StarController().update(star, false);
+        } catch (StarController.StarModifiedException e) {
+          // somebody else simulated and saved it since we loaded it, which is all we were
+          // going to do anyway.
+          log.debug("Star modified while simulating, skipping: " + starID);
+          return WAIT_TIME_NORMAL;
+        }
 
-      long endTime = System.currentTimeMillis();
-      log.info(String.format(
-          "Simulated star (%d colonies, %d fleets) in %dms (%dms in DB): \"%s\" [%d]", star
-              .getColonies().size(), star.getFleets().size(), endTime - startTime, endTime
-              - simulateEndTime, star.getName(), star.getID()));
+        long endTime = System.currentTimeMillis();
+        log.info(String.format(
+            "Simulated star (%d colonies, %d fleets) in %dms (%dms in DB): \"%s\" [%d]", star
+                .getColonies().size(), star.getFleets().size(), endTime - startTime, endTime
+                - simulateEndTime, star.getName(), star.getID()));
+      }
       return WAIT_TIME_NORMAL;
     } catch (Exception e) {
       log.error("Exception caught simulating star!", e);
@@ -121,6 +118,8 @@ public class StarSimulatorThread {
       // over and over... probably a good thing because we'll
       // definitely need to fix it!
       return WAIT_TIME_ERROR;
+    } finally {
+      manager.onSimulationFinished(starID);
     }
   }
 }
@@ -1,25 +1,66 @@
 package au.com.codeka.warworlds.server;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.model.Star;
 
+import com.google.gson.JsonObject;
+
+/**
+ * Manages the star simulator threads, and the schedule of which star they should simulate next.
+ * The schedule is loaded from the database once at startup, and after that it's kept up-to-date
+ * by {@link #onStarUpdated}, so handing out the next star never has to hit the database. When
+ * each star is due is up to the configured {@link StarSimulationPolicy}. Only the stars this
+ * node owns (see {@link ShardManager}) are scheduled.
+ */
 public class StarSimulatorThreadManager {
+  public static StarSimulatorThreadManager i = new StarSimulatorThreadManager();
+
   private static final Log log = new Log("StarSimulatorThreadManager");
 
+  /**
+   * If a star's simulation fails (and nothing else reschedules it), it's tried again after this
+   * long. If it succeeds, {@link #onStarUpdated} will schedule it properly.
+   */
+  private static final long RETRY_INTERVAL_MS = 60 * 60 * 1000L;
+
+  /** We compact the queue once it has this many more entries than there are stars scheduled. */
+  private static final int MAX_STALE_ENTRIES = 1000;
+
   private final ArrayList<StarSimulatorThread> threads = new ArrayList<StarSimulatorThread>();
-  private final Queue<Integer> starIDs = new ArrayDeque<Integer>();
-  private final Set<Integer> lastStarIDs = new HashSet<Integer>();
-  private final Object lock = new Object();
+
+  /**
+   * Min-heap of stars, ordered by the time they're next due. When a star is rescheduled we don't
+   * remove its old entry (that's O(n) in a heap), we just replace the entry in
+   * {@link #scheduled}, and entries that don't match are skipped when they reach the top. If
+   * too many of those build up, {@link #compact} rebuilds the queue.
+   */
+  private final DelayQueue<ScheduledStar> queue = new DelayQueue<ScheduledStar>();
+  private final ConcurrentHashMap<Integer, ScheduledStar> scheduled =
+      new ConcurrentHashMap<Integer, ScheduledStar>();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private StarSimulationPolicy policy;
+  private volatile boolean started;
 
   public void start() {
+    if (Configuration.i.getNumStarSimulationThreads() == 0) {
+      // nothing would take stars off the schedule, so don't bother keeping one.
+      return;
+    }
+
+    policy = StarSimulationPolicy.create(Configuration.i.getStarSimulationPolicy());
+    loadSchedule();
+    started = true;
+
     for (int i = 0; i < Configuration.i.getNumStarSimulationThreads(); i++) {
       StarSimulatorThread thread = new StarSimulatorThread(this);
       thread.start();
@@ -29,43 +70,188 @@ public class StarSimulatorThreadManager {
   }
 
   public void stop() {
+    started = false;
     for (StarSimulatorThread thread : threads) {
       thread.stop();
     }
   }
 
-  /** Returns the ID of the next star to simulate. */
+  /**
+   * Returns the ID of the next star to simulate, blocking until one is due. Returns 0 if the
+   * thread was interrupted while waiting (e.g. because we're shutting down).
+   */
   public int getNextStar() {
-    synchronized(lock) {
-      if (starIDs.isEmpty()) {
-        // Grab 50 stars at a time, to save all those queries.
-        String sql = "SELECT id FROM stars" + " WHERE empire_count > 0"
-            + " ORDER BY last_simulation ASC LIMIT 50";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-          SqlResult res = stmt.select();
-          while (res.next()) {
-            int starID = res.getInt(1);
-            // If this starID was handed out in the last set, it's possible that another thread
-            // is still simulating it. Ignore it for now, and wait for the next time around.
-            if (lastStarIDs.contains(starID)) {
-              continue;
-            }
-            starIDs.add(starID);
-          }
-        } catch (Exception e) {
-          log.error("Error fetching starIDs to simulate.", e);
-        }
+    while (true) {
+      ScheduledStar next;
+      try {
+        next = queue.take();
+      } catch (InterruptedException e) {
+        return 0;
+      }
 
-        // clear out the lastStarIDs set and start afresh with this new batch.
-        lastStarIDs.clear();
+      // While the star's being simulated, it's "leased": it stays in scheduled (so we know
+      // it's still ours) but not in the queue. If the simulation succeeds, onStarUpdated will
+      // reschedule it, otherwise onSimulationFinished will. If the replace fails, this entry
+      // was stale.
+      if (!ShardManager.i.isOwned(next.starID)) {
+        // another node has taken this star over
+        scheduled.remove(next.starID, next);
+        continue;
       }
 
-      if (starIDs.isEmpty()) {
-        return 0;
+      ScheduledStar lease = new ScheduledStar(next.starID, next.schedule, true);
+      if (scheduled.replace(next.starID, next, lease)) {
+        policy.onSimulating(next.schedule);
+        return next.starID;
       }
-      int starID = starIDs.remove();
-      lastStarIDs.add(starID);
-      return starID;
+    }
+  }
+
+  /**
+   * Checks whether the given star is due to be simulated. If it's not (e.g. it was simulated by a
+   * request after it was handed out), it's put back in the schedule.
+   */
+  public boolean isDue(Star star) {
+    StarSimulationPolicy.StarState state = StarSimulationPolicy.StarState.fromStar(star);
+    StarSimulationPolicy.Schedule schedule = policy.schedule(state);
+    if (schedule.dueTimeMs <= System.currentTimeMillis()) {
+      return true;
+    }
+    schedule(state.starID, schedule);
+    return false;
+  }
+
+  /**
+   * Called by the simulator thread when it's done with a star it got from {@link #getNextStar},
+   * whether or not it managed to simulate it. If nothing has rescheduled the star since then
+   * (e.g. because the simulation failed), we try again after {@link #RETRY_INTERVAL_MS}.
+   */
+  public void onSimulationFinished(int starID) {
+    ScheduledStar entry = scheduled.get(starID);
+    if (entry == null || !entry.leased) {
+      return;
+    }
+
+    ScheduledStar retry = new ScheduledStar(starID, new StarSimulationPolicy.Schedule(
+        System.currentTimeMillis() + RETRY_INTERVAL_MS, entry.schedule.reason), false);
+    if (scheduled.replace(starID, entry, retry)) {
+      queue.add(retry);
+    }
+  }
+
+  /**
+   * Called by \c StarController whenever a star is saved, so that we can reschedule it (or stop
+   * simulating it, if there's no more empires on it).
+   */
+  public void onStarUpdated(Star star) {
+    if (!started) {
+      return;
+    }
+
+    StarSimulationPolicy.StarState state = StarSimulationPolicy.StarState.fromStar(star);
+    if (state.hasEmpire && ShardManager.i.isOwned(state.starID)) {
+      schedule(state.starID, policy.schedule(state));
+    } else {
+      scheduled.remove(state.starID);
+    }
+  }
+
+  /**
+   * Reloads the schedule from the database, e.g. because we've just taken over some stars from
+   * another node (see \c ShardManager).
+   */
+  public void reloadSchedule() {
+    if (started) {
+      loadSchedule();
+    }
+  }
+
+  /** Adds the current policy's metrics to the given \c JsonObject. */
+  public void populateMetrics(JsonObject json) {
+    if (policy != null) {
+      policy.populateMetrics(json);
+    }
+    json.addProperty("num_scheduled", scheduled.size());
+    json.addProperty("num_queued", queue.size());
+  }
+
+  private void schedule(int starID, StarSimulationPolicy.Schedule schedule) {
+    ScheduledStar existing = scheduled.get(starID);
+    if (existing != null && !existing.leased
+        && existing.schedule.dueTimeMs == schedule.dueTimeMs) {
+      // most saves (and reloads) don't change when the star is due.
+      return;
+    }
+
+    ScheduledStar entry = new ScheduledStar(starID, schedule, false);
+    scheduled.put(starID, entry);
+    queue.add(entry);
+
+    if (queue.size() > scheduled.size() + MAX_STALE_ENTRIES) {
+      compact();
+    }
+  }
+
+  /**
+   * Rebuilds the queue from {@link #scheduled}, dropping all the stale entries. Entries that are
+   * scheduled while we're doing this are either added by us or by {@link #schedule}, or both
+   * (in which case the extra one will be skipped like any other stale entry).
+   */
+  private void compact() {
+    if (!compacting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      queue.clear();
+      for (ScheduledStar entry : scheduled.values()) {
+        if (!entry.leased) {
+          queue.add(entry);
+        }
+      }
+    } finally {
+      compacting.set(false);
+    }
+  }
+
+  private void loadSchedule() {
+    try (SqlStmt stmt = DB.prepare(StarSimulationPolicy.StarState.SQL)) {
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        StarSimulationPolicy.StarState state = StarSimulationPolicy.StarState.fromSqlResult(res);
+        if (ShardManager.i.isOwned(state.starID)) {
+          schedule(state.starID, policy.schedule(state));
+        }
+      }
+    } catch (Exception e) {
+      log.error("Error loading stars to simulate.", e);
+    }
+    log.info("Loaded %d stars to simulate.", scheduled.size());
+  }
+
+  private static class ScheduledStar implements Delayed {
+    public final int starID;
+    public final StarSimulationPolicy.Schedule schedule;
+
+    /** True if the star is being simulated, in which case this entry isn't in the queue. */
+    public final boolean leased;
+
+    public ScheduledStar(int starID, StarSimulationPolicy.Schedule schedule, boolean leased) {
+      this.starID = starID;
+      this.schedule = schedule;
+      this.leased = leased;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(schedule.dueTimeMs - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      long dueTimeMs = schedule.dueTimeMs;
+      long otherDueTimeMs = ((ScheduledStar) other).schedule.dueTimeMs;
+      return dueTimeMs < otherDueTimeMs ? -1 : (dueTimeMs == otherDueTimeMs ? 0 : 1);
     }
   }
 }
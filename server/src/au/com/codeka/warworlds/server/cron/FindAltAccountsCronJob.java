@@ -79,8 +79,9 @@ public class FindAltAccountsCronJob extends CronJob {
             for (Messages.EmpireAltAccounts pb : alts) {
                 stmt.setInt(1, pb.getEmpireId());
                 stmt.setBytes(2, pb.toByteArray());
-                stmt.update();
+                stmt.addBatch();
             }
+            stmt.executeBatch();
         }
     }
 
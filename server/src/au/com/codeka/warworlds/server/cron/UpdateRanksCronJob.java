@@ -128,13 +128,14 @@ public class UpdateRanksCronJob extends CronJob {
             try (SqlStmt stmt = t.prepare(sql)) {
                 for (EmpireRank rank : sortedRanks) {
                     stmt.setInt(1, rank.getEmpireID());
-                    stmt.update();
+                    stmt.addBatch();
                 }
+                stmt.executeBatch();
             }
 
             sql = "INSERT INTO empire_ranks (empire_id, rank, total_stars, total_colonies," +
                                            " total_buildings, total_ships, total_population)" +
-                 " VALUES (?, ?, ?, ?, ?, ?, ?);";
+                 " VALUES (?, ?, ?, ?, ?, ?, ?)";
             try (SqlStmt stmt = t.prepare(sql)) {
                 int rankValue = 1;
                 for (EmpireRank rank : sortedRanks) {
@@ -145,10 +146,11 @@ public class UpdateRanksCronJob extends CronJob {
                     stmt.setInt(5, rank.getTotalBuildings());
                     stmt.setInt(6, rank.getTotalShips());
                     stmt.setInt(7, rank.getTotalPopulation());
-                    stmt.update();
+                    stmt.addBatch();
 
                     rankValue ++;
                 }
+                stmt.executeBatch();
             }
 
             t.commit();
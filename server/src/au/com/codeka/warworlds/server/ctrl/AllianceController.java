@@ -90,6 +90,8 @@ public class AllianceController {
         } catch (Exception e) {
             throw new RequestException(e);
         }
+        // the alliance is part of every one of the empire's fleets, wherever they are
+        new StarController(db.getTransaction()).markEmpireStarsModified(empireID);
     }
 
     public int addRequest(AllianceRequest request) throws RequestException {
@@ -153,6 +155,7 @@ public class AllianceController {
         } catch (Exception e) {
             throw new RequestException(e);
         }
+        new StarController(db.getTransaction()).markEmpireStarsModified(ownerEmpire.getID());
     }
 
     public byte[] getAllianceShield(int allianceID, Integer shieldID) throws RequestException {
@@ -382,9 +385,9 @@ public class AllianceController {
             }
 
             if (!requestIDs.isEmpty()) {
-                sql = "SELECT * FROM alliance_request_votes WHERE alliance_request_id IN ";
-                sql += buildInClause(requestIDs);
+                sql = "SELECT * FROM alliance_request_votes WHERE alliance_request_id = ANY(?)";
                 try (SqlStmt stmt = prepare(sql)) {
+                    stmt.setIntArray(1, requestIDs);
                     SqlResult res = stmt.select();
                     while (res.next()) {
                         AllianceRequestVote vote = new AllianceRequestVote(res);
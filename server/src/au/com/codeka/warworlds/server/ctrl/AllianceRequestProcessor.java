@@ -137,6 +137,9 @@ public abstract class AllianceRequestProcessor {
                 stmt.setInt(3, mRequest.getRequestEmpireID());
                 stmt.update();
             }
+            // the alliance is part of every one of the empire's fleets, wherever they are
+            new StarController(ctrl.getDB().getTransaction())
+                    .markEmpireStarsModified(mRequest.getRequestEmpireID());
 
             // if you have open requests to join other alliances, withdraw those
             sql = "UPDATE alliance_requests SET state = ?" +
@@ -169,6 +172,8 @@ public abstract class AllianceRequestProcessor {
                 stmt.setInt(1, mRequest.getRequestEmpireID());
                 stmt.update();
             }
+            new StarController(ctrl.getDB().getTransaction())
+                    .markEmpireStarsModified(mRequest.getRequestEmpireID());
 
             // TODO: send a notification
         }
@@ -188,6 +193,8 @@ public abstract class AllianceRequestProcessor {
                 stmt.setInt(1, mRequest.getTargetEmpireID());
                 stmt.update();
             }
+            new StarController(ctrl.getDB().getTransaction())
+                    .markEmpireStarsModified(mRequest.getTargetEmpireID());
 
             // TODO: send a notification
         }
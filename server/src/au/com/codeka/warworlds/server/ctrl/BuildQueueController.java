@@ -16,6 +16,7 @@ import au.com.codeka.common.model.DesignKind;
 import au.com.codeka.common.model.ShipDesign;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
 import au.com.codeka.warworlds.server.model.BuildRequest;
@@ -36,8 +37,8 @@ public class BuildQueueController {
         db = new DataBase(trans);
     }
 
-    public void build(BuildRequest buildRequest) throws RequestException {
-        Star star = new StarController(db.getTransaction()).getStar(buildRequest.getStarID());
+    /** Adds the given build request to the given star, which the caller is going to save. */
+    public void build(Star star, BuildRequest buildRequest) throws RequestException {
         Colony colony = star.getColony(buildRequest.getColonyID());
 
         Design design = DesignManager.i.getDesign(buildRequest.getDesignKind(),
@@ -253,14 +254,18 @@ public class BuildQueueController {
         } catch(Exception e) {
             throw new RequestException(e);
         }
+        new StarController(db.getTransaction()).markModified(star);
     }
 
     public void updateNotes(int buildRequestID, String notes) throws RequestException {
-        String sql = "UPDATE build_requests SET notes = ? WHERE id = ?";
+        String sql = "UPDATE build_requests SET notes = ? WHERE id = ? RETURNING star_id";
         try (SqlStmt stmt = db.prepare(sql)) {
             stmt.setString(1, notes);
             stmt.setInt(2, buildRequestID);
-            stmt.update();
+            SqlResult res = stmt.updateAndSelect();
+            if (res.next()) {
+                new StarController(db.getTransaction()).markModified(res.getInt(1));
+            }
         } catch(Exception e) {
             throw new RequestException(e);
         }
@@ -276,6 +281,7 @@ public class BuildQueueController {
         } catch(Exception e) {
             throw new RequestException(e);
         }
+        new StarController(db.getTransaction()).markModified(star);
     }
 
     /**
@@ -325,6 +331,7 @@ public class BuildQueueController {
         } catch(Exception e) {
             throw new RequestException(e);
         }
+        new StarController(db.getTransaction()).markModified(buildRequest.getStarID());
     }
 
     private static class DataBase extends BaseDataBase {
@@ -35,6 +35,7 @@ public class BuildingController {
             Building building = new Building(star, colony, designID, notes);
             db.createBuilding(colony, building);
             colony.getBuildings().add(building);
+            new StarController(db.getTransaction()).markModified(star);
 
             // TODO: hard-coded?
             if (building.getDesignID().equals("hq")) {
@@ -66,6 +67,7 @@ public class BuildingController {
 
         try {
             db.upgradeBuilding(existingBuilding);
+            new StarController(db.getTransaction()).markModified(star);
             return existingBuilding;
         } catch(Exception e) {
             throw new RequestException(e);
@@ -102,11 +102,12 @@ public class ColonyController {
             }
 
             try {
-                db.destroyColony(colony.getStarID(), colony.getID());
+                db.destroyColony(star, colony.getID());
             } catch (Exception e) {
                 throw new RequestException(e);
             }
-            new StarController(db.getTransaction()).removeEmpirePresences(colony.getStarID());
+            StarCache.i.invalidate(colony.getStarID());
+            new StarController(db.getTransaction()).removeEmpirePresences(star);
             star.getColonies().remove(colony);
 
             // if this is the last colony for this empire on this star, make sure the empire's home
@@ -160,6 +161,7 @@ public class ColonyController {
         } catch(Exception e) {
             throw new RequestException(e);
         }
+        new StarController(db.getTransaction()).markModified(colony.getStarID());
     }
 
     public Colony colonize(Empire empire, Star star, int planetIndex, float population) throws RequestException {
@@ -235,6 +237,7 @@ public class ColonyController {
         }
 
         star.getColonies().add(colony);
+        new StarController(db.getTransaction()).markModified(star);
         return colony;
     }
 
@@ -246,21 +249,22 @@ public class ColonyController {
             super(trans);
         }
 
-        public void destroyColony(int starID, int colonyID) throws Exception {
+        public void destroyColony(Star star, int colonyID) throws Exception {
             String sql = "DELETE FROM colonies WHERE id = ?";
             try (SqlStmt stmt = prepare(sql)) {
                 stmt.setInt(1, colonyID);
                 stmt.update();
             }
 
-            sql = "UPDATE stars SET time_emptied = ? WHERE id = ?";
-            try (SqlStmt stmt = DB.prepare(sql)) {
+            // bump the version so that nobody uses a copy of the star with the colony still on it,
+            // and keep ours in step so the caller can still save it.
+            sql = "UPDATE stars SET time_emptied = ?, version = version + 1 WHERE id = ?";
+            try (SqlStmt stmt = prepare(sql)) {
                 stmt.setDateTime(1, DateTime.now());
-                stmt.setInt(2, starID);
+                stmt.setInt(2, star.getID());
                 stmt.update();
-            } catch(Exception e) {
-                throw new RequestException(e);
             }
+            star.setVersion(star.getVersion() + 1);
         }
     }
 }
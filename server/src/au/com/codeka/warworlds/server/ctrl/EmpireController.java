@@ -18,6 +18,7 @@ import com.google.common.collect.Lists;
 import au.com.codeka.common.model.BaseColony;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStateTranslater;
@@ -251,53 +252,64 @@ public class EmpireController {
     if (!starFinder.findStarForNewEmpire()) {
       throw new RequestException(500); // todo: expand universe
     }
-    Star star = new StarController().getStar(starFinder.getStarID());
-    empire.setHomeStar(star);
+    // hold the star's lock from loading it until it's saved with the new empire on it
+    try (StarLocks.Lock lock = StarLocks.i.lock(starFinder.getStarID())) {
+      Star star = new StarController().getStar(starFinder.getStarID());
+      empire.setHomeStar(star);
 
-    // create the empire
-    db.createEmpire(empire);
+      // create the empire
+      db.createEmpire(empire);
 
-    // empty the star of it's current (native) inhabitants
-    String sql = "DELETE FROM colonies WHERE star_id = ?";
-    try (SqlStmt stmt = DB.prepare(sql)) {
-      stmt.setInt(1, star.getID());
-      stmt.update();
-    } catch (Exception e) {
-      throw new RequestException(e);
-    }
-    sql = "DELETE FROM fleets WHERE star_id = ?";
-    try (SqlStmt stmt = DB.prepare(sql)) {
-      stmt.setInt(1, star.getID());
-      stmt.update();
-    } catch (Exception e) {
-      throw new RequestException(e);
-    }
-    sql = "UPDATE stars SET time_emptied = ? WHERE id = ?";
-    try (SqlStmt stmt = DB.prepare(sql)) {
-      stmt.setDateTime(1, DateTime.now());
-      stmt.setInt(2, star.getID());
-      stmt.update();
-    } catch (Exception e) {
-      throw new RequestException(e);
-    }
+      // empty the star of it's current (native) inhabitants
+      String sql = "DELETE FROM colonies WHERE star_id = ?";
+      try (SqlStmt stmt = DB.prepare(sql)) {
+        stmt.setInt(1, star.getID());
+        stmt.update();
+      } catch (Exception e) {
+        throw new RequestException(e);
+      }
+      sql = "DELETE FROM fleet_upgrades WHERE fleet_id IN (SELECT id FROM fleets WHERE star_id = ?)";
+      try (SqlStmt stmt = DB.prepare(sql)) {
+        stmt.setInt(1, star.getID());
+        stmt.update();
+      } catch (Exception e) {
+        throw new RequestException(e);
+      }
+      sql = "DELETE FROM fleets WHERE star_id = ?";
+      try (SqlStmt stmt = DB.prepare(sql)) {
+        stmt.setInt(1, star.getID());
+        stmt.update();
+      } catch (Exception e) {
+        throw new RequestException(e);
+      }
+      sql = "UPDATE stars SET time_emptied = ?, version = version + 1 WHERE id = ?";
+      try (SqlStmt stmt = DB.prepare(sql)) {
+        stmt.setDateTime(1, DateTime.now());
+        stmt.setInt(2, star.getID());
+        stmt.update();
+      } catch (Exception e) {
+        throw new RequestException(e);
+      }
+      StarCache.i.invalidate(star.getID());
 
-    // re-fetch the star with it's new details...
-    star = new StarController().getStar(star.getID());
-    Planet planet = (Planet) star.getPlanets()[starFinder.getPlanetIndex() - 1];
+      // re-fetch the star with it's new details...
+      star = new StarController().getStar(star.getID());
+      Planet planet = (Planet) star.getPlanets()[starFinder.getPlanetIndex() - 1];
 
-    new ColonyController(db.getTransaction()).colonize(empire, star, starFinder.getPlanetIndex(),
-        planet.getPopulationCongeniality() * 0.8f);
+      new ColonyController(db.getTransaction()).colonize(empire, star, starFinder.getPlanetIndex(),
+          planet.getPopulationCongeniality() * 0.8f);
 
-    new FleetController(db.getTransaction()).createFleet(empire, star, "colonyship", 2.0f);
-    new FleetController(db.getTransaction()).createFleet(empire, star, "scout", 10.0f);
-    new FleetController(db.getTransaction()).createFleet(empire, star, "fighter", 50.0f);
-    new FleetController(db.getTransaction()).createFleet(empire, star, "troopcarrier", 150.0f);
+      new FleetController(db.getTransaction()).createFleet(empire, star, "colonyship", 2.0f);
+      new FleetController(db.getTransaction()).createFleet(empire, star, "scout", 10.0f);
+      new FleetController(db.getTransaction()).createFleet(empire, star, "fighter", 50.0f);
+      new FleetController(db.getTransaction()).createFleet(empire, star, "troopcarrier", 150.0f);
 
-    // update the last simulation time for the star so that it doesn't simulate
-    // until we
-    // actually arrived...
-    star.setLastSimulation(DateTime.now());
-    new StarController().update(star);
+      // update the last simulation time for the star so that it doesn't simulate
+      // until we
+      // actually arrived...
+      star.setLastSimulation(DateTime.now());
+      new StarController().update(star);
+    }
   }
 
   /**
@@ -309,10 +321,13 @@ public class EmpireController {
         "DELETE FROM build_requests WHERE empire_id = ?",
         "DELETE FROM buildings WHERE empire_id = ?", "DELETE FROM colonies WHERE empire_id = ?",
         "DELETE FROM empire_presences WHERE empire_id = ?",
+        "DELETE FROM fleet_upgrades WHERE fleet_id IN (SELECT id FROM fleets WHERE empire_id = ?)",
         "DELETE FROM fleets WHERE empire_id = ?", "DELETE FROM scout_reports WHERE empire_id = ?",
         "DELETE FROM situation_reports WHERE empire_id = ?", };
 
     try (Transaction t = DB.beginTransaction()) {
+      // the empire could've had colonies and fleets anywhere, so do this before we delete them
+      new StarController(t).markEmpireStarsModified(empireID);
       for (String sql : sqls) {
         try (SqlStmt stmt = t.prepare(sql)) {
           stmt.setInt(1, empireID);
@@ -471,9 +486,10 @@ public class EmpireController {
     }
 
     public Collection<Empire> getEmpires(int[] ids) throws Exception {
-      String sql = getSelectEmpire("empires.id IN " + buildInClause(ids), true);
+      String sql = getSelectEmpire("empires.id = ANY(?)", true);
 
       try (SqlStmt stmt = prepare(sql)) {
+        stmt.setIntArray(1, ids);
         SqlResult res = stmt.select();
 
         HashMap<Integer, Empire> empires = new HashMap<Integer, Empire>();
@@ -490,9 +506,10 @@ public class EmpireController {
     public Map<Integer, Double> getTaxCollectedPerHour(Collection<Integer> empireIDs)
         throws Exception {
       String sql = "SELECT empire_id, sum(tax_per_hour)" + " FROM empire_presences"
-          + " WHERE empire_id IN " + buildInClause(empireIDs) + " GROUP BY empire_id";
+          + " WHERE empire_id = ANY(?) GROUP BY empire_id";
 
       try (SqlStmt stmt = prepare(sql)) {
+        stmt.setIntArray(1, empireIDs);
         SqlResult res = stmt.select();
 
         Map<Integer, Double> taxRates = new TreeMap<Integer, Double>();
@@ -590,9 +607,10 @@ public class EmpireController {
       }
 
       if (!notOnlineEmpireIDs.isEmpty()) {
-        String sql = "SELECT empire_id, MAX(date) FROM empire_logins WHERE empire_id IN "
-            + buildInClause(notOnlineEmpireIDs) + " GROUP BY empire_id";
+        String sql = "SELECT empire_id, MAX(date) FROM empire_logins WHERE empire_id = ANY(?)"
+            + " GROUP BY empire_id";
         try (SqlStmt stmt = prepare(sql)) {
+          stmt.setIntArray(1, notOnlineEmpireIDs);
           SqlResult result = stmt.select();
           while (result.next()) {
             int empireID = result.getInt(1);
@@ -25,6 +25,7 @@ public class FleetController {
             Fleet fleet = new Fleet(empire, star, designID, numShips);
             db.createFleet(fleet);
             star.getFleets().add(fleet);
+            new StarController(db.getTransaction()).markModified(star);
             return fleet;
         } catch(Exception e) {
             throw new RequestException(e);
@@ -36,6 +37,7 @@ public class FleetController {
             FleetUpgrade upgrade = new FleetUpgrade(star.getID(), fleet.getID(), upgradeID);
             db.addUpgrade(upgrade);
             fleet.getUpgrades().add(upgrade);
+            new StarController(db.getTransaction()).markModified(star);
         } catch(Exception e) {
             throw new RequestException(e);
         }
@@ -75,6 +77,7 @@ public class FleetController {
                 throw new RequestException(e);
             }
         }
+        new StarController(db.getTransaction()).markModified(star);
     }
 
     private static class DataBase extends BaseDataBase {
@@ -0,0 +1,237 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+
+import com.google.gson.Gson;
+
+/**
+ * Carries notifications from wherever they're generated to the \c NotificationHandlers (i.e.
+ * long-polling clients) connected to every server node. Each node's \c NotificationController
+ * publishes to the bus, and delivers whatever it receives from the bus to its own handlers.
+ *
+ * The "in-process" bus just delivers straight back to this node, which is all you need if you
+ * only have one node. The "postgres" bus goes via PostgreSQL's LISTEN/NOTIFY, so every node
+ * connected to the same database gets every notification.
+ */
+public abstract class NotificationBus {
+  private static final Log log = new Log("NotificationBus");
+
+  /** Who a \c Message should be delivered to. */
+  public enum Target {
+    /** Each of the empires in \c ids. If they're not online, keep it for when they reconnect. */
+    EMPIRES,
+
+    /** Every online empire in the alliance \c ids[0]. */
+    ALLIANCE,
+
+    /** Every online empire. */
+    ALL,
+
+    /**
+     * Not a notification: the events that are now due on the stars in \c ids, for the node that
+     * owns them (see \c EventProcessor.onStarUpdatedElsewhere).
+     */
+    EVENTS,
+
+    /**
+     * Not a notification: the notifications in \c notificationIDs have been delivered to the
+     * empire \c ids[0], so no node needs to keep them for it any more.
+     */
+    DELIVERED
+  }
+
+  /** A notification, plus who it's for. */
+  public static class Message {
+    public Target target;
+    public int[] ids;
+    public String notificationID;
+    public Map<String, String> values;
+    public long creationMs;
+
+    /** For \c DELIVERED, the notifications that were delivered. */
+    public String[] notificationIDs;
+
+    /** For \c EVENTS, the kind of event and the time it's due on each star in \c ids. */
+    public int[] eventIndices;
+    public long[] dueTimesMs;
+
+    public Message() {
+    }
+
+    public Message(int[] starIDs, int[] eventIndices, long[] dueTimesMs) {
+      this.target = Target.EVENTS;
+      this.ids = starIDs;
+      this.eventIndices = eventIndices;
+      this.dueTimesMs = dueTimesMs;
+      this.creationMs = System.currentTimeMillis();
+    }
+
+    public Message(int empireID, String[] notificationIDs) {
+      this.target = Target.DELIVERED;
+      this.ids = new int[] {empireID};
+      this.notificationIDs = notificationIDs;
+      this.creationMs = System.currentTimeMillis();
+    }
+
+    public Message(Target target, int[] ids, NotificationController.Notification notification) {
+      this.target = target;
+      this.ids = ids;
+      this.notificationID = notification.id;
+      this.values = notification.values;
+      this.creationMs = notification.creation.getMillis();
+    }
+
+    public NotificationController.Notification getNotification() {
+      return new NotificationController.Notification(notificationID,
+          new TreeMap<String, String>(values), new DateTime(creationMs));
+    }
+  }
+
+  public interface Listener {
+    void onMessage(Message msg);
+  }
+
+  /** Creates the bus with the given name, "in-process" or "postgres". */
+  public static NotificationBus create(String name) {
+    if (name.equals(Postgres.NAME)) {
+      return new Postgres();
+    } else if (name.equals(InProcess.NAME)) {
+      return new InProcess();
+    }
+    log.warning("Unknown notification bus '%s', using '%s'.", name, InProcess.NAME);
+    return new InProcess();
+  }
+
+  /** Starts listening, every message published by any node will be passed to \c listener. */
+  public abstract void start(Listener listener);
+
+  public abstract void publish(Message msg);
+
+  public abstract void stop();
+
+  /** Delivers every message straight back to the listener on this node. */
+  public static class InProcess extends NotificationBus {
+    public static final String NAME = "in-process";
+
+    private Listener listener;
+
+    @Override
+    public void start(Listener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void publish(Message msg) {
+      listener.onMessage(msg);
+    }
+
+    @Override
+    public void stop() {
+    }
+  }
+
+  /**
+   * Publishes messages with NOTIFY, and LISTENs for them on a dedicated connection. The version of
+   * the JDBC driver we use can't block waiting for notifications, so the listening thread polls.
+   */
+  public static class Postgres extends NotificationBus {
+    public static final String NAME = "postgres";
+
+    private static final long POLL_INTERVAL_MS = 100;
+    private static final long RECONNECT_INTERVAL_MS = 5000;
+
+    private final Gson gson = new Gson();
+    private final String channel = "notifications_" + DB.getSchemaName();
+    private Listener listener;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    @Override
+    public void start(final Listener listener) {
+      this.listener = listener;
+      thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (!stopped) {
+            try {
+              listen(listener);
+            } catch (InterruptedException e) {
+              return;
+            } catch (Exception e) {
+              log.error("Error listening for notifications, reconnecting.", e);
+            }
+
+            try {
+              Thread.sleep(RECONNECT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.setName("NotificationBus");
+      thread.start();
+    }
+
+    @Override
+    public void publish(Message msg) {
+      try (SqlStmt stmt = DB.prepare("SELECT pg_notify(?, ?)")) {
+        stmt.setString(1, channel);
+        stmt.setString(2, gson.toJson(msg));
+        stmt.select();
+      } catch (Exception e) {
+        // e.g. the payload was too big. Better that it only goes to this node than nowhere.
+        log.error("Error publishing notification, delivering locally.", e);
+        listener.onMessage(msg);
+      }
+    }
+
+    @Override
+    public void stop() {
+      stopped = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    private void listen(Listener listener) throws SQLException, InterruptedException {
+      try (Connection conn = DB.openDedicatedConnection();
+          Statement stmt = conn.createStatement()) {
+        stmt.execute("LISTEN \"" + channel + "\"");
+        log.info("Listening for notifications on: %s", channel);
+        PGConnection pgConn = (PGConnection) conn;
+
+        while (!stopped) {
+          // a round-trip to the server is what picks up any pending notifications
+          stmt.executeQuery("SELECT 1").close();
+
+          PGNotification[] notifications = pgConn.getNotifications();
+          if (notifications != null) {
+            for (PGNotification notification : notifications) {
+              try {
+                listener.onMessage(gson.fromJson(notification.getParameter(), Message.class));
+              } catch (Exception e) {
+                log.error("Error delivering notification: %s", notification.getParameter(), e);
+              }
+            }
+          }
+
+          Thread.sleep(POLL_INTERVAL_MS);
+        }
+      }
+    }
+  }
+}
@@ -2,19 +2,26 @@ package au.com.codeka.warworlds.server.ctrl;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.joda.time.DateTime;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.model.BaseChatConversationParticipant;
 import au.com.codeka.warworlds.server.Configuration;
+import au.com.codeka.warworlds.server.EventProcessor;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ShardManager;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
@@ -35,6 +42,33 @@ public class NotificationController {
   private static RecentNotificationCache recentNotifications = new RecentNotificationCache();
   private static NotificationHandlerCache handlers = new NotificationHandlerCache();
 
+  private static final NotificationBus.Listener busListener = new NotificationBus.Listener() {
+    @Override
+    public void onMessage(NotificationBus.Message msg) {
+      deliver(msg);
+    }
+  };
+  private static NotificationBus bus = new NotificationBus.InProcess();
+  static {
+    bus.start(busListener);
+  }
+
+  /**
+   * Switches to the notification bus named in the configuration. Until this is called (e.g. in
+   * cron jobs), notifications only go to handlers on this node.
+   */
+  public static void setup() {
+    NotificationBus newBus = NotificationBus.create(Configuration.i.getNotificationBus());
+    newBus.start(busListener);
+    NotificationBus oldBus = bus;
+    bus = newBus;
+    oldBus.stop();
+  }
+
+  public static void shutdown() {
+    bus.stop();
+  }
+
   /** Send a notification to all participants in the given conversation. */
   public void sendNotificationToConversation(int conversationID, String name, String value)
       throws RequestException {
@@ -65,16 +99,16 @@ public class NotificationController {
   public void sendNotificationToOnlineEmpire(int empireID, String name, String value)
       throws RequestException {
     Notification notification = new Notification(name, value);
-    if (!handlers.sendNotification(empireID, notification)) {
-      recentNotifications.addNotification(empireID, notification);
-    }
+    bus.publish(new NotificationBus.Message(NotificationBus.Target.EMPIRES, new int[] {empireID},
+        notification));
   }
 
   /** Send a notification to all empires in the given alliance who are currently online. */
   public void sendNotificationToOnlineAlliance(int allianceID, String name, String value)
       throws RequestException {
     Notification notification = new Notification(name, value);
-    handlers.sendNotificationToAlliance(allianceID, notification);
+    bus.publish(new NotificationBus.Message(NotificationBus.Target.ALLIANCE,
+        new int[] {allianceID}, notification));
   }
 
   /** Send a notification to all empires that are currently online. */
@@ -83,13 +117,33 @@ public class NotificationController {
     values.put(name, value);
     Notification notification = new Notification(name, value);
 
-    handlers.sendNotificationToAll(notification);
+    bus.publish(new NotificationBus.Message(NotificationBus.Target.ALL, new int[0], notification));
+  }
+
+  /**
+   * Tells the nodes that own the given stars about the events that are now due on them, see
+   * \c EventProcessor.onStarUpdated.
+   */
+  public static void publishEvents(int[] starIDs, int[] eventIndices, long[] dueTimesMs) {
+    bus.publish(new NotificationBus.Message(starIDs, eventIndices, dueTimesMs));
   }
 
-  /** Gets a list of all the recent notifications for the given empire. */
+  /**
+   * Gets a list of all the recent notifications for the given empire. Every node keeps them, so
+   * we tell the others that these ones have been delivered.
+   */
   public List<Map<String, String>> getRecentNotifications(int empireID) {
+    List<Notification> recent = recentNotifications.getRecentNotifications(empireID);
+    if (!recent.isEmpty()) {
+      String[] notificationIDs = new String[recent.size()];
+      for (int i = 0; i < recent.size(); i++) {
+        notificationIDs[i] = recent.get(i).id;
+      }
+      bus.publish(new NotificationBus.Message(empireID, notificationIDs));
+    }
+
     List<Map<String, String>> notifications = new ArrayList<Map<String, String>>();
-    for (Notification n : recentNotifications.getRecentNotifications(empireID)) {
+    for (Notification n : recent) {
       if (n.isTooOld()) {
         continue;
       }
@@ -103,9 +157,17 @@ public class NotificationController {
     handlers.addNotificationHandler(empireID, handler);
   }
 
-  /** Returns {@code true} if the given empire is currently connected/online. */
+  /**
+   * Returns {@code true} if the given empire is currently connected/online, to this node or (as
+   * of its last heartbeat, see \c ShardManager) any other.
+   */
   public boolean isEmpireOnline(int empireID) {
-    return handlers.isConnected(empireID);
+    return handlers.isConnected(empireID) || ShardManager.i.isEmpireOnlineElsewhere(empireID);
+  }
+
+  /** Returns the IDs of all the empires connected to this node. */
+  public List<Integer> getConnectedEmpireIDs() {
+    return handlers.getConnectedEmpireIDs();
   }
 
   /** Sends the given {@link Notification} to all the given chat conversation participants. */
@@ -116,28 +178,39 @@ public class NotificationController {
       msgBuilder.addData(value.getKey(), value.getValue());
     }
 
-    // go through attached handlers and mark any in there as already done.
+    // Empires connected to this node will get it from their handler, so they don't need a push
+    // notification as well. We can't tell if they're connected to another node, so they might.
     Set<Integer> doneEmpires = new HashSet<Integer>();
+    Set<Integer> unmutedEmpires = new HashSet<Integer>();
     for (ChatConversationParticipant participant : participants) {
       if (participant.isMuted()) {
         continue;
       }
 
-      if (!doneEmpires.contains(participant.getEmpireID())) {
-        if (handlers.sendNotification(participant.getEmpireID(), notification)) {
-          doneEmpires.add(participant.getEmpireID());
-        } else {
-          recentNotifications.addNotification(participant.getEmpireID(), notification);
-        }
+      unmutedEmpires.add(participant.getEmpireID());
+      if (handlers.isConnected(participant.getEmpireID())) {
+        doneEmpires.add(participant.getEmpireID());
       }
     }
+    int[] unmutedEmpireIDs = new int[unmutedEmpires.size()];
+    int index = 0;
+    for (Integer empireID : unmutedEmpires) {
+      unmutedEmpireIDs[index++] = empireID;
+    }
+    bus.publish(new NotificationBus.Message(NotificationBus.Target.EMPIRES, unmutedEmpireIDs,
+        notification));
 
     Map<String, String> devices = new TreeMap<String, String>();
     String sql = "SELECT gcm_registration_id, devices.user_email, empires.id AS empire_id"
         + " FROM devices" + " INNER JOIN empires ON devices.user_email = empires.user_email"
-        + " WHERE empires.id IN " + BaseDataBase.buildInClause(participants)
+        + " WHERE empires.id = ANY(?)"
         + " AND gcm_registration_id IS NOT NULL";
     try (SqlStmt stmt = DB.prepare(sql)) {
+      int[] empireIDs = new int[participants.length];
+      for (int i = 0; i < participants.length; i++) {
+        empireIDs[i] = participants[i].getEmpireID();
+      }
+      stmt.setIntArray(1, empireIDs);
       SqlResult res = stmt.select();
       while (res.next()) {
         String registrationId = res.getString(1);
@@ -244,6 +317,45 @@ public class NotificationController {
     }
   }
 
+  /**
+   * Delivers a message from the \c NotificationBus to the handlers connected to this node. Every
+   * node gets every message, so each node that doesn't have a handler for an empire keeps the
+   * notification in case the empire reconnects to it. Whichever node does deliver it tells the
+   * others (with a \c DELIVERED message), so they can drop it again and the empire doesn't get
+   * it twice.
+   */
+  private static void deliver(NotificationBus.Message msg) {
+    if (msg.target == NotificationBus.Target.EVENTS) {
+      EventProcessor.i.onStarUpdatedElsewhere(msg.ids, msg.eventIndices, msg.dueTimesMs);
+      return;
+    }
+    if (msg.target == NotificationBus.Target.DELIVERED) {
+      recentNotifications.removeNotifications(msg.ids[0], msg.notificationIDs);
+      return;
+    }
+
+    Notification notification = msg.getNotification();
+    switch (msg.target) {
+      case EMPIRES:
+        for (int empireID : msg.ids) {
+          if (handlers.sendNotification(empireID, notification)) {
+            bus.publish(new NotificationBus.Message(empireID, new String[] {notification.id}));
+          } else {
+            recentNotifications.addNotification(empireID, notification);
+          }
+        }
+        break;
+      case ALLIANCE:
+        handlers.sendNotificationToAlliance(msg.ids[0], notification);
+        break;
+      case ALL:
+        handlers.sendNotificationToAll(notification);
+        break;
+      default:
+        break;
+    }
+  }
+
   /**
    * This class keeps an in-memory cache of "recent" notifications we've generated, which is used
    * to re-send notification if the client disconnects briefly.
@@ -278,6 +390,26 @@ public class NotificationController {
       }
     }
 
+    /** Removes the given notifications, which have been delivered by another node. */
+    public void removeNotifications(int empireID, String[] notificationIDs) {
+      Set<String> ids = new HashSet<String>(Arrays.asList(notificationIDs));
+      synchronized (cache) {
+        List<Notification> notifications = cache.get(empireID);
+        if (notifications == null) {
+          return;
+        }
+        Iterator<Notification> it = notifications.iterator();
+        while (it.hasNext()) {
+          if (ids.contains(it.next().id)) {
+            it.remove();
+          }
+        }
+        if (notifications.isEmpty()) {
+          cache.remove(empireID);
+        }
+      }
+    }
+
     public List<Notification> getRecentNotifications(int empireID) {
       synchronized (cache) {
         List<Notification> notifications = cache.get(empireID);
@@ -310,70 +442,78 @@ public class NotificationController {
     }
   }
 
-  /** Holds the collection of {@link NotficationHandler} instances for all connected empires. */
+  /**
+   * Holds the collection of {@link NotificationHandler} instances for all connected empires.
+   *
+   * Nothing here takes a lock: each empire has a concurrent queue of handlers, and sending a
+   * notification takes handlers off the queue one at a time, so each handler is only ever used
+   * once (after a handler has sent a notification, it's finished and the client is expected to
+   * re-establish it). Handlers are resumed after they've been taken off the queue, so a slow
+   * resume (or a notification going to everybody) doesn't hold anyone else up.
+   *
+   * We also keep an index from alliance to the empires in it that have handlers, so that alliance
+   * notifications don't need to look at every connected empire.
+   */
   private static class NotificationHandlerCache {
-    private HashMap<Integer, List<NotificationHandler>> handlers;
-
-    public NotificationHandlerCache() {
-      handlers = new HashMap<Integer, List<NotificationHandler>>();
-    }
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<NotificationHandler>> handlers =
+        new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<NotificationHandler>>();
+    private final ConcurrentHashMap<Integer, Set<Integer>> allianceEmpires =
+        new ConcurrentHashMap<Integer, Set<Integer>>();
 
     /** Returns {@code true} if the given empire is currently connected. */
     public boolean isConnected(int empireID) {
-      List<NotificationHandler> empireHandlers = handlers.get(empireID);
-      if (empireHandlers == null) {
-        return false;
-      }
+      ConcurrentLinkedQueue<NotificationHandler> empireHandlers = handlers.get(empireID);
+      return empireHandlers != null && !empireHandlers.isEmpty();
+    }
 
-      if (empireHandlers.isEmpty()) {
-        return false;
+    public List<Integer> getConnectedEmpireIDs() {
+      List<Integer> empireIDs = new ArrayList<Integer>();
+      for (Map.Entry<Integer, ConcurrentLinkedQueue<NotificationHandler>> entry
+          : handlers.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          empireIDs.add(entry.getKey());
+        }
       }
-
-      return true;
+      return empireIDs;
     }
 
     public void addNotificationHandler(int empireID, NotificationHandler handler) {
-      synchronized (handlers) {
-        List<NotificationHandler> empireHandlers = handlers.get(empireID);
-        if (empireHandlers == null) {
-          empireHandlers = new ArrayList<NotificationHandler>();
-          handlers.put(empireID, empireHandlers);
+      ConcurrentLinkedQueue<NotificationHandler> empireHandlers = handlers.get(empireID);
+      if (empireHandlers == null) {
+        empireHandlers = new ConcurrentLinkedQueue<NotificationHandler>();
+        ConcurrentLinkedQueue<NotificationHandler> existing =
+            handlers.putIfAbsent(empireID, empireHandlers);
+        if (existing != null) {
+          empireHandlers = existing;
+        }
+      }
+      empireHandlers.add(handler);
+
+      // this has to come after the handler is added, see removeFromAlliance.
+      Set<Integer> empireIDs = allianceEmpires.get(handler.getAllianceID());
+      if (empireIDs == null) {
+        empireIDs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        Set<Integer> existing = allianceEmpires.putIfAbsent(handler.getAllianceID(), empireIDs);
+        if (existing != null) {
+          empireIDs = existing;
         }
-        empireHandlers.add(handler);
       }
+      empireIDs.add(empireID);
     }
 
     public boolean sendNotification(int empireID, Notification notification) {
-      synchronized (handlers) {
-        List<NotificationHandler> empireHandlers = handlers.get(empireID);
-        if (empireHandlers != null && empireHandlers.size() > 0) {
-          for (NotificationHandler handler : empireHandlers) {
-            handler.sendNotification(notification);
-          }
-
-          // once a handler has processed a notification, it's finished and
-          // the client is expected to re-establish it.
-          empireHandlers.clear();
-          return true;
-        }
+      List<NotificationHandler> taken = takeHandlers(handlers.get(empireID));
+      for (NotificationHandler handler : taken) {
+        handler.sendNotification(notification);
       }
-
-      return false;
+      return !taken.isEmpty();
     }
 
     /* Sends the given notification to all attached handlers at once. */
     public void sendNotificationToAll(Notification notification) {
-      synchronized (handlers) {
-        for (List<NotificationHandler> empireHandlers : handlers.values()) {
-          if (empireHandlers != null && empireHandlers.size() > 0) {
-            for (NotificationHandler handler : empireHandlers) {
-              handler.sendNotification(notification);
-            }
-
-            // once a handler has processed a notification, it's finished and
-            // the client is expected to re-establish it.
-            empireHandlers.clear();
-          }
+      for (ConcurrentLinkedQueue<NotificationHandler> empireHandlers : handlers.values()) {
+        for (NotificationHandler handler : takeHandlers(empireHandlers)) {
+          handler.sendNotification(notification);
         }
       }
     }
@@ -383,40 +523,79 @@ public class NotificationController {
      * they match the given alliance.
      */
     public void sendNotificationToAlliance(int allianceID, Notification notification) {
-      synchronized (handlers) {
-        for (List<NotificationHandler> empireHandlers : handlers.values()) {
-          if (empireHandlers != null && empireHandlers.size() > 0) {
-            boolean sent = false;
-            for (NotificationHandler handler : empireHandlers) {
-              if (handler.getAllianceID() != allianceID) {
-                continue;
-              }
-              handler.sendNotification(notification);
-              sent = true;
-            }
+      Set<Integer> empireIDs = allianceEmpires.get(allianceID);
+      if (empireIDs == null) {
+        return;
+      }
 
-            // once a handler has processed a notification, it's finished and
-            // the client is expected to re-establish it.
-            if (sent) {
-              empireHandlers.clear();
-            }
+      for (Integer empireID : empireIDs) {
+        ConcurrentLinkedQueue<NotificationHandler> empireHandlers = handlers.get(empireID);
+        for (NotificationHandler handler : takeHandlers(empireHandlers)) {
+          if (handler.getAllianceID() == allianceID) {
+            handler.sendNotification(notification);
+          } else {
+            // they must have changed alliance since this handler was added, it's still good for
+            // other notifications though.
+            empireHandlers.add(handler);
           }
         }
+        removeFromAlliance(allianceID, empireID, empireIDs);
       }
     }
+
+    /**
+     * Removes the given empire from the alliance index if it doesn't have any handlers left.
+     * Because handlers are added to the queue before the index, if one is added while we're
+     * removing the empire, either we'll see it in the queue and put the empire back, or it'll
+     * put the empire back itself.
+     */
+    private void removeFromAlliance(int allianceID, int empireID, Set<Integer> empireIDs) {
+      if (isConnected(empireID)) {
+        return;
+      }
+      empireIDs.remove(empireID);
+      if (isConnected(empireID)) {
+        empireIDs.add(empireID);
+      }
+    }
+
+    private static List<NotificationHandler> takeHandlers(
+        ConcurrentLinkedQueue<NotificationHandler> empireHandlers) {
+      List<NotificationHandler> taken = new ArrayList<NotificationHandler>();
+      if (empireHandlers == null) {
+        return taken;
+      }
+
+      NotificationHandler handler;
+      while ((handler = empireHandlers.poll()) != null) {
+        taken.add(handler);
+      }
+      return taken;
+    }
   }
 
-  /** A wrapper around the data we need for a notification. */
+  /**
+   * A wrapper around the data we need for a notification. The \c id is unique, so that every
+   * node's copy of the notification can be identified (see \c deliver).
+   */
   public static class Notification {
+    public String id;
     public DateTime creation;
     public Map<String, String> values;
 
     public Notification(String name, String value) {
+      id = UUID.randomUUID().toString();
       values = new TreeMap<String, String>();
       values.put(name, value);
       creation = DateTime.now();
     }
 
+    public Notification(String id, Map<String, String> values, DateTime creation) {
+      this.id = id;
+      this.values = values;
+      this.creation = creation;
+    }
+
     public boolean isTooOld() {
       long diffInMillis = DateTime.now().getMillis() - creation.getMillis();
       long diffInMinutes = diffInMillis / 60000;
@@ -1,20 +1,15 @@
 package au.com.codeka.warworlds.server.ctrl;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 
 import au.com.codeka.common.Pair;
-import au.com.codeka.common.model.BaseColony;
-import au.com.codeka.common.model.BaseFleet;
-import au.com.codeka.common.model.BaseStar;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
-import au.com.codeka.warworlds.server.model.Colony;
-import au.com.codeka.warworlds.server.model.Fleet;
-import au.com.codeka.warworlds.server.model.FleetUpgrade;
 import au.com.codeka.warworlds.server.model.Sector;
 import au.com.codeka.warworlds.server.model.Star;
 
@@ -89,11 +84,17 @@ public class SectorController {
     }
 
     public void swapStars(Star star1, Star star2) throws RequestException {
+        List<Integer> srcStarIDs;
         try {
             db.swapStars(star1, star2);
+            srcStarIDs = db.getFleetSourceStarIDs(star1.getID(), star2.getID());
         } catch(Exception e) {
             throw new RequestException(e);
         }
+        // fleets on other stars could be heading to one of these two
+        new StarController(db.getTransaction()).markModified(srcStarIDs);
+        StarCache.i.invalidate(star1.getID());
+        StarCache.i.invalidate(star2.getID());
     }
 
     private void populateSectors(List<Sector> sectors) throws RequestException {
@@ -104,42 +105,17 @@ public class SectorController {
                 ids[i] = sectors.get(i).getID();
             }
 
-            for (Star star : db.getStarsForSectors(ids)) {
-                // add the star to the correct sector
-                for (Sector sector : sectors) {
-                    if (star.getSectorID() == sector.getID()) {
-                        sector.getStars().add(star);
-                        break;
-                    }
-                }
-
-                star.setColonies(new ArrayList<BaseColony>());
-                star.setFleets(new ArrayList<BaseFleet>());
-            }
-
-            for (Colony colony : db.getColoniesForSectors(ids)) {
-                for (Sector sector : sectors) {
-                    if (colony.getSectorID() == sector.getID()) {
-                        for (BaseStar baseStar : sector.getStars()) {
-                            Star star = (Star) baseStar;
-                            if (star.getID() == colony.getStarID()) {
-                                star.getColonies().add(colony);
-                            }
-                        }
-                    }
-                }
+            HashMap<Integer, Sector> sectorsById = new HashMap<Integer, Sector>();
+            for (Sector sector : sectors) {
+                sectorsById.put(sector.getID(), sector);
             }
 
-            for (Fleet fleet : db.getFleetsForSectors(ids)) {
-                for (Sector sector : sectors) {
-                    if (fleet.getSectorID() == sector.getID()) {
-                        for (BaseStar baseStar : sector.getStars()) {
-                            Star star = (Star) baseStar;
-                            if (star.getID() == fleet.getStarID()) {
-                                star.getFleets().add(fleet);
-                            }
-                        }
-                    }
+            List<Star> stars = new StarGraphLoader(db, EnumSet.of(StarGraphLoader.Part.COLONIES,
+                    StarGraphLoader.Part.FLEETS)).loadStarsForSectors(ids);
+            for (Star star : stars) {
+                Sector sector = sectorsById.get(star.getSectorID());
+                if (sector != null) {
+                    sector.getStars().add(star);
                 }
             }
         } catch(Exception e) {
@@ -156,104 +132,52 @@ public class SectorController {
         }
 
         public List<Sector> getSectors(List<Pair<Long, Long>> coords) throws Exception {
-            String sql = "SELECT id, x, y, distance_to_centre, num_colonies FROM sectors WHERE (1=0";
-            for (Pair<Long, Long> coord : coords) {
-                sql += " OR (x="+coord.one+" AND y="+coord.two+")";
+            long[] xs = new long[coords.size()];
+            long[] ys = new long[coords.size()];
+            for (int i = 0; i < coords.size(); i++) {
+                xs[i] = coords.get(i).one;
+                ys[i] = coords.get(i).two;
             }
-            sql += ")";
-            return getSectors(sql);
-        }
 
-        public List<Sector> getSectors(int[] sectorIds) throws Exception {
-            String sql = "SELECT id, x, y, distance_to_centre, num_colonies FROM sectors WHERE id IN ";
-            sql += buildInClause(sectorIds);
-            return getSectors(sql);
-        }
-
-        private List<Sector> getSectors(String sql) throws Exception {
+            String sql = "SELECT id, x, y, distance_to_centre, num_colonies FROM sectors" +
+                        " WHERE (x, y) IN (SELECT UNNEST(?), UNNEST(?))";
             try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                List<Sector> sectors = new ArrayList<Sector>();
-                while (res.next()) {
-                    sectors.add(new Sector(res));
-                }
-                return sectors;
+                stmt.setLongArray(1, xs);
+                stmt.setLongArray(2, ys);
+                return getSectors(stmt);
             }
         }
 
-        public List<Star> getStarsForSectors(int[] sectorIds) throws Exception {
-            String sql = "SELECT stars.id, sector_id, name, sectors.x AS sector_x," +
-                               " sectors.y AS sector_y, stars.x, stars.y, size, star_type, planets," +
-                               " extra, last_simulation, time_emptied" +
-                        " FROM stars" +
-                        " INNER JOIN sectors ON stars.sector_id = sectors.id" +
-                        " WHERE sector_id IN "+buildInClause(sectorIds);
+        public List<Sector> getSectors(int[] sectorIds) throws Exception {
+            String sql = "SELECT id, x, y, distance_to_centre, num_colonies FROM sectors WHERE id = ANY(?)";
             try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                List<Star> stars = new ArrayList<Star>();
-                while (res.next()) {
-                    stars.add(new Star(res));
-                }
-                return stars;
+                stmt.setIntArray(1, sectorIds);
+                return getSectors(stmt);
             }
         }
 
-        public List<Colony> getColoniesForSectors(int[] sectorIds) throws Exception {
-            String sql = "SELECT colonies.*" +
-                         " FROM colonies" +
-                         " WHERE sector_id IN "+buildInClause(sectorIds);
-             try (SqlStmt stmt = prepare(sql)) {
-                 SqlResult res = stmt.select();
-
-                 List<Colony> colonies = new ArrayList<Colony>();
-                 while (res.next()) {
-                     colonies.add(new Colony(res));
-                 }
-                 return colonies;
-             }
-        }
+        private List<Sector> getSectors(SqlStmt stmt) throws Exception {
+            SqlResult res = stmt.select();
 
-        public List<Fleet> getFleetsForSectors(int[] sectorIds) throws Exception {
-            HashSet<Integer> starIds = new HashSet<Integer>();
-            List<Fleet> fleets = new ArrayList<Fleet>();
+            List<Sector> sectors = new ArrayList<Sector>();
+            while (res.next()) {
+                sectors.add(new Sector(res));
+            }
+            return sectors;
+        }
 
-            String sql = "SELECT fleets.*, empires.alliance_id" +
-                         " FROM fleets" +
-                         " LEFT OUTER JOIN empires ON empires.id = fleets.empire_id" +
-                         " WHERE sector_id IN "+buildInClause(sectorIds);
+        public List<Integer> getFleetSourceStarIDs(int star1ID, int star2ID) throws Exception {
+            List<Integer> starIDs = new ArrayList<Integer>();
+            String sql = "SELECT DISTINCT star_id FROM fleets WHERE target_star_id IN (?, ?)";
             try (SqlStmt stmt = prepare(sql)) {
+                stmt.setInt(1, star1ID);
+                stmt.setInt(2, star2ID);
                 SqlResult res = stmt.select();
-
                 while (res.next()) {
-                    Fleet fleet = new Fleet(res);
-                    fleets.add(fleet);
-                    if (!starIds.contains(fleet.getStarID())) {
-                        starIds.add(fleet.getStarID());
-                    }
+                    starIDs.add(res.getInt(1));
                 }
             }
-
-            if (starIds.size() > 0) {
-                sql = "SELECT * FROM fleet_upgrades WHERE star_id IN "+buildInClause(starIds);
-                try (SqlStmt stmt = prepare(sql)) {
-                    SqlResult res = stmt.select();
-    
-                    while (res.next()) {
-                        FleetUpgrade fleetUpgrade = FleetUpgrade.create(res);
-    
-                        for (Fleet fleet : fleets) {
-                            if (fleet.getID() == fleetUpgrade.getFleetID()) {
-                                fleet.getUpgrades().add(fleetUpgrade);
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
-
-            return fleets;
+            return starIDs;
         }
 
         public void swapStars(Star star1, Star star2) throws Exception {
@@ -297,7 +221,7 @@ public class SectorController {
                 }
             }
 
-            String sql = "UPDATE stars SET x = ?, y = ? WHERE id = ?";
+            String sql = "UPDATE stars SET x = ?, y = ?, version = version + 1 WHERE id = ?";
             try (SqlStmt stmt = prepare(sql)) {
                 stmt.setInt(1, star1.getOffsetX());
                 stmt.setInt(2, star1.getOffsetY());
@@ -1,7 +1,9 @@
 package au.com.codeka.warworlds.server.ctrl;
 
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
@@ -11,6 +13,7 @@ import org.joda.time.DateTime;
 
 import au.com.codeka.common.PointCloud;
 import au.com.codeka.common.Vector2;
+import au.com.codeka.common.model.BasePlanet;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.data.DB;
@@ -105,10 +108,12 @@ public class SectorGenerator {
             ArrayList<Vector2> points = new PointCloud.PoissonGenerator()
                                             .generate(density, randomness, mRandom);
 
+            ArrayList<Star> stars = new ArrayList<Star>();
             for (Vector2 point : points) {
-                Star star = generateStar(sector, point);
-                sector.getStars().add(star);
+                stars.add(generateStar(sector, point));
             }
+            insertStars(stars);
+            sector.getStars().addAll(stars);
 
             return sector;
         } catch (Exception e) {
@@ -176,43 +181,54 @@ public class SectorGenerator {
         }
     }
 
-    private Star generateStar(Sector sector, Vector2 point) throws RequestException {
+    private Star generateStar(Sector sector, Vector2 point) {
         int x = (int) ((Sector.SECTOR_SIZE - 64) * point.x) + 32;
         int y = (int) ((Sector.SECTOR_SIZE - 64) * point.y) + 32;
         int starTypeID = select(StarTypeBonuses);
         String name = new NameGenerator().generate(mRandom);
         int size = mRandom.nextInt(8) + 16;
 
+        Star star = new Star(sector, x, y, starTypeID, name, size);
+        ArrayList<Planet> planets = generatePlanets(star);
+        Planet[] planetArray = new Planet[planets.size()];
+        star.setPlanets(planets.toArray(planetArray));
+        return star;
+    }
+
+    /** Inserts all of the given (newly-generated) stars in one batch, and sets their IDs. */
+    private void insertStars(List<Star> stars) throws Exception {
         String sql = "INSERT INTO stars (sector_id, x, y, size, name, star_type, planets, last_simulation) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
         try (SqlStmt stmt = DB.prepare(sql, Statement.RETURN_GENERATED_KEYS)) {
-            Star star = new Star(sector, x, y, starTypeID, name, size);
-
-            ArrayList<Planet> planets = generatePlanets(star);
-            // serialize the planets to a protobuf for storage
-            Messages.Planets.Builder planets_pb = Messages.Planets.newBuilder();
-            for (Planet planet : planets) {
-                Messages.Planet.Builder planet_pb = Messages.Planet.newBuilder();
-                planet.toProtocolBuffer(planet_pb);
-                planets_pb.addPlanets(planet_pb);
-            }
+            DateTime now = DateTime.now();
+            for (Star star : stars) {
+                // serialize the planets to a protobuf for storage
+                Messages.Planets.Builder planets_pb = Messages.Planets.newBuilder();
+                for (BasePlanet planet : star.getPlanets()) {
+                    Messages.Planet.Builder planet_pb = Messages.Planet.newBuilder();
+                    planet.toProtocolBuffer(planet_pb);
+                    planets_pb.addPlanets(planet_pb);
+                }
 
-            Planet[] planetArray = new Planet[planets.size()];
-            star.setPlanets(planets.toArray(planetArray));
-
-            stmt.setInt(1, star.getSectorID());
-            stmt.setInt(2, star.getOffsetX());
-            stmt.setInt(3, star.getOffsetY());
-            stmt.setInt(4, star.getSize());
-            stmt.setString(5, name);
-            stmt.setInt(6, star.getStarType().getType().ordinal());
-            stmt.setBytes(7, planets_pb.build().toByteArray());
-            stmt.setDateTime(8, DateTime.now());
-            stmt.update();
-            star.setID(stmt.getAutoGeneratedID());
+                stmt.setInt(1, star.getSectorID());
+                stmt.setInt(2, star.getOffsetX());
+                stmt.setInt(3, star.getOffsetY());
+                stmt.setInt(4, star.getSize());
+                stmt.setString(5, star.getName());
+                stmt.setInt(6, star.getStarType().getType().ordinal());
+                stmt.setBytes(7, planets_pb.build().toByteArray());
+                stmt.setDateTime(8, now);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
 
-            return star;
-        } catch(Exception e) {
-            throw new RequestException(e);
+            int[] ids = stmt.getAutoGeneratedIDs();
+            if (ids.length != stars.size()) {
+                throw new SQLException(String.format("Inserted %d stars but got %d IDs back.",
+                        stars.size(), ids.length));
+            }
+            for (int i = 0; i < ids.length; i++) {
+                stars.get(i).setID(ids[i]);
+            }
         }
     }
 
@@ -0,0 +1,217 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.common.model.BaseColony;
+import au.com.codeka.common.model.BaseCombatReport;
+import au.com.codeka.warworlds.server.Configuration;
+import au.com.codeka.warworlds.server.model.Star;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.gson.JsonObject;
+
+/**
+ * An in-memory cache of fully-loaded stars (with their colonies, fleets and so on), so that
+ * \c StarController doesn't have to load the whole graph from the database every time somebody
+ * looks at a star.
+ *
+ * Each star has a version, which \c StarController.update bumps whenever it saves the star.
+ * Before handing out a cached star, \c StarController checks its version against the database
+ * (one cheap query for any number of stars) and loads it again if it's changed, so stars saved
+ * by another node are picked up straight away. Code that writes a star's colonies, fleets and so
+ * on directly (rather than via \c StarController.update) must bump the version as well, with
+ * \c StarController.markModified, so that every node's copy goes stale. Entries also expire
+ * after \c EXPIRE_SECONDS, in case anything slips through.
+ *
+ * A star that's been changed like that also has to be loaded again before we can cache it: its
+ * buildings' effects (storage, population boosts and so on) are only worked out when it's loaded.
+ * So each star remembers a token from when it was loaded (see \c getToken), and if the star has
+ * been invalidated since then, saving it invalidates it again rather than caching it.
+ *
+ * The stars in the cache are never handed out: we store and return deep copies (see
+ * \c BaseStar.deepCopy), so callers are free to modify the stars they get.
+ */
+public class StarCache {
+    public static StarCache i = new StarCache();
+
+    private static final long EXPIRE_SECONDS = 60;
+    private static final int NUM_TOKEN_STRIPES = 1024;
+
+    /** Null if the cache is disabled. */
+    private final Cache<Integer, Star> mCache;
+    private final int mMaxWeight;
+
+    /** Counts the invalidations of the stars in each stripe, see \c getToken. */
+    private final AtomicLongArray mTokens = new AtomicLongArray(NUM_TOKEN_STRIPES);
+
+    private final AtomicLong mNumHits = new AtomicLong();
+    private final AtomicLong mNumMisses = new AtomicLong();
+    private final AtomicLong mNumStale = new AtomicLong();
+    private final AtomicLong mNumInvalidations = new AtomicLong();
+
+    private StarCache() {
+        mMaxWeight = Configuration.i.getStarCacheMaxWeight();
+        if (mMaxWeight <= 0) {
+            mCache = null;
+            return;
+        }
+
+        mCache = CacheBuilder.newBuilder()
+                .maximumWeight(mMaxWeight)
+                .weigher(new Weigher<Integer, Star>() {
+                    @Override
+                    public int weigh(Integer starID, Star star) {
+                        return getWeight(star);
+                    }
+                })
+                .expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return mCache != null;
+    }
+
+    /**
+     * Gets the token for the given star, which changes every time the star is invalidated. It
+     * should be fetched before loading the star, and the star should be given it (see
+     * \c Star.setCacheToken) before calling \c onLoaded or \c onSaved.
+     */
+    public long getToken(int starID) {
+        return mTokens.get(getTokenStripe(starID));
+    }
+
+    /**
+     * Gets a copy of the given star, or null if we don't have it cached at the given version
+     * (which should be the star's current version in the database).
+     */
+    public Star get(int starID, long version) {
+        Star star = (mCache == null ? null : mCache.getIfPresent(starID));
+        if (star == null) {
+            mNumMisses.incrementAndGet();
+            return null;
+        }
+        if (star.getVersion() != version) {
+            mNumStale.incrementAndGet();
+            mNumMisses.incrementAndGet();
+            return null;
+        }
+        mNumHits.incrementAndGet();
+
+        Star copy = star.deepCopy();
+        // when we load a star, we only load its combat report if it hasn't finished yet
+        BaseCombatReport combatReport = copy.getCombatReport();
+        if (combatReport != null && combatReport.getEndTime() != null
+                && !combatReport.getEndTime().isAfter(DateTime.now())) {
+            copy.setCombatReport(null);
+        }
+        return copy;
+    }
+
+    /**
+     * Caches a copy of the given star, which has just been loaded from the database. If we've
+     * already got the same version (e.g. it was saved while we were loading it), we keep that.
+     */
+    public void onLoaded(Star star) {
+        put(star, false);
+    }
+
+    /** Caches a copy of the given star, which has just been saved. */
+    public void onSaved(Star star) {
+        put(star, true);
+    }
+
+    /**
+     * Removes the given star from this node's cache. \c StarController.markModified calls this
+     * after bumping the star's version.
+     */
+    public void invalidate(int starID) {
+        if (mCache != null) {
+            mNumInvalidations.incrementAndGet();
+            mTokens.incrementAndGet(getTokenStripe(starID));
+            mCache.invalidate(starID);
+        }
+    }
+
+    public void populateMetrics(JsonObject json) {
+        json.addProperty("enabled", isEnabled());
+        if (mCache == null) {
+            return;
+        }
+
+        long weight = 0;
+        for (Star star : mCache.asMap().values()) {
+            weight += getWeight(star);
+        }
+        json.addProperty("size", mCache.size());
+        json.addProperty("weight", weight);
+        json.addProperty("max_weight", mMaxWeight);
+        json.addProperty("num_hits", mNumHits.get());
+        json.addProperty("num_misses", mNumMisses.get());
+        json.addProperty("num_stale", mNumStale.get());
+        json.addProperty("num_evictions", mCache.stats().evictionCount());
+        json.addProperty("num_invalidations", mNumInvalidations.get());
+    }
+
+    /**
+     * Puts a copy of the given star in the cache, unless we've already got a later version of it
+     * (or the same version, if it was only loaded rather than saved). Two threads can finish
+     * loading or saving the same star in either order, so we don't want to overwrite a newer copy.
+     *
+     * If the star has been invalidated since it was loaded, it's not cached. If it was saved, we
+     * also remove any copy we already have, because it's been saved over.
+     */
+    private void put(Star star, boolean saved) {
+        if (mCache == null) {
+            return;
+        }
+        if (star.getCacheToken() != getToken(star.getID())) {
+            if (saved) {
+                mCache.invalidate(star.getID());
+            }
+            return;
+        }
+
+        Star copy = star.deepCopy();
+        ConcurrentMap<Integer, Star> stars = mCache.asMap();
+        while (true) {
+            Star existing = stars.putIfAbsent(star.getID(), copy);
+            if (existing == null) {
+                break;
+            }
+            if (existing.getVersion() > copy.getVersion()
+                    || (existing.getVersion() == copy.getVersion() && !saved)) {
+                return;
+            }
+            if (stars.replace(star.getID(), existing, copy)) {
+                break;
+            }
+        }
+
+        // if it was invalidated while we were putting it, take it back out again
+        if (star.getCacheToken() != getToken(star.getID())) {
+            stars.remove(star.getID(), copy);
+        }
+    }
+
+    private static int getTokenStripe(int starID) {
+        return (starID & Integer.MAX_VALUE) % NUM_TOKEN_STRIPES;
+    }
+
+    private static int getWeight(Star star) {
+        int weight = 1 + star.getFleets().size() + star.getEmpirePresences().size()
+                + star.getBuildRequests().size();
+        for (BaseColony colony : star.getColonies()) {
+            weight += 1 + colony.getBuildings().size();
+        }
+        return weight;
+    }
+}
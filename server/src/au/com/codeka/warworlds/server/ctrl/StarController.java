@@ -5,11 +5,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
@@ -21,35 +23,44 @@ import au.com.codeka.common.model.BaseColony;
 import au.com.codeka.common.model.BaseEmpirePresence;
 import au.com.codeka.common.model.BaseFleet;
 import au.com.codeka.common.model.BaseFleetUpgrade;
-import au.com.codeka.common.model.BasePlanet;
 import au.com.codeka.common.model.BaseScoutReport;
 import au.com.codeka.common.model.BuildingDesign;
-import au.com.codeka.common.model.BuildingEffect;
-import au.com.codeka.common.model.Design;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.EventProcessor;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.StarLocks;
+import au.com.codeka.warworlds.server.StarSimulatorThreadManager;
+import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
 import au.com.codeka.warworlds.server.designeffects.RadarBuildingEffect;
 import au.com.codeka.warworlds.server.model.Alliance;
 import au.com.codeka.warworlds.server.model.BuildRequest;
-import au.com.codeka.warworlds.server.model.Building;
 import au.com.codeka.warworlds.server.model.BuildingPosition;
 import au.com.codeka.warworlds.server.model.Colony;
 import au.com.codeka.warworlds.server.model.CombatReport;
 import au.com.codeka.warworlds.server.model.EmpirePresence;
 import au.com.codeka.warworlds.server.model.Fleet;
-import au.com.codeka.warworlds.server.model.FleetUpgrade;
 import au.com.codeka.warworlds.server.model.Planet;
 import au.com.codeka.warworlds.server.model.ScoutReport;
 import au.com.codeka.warworlds.server.model.Sector;
 import au.com.codeka.warworlds.server.model.Star;
 
+import com.google.gson.JsonObject;
+
 public class StarController {
     private static final Log log = new Log("StarController");
+
+    /** The number of times \c modify will reload and retry a star after a conflicting save. */
+    private static final int MAX_CONFLICT_RETRIES = 5;
+
+    private static final AtomicLong sNumUpdates = new AtomicLong();
+    private static final AtomicLong sNumConflicts = new AtomicLong();
+    private static final AtomicLong sNumRetries = new AtomicLong();
+    private static final AtomicLong sNumRetriesExhausted = new AtomicLong();
+
     private DataBase db;
 
     public StarController() {
@@ -105,25 +116,175 @@ public class StarController {
         update(star, true);
     }
 
+    /**
+     * Saves the given star. If the star has been saved by somebody else since it was loaded, this
+     * throws a \c StarModifiedException and nothing is written. Use \c modify if you want to
+     * reload the star and try again when that happens.
+     */
     public void update(Star star, boolean pingEventProcessor) throws RequestException {
+        sNumUpdates.incrementAndGet();
         try {
             updateNoRetry(star);
+        } catch (StarModifiedException e) {
+            sNumConflicts.incrementAndGet();
+            throw e;
         } catch (Exception e) {
             throw new RequestException(e);
         }
+        StarSimulatorThreadManager.i.onStarUpdated(star);
+        EventProcessor.i.onStarUpdated(star);
 
         if (pingEventProcessor) {
-            // we may need to ping the event processor if a build time change, or whatever.
+            // make sure the event processor is running to pick up any new events.
             EventProcessor.i.ping();
         }
     }
 
     private void updateNoRetry(Star star) throws Exception {
+        int numColonies = star.getColonies().size();
         db.updateStar(star);
-        removeEmpirePresences(star.getID());
+        if (deleteEmpirePresences(star.getID()) > 0 || star.getColonies().size() < numColonies
+                || db.getTransaction() != null) {
+            // what we've got no longer matches what we'd load (e.g. it still has the effects of
+            // the removed colonies' buildings), or it's not committed yet.
+            StarCache.i.invalidate(star.getID());
+        } else {
+            StarCache.i.onSaved(star);
+        }
+    }
+
+    /**
+     * Locks and loads the given star, simulates it, lets \c mutator make its changes and then
+     * saves it. If somebody else saved the star after we loaded it, we start again with a fresh
+     * copy (up to \c MAX_CONFLICT_RETRIES times), so \c mutator may be called more than once
+     * and it should only change the \c Star it's given: anything else it writes to the database
+     * won't be undone when we retry.
+     *
+     * @return The star, as it was saved.
+     */
+    public Star modify(int starID, StarMutator mutator) throws RequestException {
+        return modify(starID, new Simulation(), mutator);
+    }
+
+    /** Like \c modify(int, StarMutator), but simulates the star with the given \c Simulation. */
+    public Star modify(int starID, Simulation sim, StarMutator mutator) throws RequestException {
+        for (int attempt = 0; ; attempt++) {
+            try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+                Star star = getStar(starID);
+                sim.simulate(star);
+                mutator.mutate(star);
+                update(star);
+                return star;
+            } catch (StarModifiedException e) {
+                if (attempt >= MAX_CONFLICT_RETRIES) {
+                    sNumRetriesExhausted.incrementAndGet();
+                    throw e;
+                }
+                sNumRetries.incrementAndGet();
+                log.info("Star %d was modified while we were updating it, retrying.", starID);
+            }
+        }
+    }
+
+    /**
+     * Bumps the version of the given star, for code that writes its colonies, fleets and so on
+     * directly rather than via \c update. Every node checks the version before using its cached
+     * copy (see \c StarCache), so they'll all load it again. Our copy is kept in step so that it
+     * can still be saved afterwards (unless somebody else saved it in the meantime).
+     */
+    public void markModified(Star star) throws RequestException {
+        markModified(star.getID());
+        star.setVersion(star.getVersion() + 1);
+    }
+
+    /** Like \c markModified(Star), for when we haven't got a copy of the star that we'll save. */
+    public void markModified(int starID) throws RequestException {
+        String sql = "UPDATE stars SET version = version + 1 WHERE id = ?";
+        try (SqlStmt stmt = db.prepare(sql)) {
+            stmt.setInt(1, starID);
+            stmt.update();
+        } catch(Exception e) {
+            throw new RequestException(e);
+        }
+        StarCache.i.invalidate(starID);
+    }
+
+    /** Like \c markModified(int), for a number of stars at once. */
+    public void markModified(Collection<Integer> starIDs) throws RequestException {
+        if (starIDs.isEmpty()) {
+            return;
+        }
+
+        String sql = "UPDATE stars SET version = version + 1 WHERE id = ANY(?)";
+        try (SqlStmt stmt = db.prepare(sql)) {
+            stmt.setIntArray(1, starIDs);
+            stmt.update();
+        } catch(Exception e) {
+            throw new RequestException(e);
+        }
+        for (Integer starID : starIDs) {
+            StarCache.i.invalidate(starID);
+        }
+    }
+
+    /**
+     * Like \c markModified(int), for every star that the given empire has colonies or fleets on
+     * (e.g. when its alliance changes, which is part of every one of them).
+     */
+    public void markEmpireStarsModified(int empireID) throws RequestException {
+        String sql = "UPDATE stars SET version = version + 1" +
+                    " WHERE id IN (SELECT star_id FROM colonies WHERE empire_id = ?" +
+                                 " UNION SELECT star_id FROM fleets WHERE empire_id = ?)" +
+                    " RETURNING id";
+        try (SqlStmt stmt = db.prepare(sql)) {
+            stmt.setInt(1, empireID);
+            stmt.setInt(2, empireID);
+            SqlResult res = stmt.updateAndSelect();
+            while (res.next()) {
+                StarCache.i.invalidate(res.getInt(1));
+            }
+        } catch(Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
+    public static void populateMetrics(JsonObject json) {
+        json.addProperty("num_updates", sNumUpdates.get());
+        json.addProperty("num_conflicts", sNumConflicts.get());
+        json.addProperty("num_retries", sNumRetries.get());
+        json.addProperty("num_retries_exhausted", sNumRetriesExhausted.get());
+
+        JsonObject cacheJson = new JsonObject();
+        StarCache.i.populateMetrics(cacheJson);
+        json.add("cache", cacheJson);
+    }
+
+    /** Makes changes to a star on behalf of \c modify. */
+    public interface StarMutator {
+        void mutate(Star star) throws RequestException;
+    }
+
+    /**
+     * Thrown when we try to save a star that somebody else has saved since we loaded it. It's not
+     * an \c SQLException, so \c RequestHandler won't replay the whole request because of it.
+     */
+    public static class StarModifiedException extends RequestException {
+        private static final long serialVersionUID = 1L;
+
+        public StarModifiedException(Star star) {
+            super(409, String.format(Locale.ENGLISH, "Star %d was modified (expected version %d).",
+                    star.getID(), star.getVersion()));
+        }
     }
 
-    public void removeEmpirePresences(int starID) throws RequestException {
+    public void removeEmpirePresences(Star star) throws RequestException {
+        if (deleteEmpirePresences(star.getID()) > 0) {
+            markModified(star);
+        }
+    }
+
+    /** Returns the number of empire presences we deleted. */
+    private int deleteEmpirePresences(int starID) throws RequestException {
         // delete an empire presences for empires that no longer have colonies on this star...
         String sql = "DELETE FROM empire_presences" +
                      " WHERE star_id = ?" +
@@ -133,7 +294,7 @@ public class StarController {
                           " AND colonies.star_id = empire_presences.star_id) = 0";
         try (SqlStmt stmt = db.prepare(sql)) {
             stmt.setInt(1, starID);
-            stmt.update();
+            return stmt.update();
         } catch(Exception e) {
             throw new RequestException(e);
         }
@@ -280,61 +441,76 @@ public class StarController {
             super(trans);
         }
 
+        /**
+         * Gets the stars with the given IDs, from the \c StarCache if we've got the current
+         * version, otherwise from the database.
+         */
         public List<Star> getStars(int[] ids) throws RequestException {
-            if (ids.length == 0) {
-                return new ArrayList<Star>();
-            }
+            try {
+                // the tokens have to be fetched before we look at the database, see StarCache
+                HashMap<Integer, Long> tokens = new HashMap<Integer, Long>();
+                for (int id : ids) {
+                    tokens.put(id, StarCache.i.getToken(id));
+                }
 
-            ArrayList<Star> stars = new ArrayList<Star>();
-            final String sql = "SELECT stars.id, sector_id, name, sectors.x AS sector_x," +
-                                     " sectors.y AS sector_y, stars.x, stars.y, size, star_type, planets," +
-                                     " extra, last_simulation, time_emptied" +
-                              " FROM stars" +
-                              " INNER JOIN sectors ON stars.sector_id = sectors.id" +
-                              " WHERE stars.id IN "+buildInClause(ids);
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
+                ArrayList<Star> stars = new ArrayList<Star>();
+                int[] idsToLoad = ids;
+                if (StarCache.i.isEnabled() && ids.length > 0) {
+                    idsToLoad = getCachedStars(ids, stars);
+                }
+                List<Star> loadedStars =
+                        new StarGraphLoader(this, StarGraphLoader.ALL_PARTS).loadStars(idsToLoad);
+                stars.addAll(loadedStars);
 
-                while (res.next()) {
-                    stars.add(new Star(res));
+                for (Star star : stars) {
+                    star.setCacheToken(tokens.get(star.getID()));
                 }
+                checkNativeColonies(stars);
 
-                if (stars.isEmpty()) {
-                    return stars;
+                // don't cache anything we can't be sure is committed, or that came from a replica
+                // (it might be older than what we've got)
+                if (getTransaction() == null && DB.getThreadPool() != DB.Pool.REPLICA) {
+                    for (Star star : loadedStars) {
+                        StarCache.i.onLoaded(star);
+                    }
                 }
+                return stars;
             } catch(Exception e) {
                 throw new RequestException(e);
             }
+        }
 
-            int[] starIds = new int[stars.size()];
-            for (int i = 0; i < stars.size(); i++) {
-                Star star = stars.get(i);
-                star.setColonies(new ArrayList<BaseColony>());
-                star.setFleets(new ArrayList<BaseFleet>());
-                star.setEmpires(new ArrayList<BaseEmpirePresence>());
-                star.setBuildRequests(new ArrayList<BaseBuildRequest>());
-                starIds[i] = star.getID();
+        /**
+         * Adds the stars the \c StarCache has the current version of to \c stars, and returns the
+         * IDs of the ones that still need to be loaded.
+         */
+        private int[] getCachedStars(int[] ids, List<Star> stars) throws Exception {
+            ArrayList<Integer> idsToLoad = new ArrayList<Integer>();
+            try (SqlStmt stmt = prepare("SELECT id, version FROM stars WHERE id = ANY(?)")) {
+                stmt.setIntArray(1, ids);
+                SqlResult res = stmt.select();
+                while (res.next()) {
+                    int id = res.getInt(1);
+                    Star star = StarCache.i.get(id, res.getLong(2));
+                    if (star == null) {
+                        idsToLoad.add(id);
+                    } else {
+                        stars.add(star);
+                    }
+                }
             }
 
-            String inClause = buildInClause(starIds);
-            try {
-                populateEmpires(stars, inClause);
-                populateColonies(stars, inClause);
-                populateFleets(stars, inClause);
-                populateBuildings(stars, inClause);
-                populateBuildRequests(stars, inClause);
-                checkNativeColonies(stars);
-                populateCombatReports(stars, inClause);
-            } catch(Exception e) {
-                throw new RequestException(e);
+            int[] result = new int[idsToLoad.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = idsToLoad.get(i);
             }
-            return stars;
+            return result;
         }
 
         public List<Star> getWormholesForAlliance(Alliance alliance) throws Exception {
             String sql = "SELECT stars.id, sector_id, name, sectors.x AS sector_x," +
                                " sectors.y AS sector_y, stars.x, stars.y, size, star_type, planets," +
-                               " extra, last_simulation, time_emptied" +
+                               " extra, last_simulation, time_emptied, version" +
                         " FROM stars" +
                         " INNER JOIN sectors ON stars.sector_id = sectors.id" +
                         " WHERE star_type = "+Star.Type.Wormhole.ordinal();
@@ -390,8 +566,9 @@ public class StarController {
                                  " name = ?," +
                                  " star_type = ?," +
                                  " empire_count = ?," +
-                                 " extra = ?" +
-                              " WHERE id = ?";
+                                 " extra = ?," +
+                                 " version = version + 1" +
+                              " WHERE id = ? AND version = ?";
             try (SqlStmt stmt = prepare(sql)) {
                 DateTime lastSimulation = star.getLastSimulation();
                 DateTime now = DateTime.now();
@@ -429,7 +606,13 @@ public class StarController {
                 }
 
                 stmt.setInt(6, star.getID());
-                stmt.update();
+                stmt.setLong(7, star.getVersion());
+                if (stmt.update() == 0) {
+                    // somebody else saved it after we loaded it. Bail before we write any of
+                    // the star's colonies, fleets and so on.
+                    throw new StarModifiedException(star);
+                }
+                star.setVersion(star.getVersion() + 1);
             }
 
             updateEmpires(star);
@@ -450,24 +633,36 @@ public class StarController {
                                  " tax_per_hour = ?," +
                                  " goods_zero_time = ?" +
                               " WHERE id = ?";
+            ArrayList<EmpirePresence> updated = new ArrayList<EmpirePresence>();
             try (SqlStmt stmt = prepare(sql)) {
-                for (BaseEmpirePresence empire : star.getEmpires()) {
+                for (BaseEmpirePresence baseEmpire : star.getEmpires()) {
+                    EmpirePresence empire = (EmpirePresence) baseEmpire;
+                    if (!empire.isDirty()) {
+                        continue;
+                    }
+
                     stmt.setDouble(1, empire.getTotalGoods());
                     stmt.setDouble(2, empire.getTotalMinerals());
                     stmt.setDouble(3, empire.getTaxPerHour());
                     stmt.setDateTime(4, empire.getGoodsZeroTime());
-                    stmt.setInt(5, ((EmpirePresence) empire).getID());
-                    stmt.update();
+                    stmt.setInt(5, empire.getID());
+                    stmt.addBatch();
+                    updated.add(empire);
                 }
+                stmt.executeBatch();
+            }
+
+            for (EmpirePresence empire : updated) {
+                empire.markClean();
             }
         }
 
         private void updateColonies(Star star) throws Exception {
-            boolean needDelete = false;
-
             final float MIN_POPULATION = 0.0001f;
 
             TreeMap<Integer, Float> empireTaxes = new TreeMap<Integer, Float>();
+            ArrayList<Colony> updated = new ArrayList<Colony>();
+            ArrayList<BaseColony> toRemove = new ArrayList<BaseColony>();
 
             String sql = "UPDATE colonies SET" +
                            " focus_population = ?," +
@@ -481,16 +676,21 @@ public class StarController {
                 for (BaseColony baseColony : star.getColonies()) {
                     Colony colony = (Colony) baseColony;
                     if (colony.getPopulation() <= MIN_POPULATION) {
-                        needDelete = true;
+                        toRemove.add(colony);
                         continue;
                     }
 
-                    if (colony.getEmpireID() != null) {
+                    if (colony.getEmpireID() != null && colony.getUncollectedTaxes() != 0.0f) {
                         Float uncollectedTaxes = empireTaxes.get(colony.getEmpireID());
                         uncollectedTaxes = (uncollectedTaxes == null ? 0 : uncollectedTaxes) +
                                 colony.getUncollectedTaxes();
                         empireTaxes.put(colony.getEmpireID(), uncollectedTaxes);
                     }
+                    colony.setUncollectedTaxes(0.0f);
+
+                    if (!colony.isDirty()) {
+                        continue;
+                    }
 
                     stmt.setDouble(1, colony.getPopulationFocus());
                     stmt.setDouble(2, colony.getConstructionFocus());
@@ -498,11 +698,15 @@ public class StarController {
                     stmt.setDouble(4, colony.getMiningFocus());
                     stmt.setDouble(5, colony.getPopulation());
                     stmt.setDouble(6, 0); // TODO: remove this column from the database
-                    stmt.setInt(7, ((Colony) colony).getID());
-                    stmt.update();
-
-                    colony.setUncollectedTaxes(0.0f);
+                    stmt.setInt(7, colony.getID());
+                    stmt.addBatch();
+                    updated.add(colony);
                 }
+                stmt.executeBatch();
+            }
+
+            for (Colony colony : updated) {
+                colony.markClean();
             }
 
             if (!empireTaxes.isEmpty()) {
@@ -523,27 +727,24 @@ public class StarController {
                 }
             }
 
-            if (needDelete) {
-                ArrayList<BaseColony> toRemove = new ArrayList<BaseColony>();
+            if (!toRemove.isEmpty()) {
                 sql = "DELETE FROM colonies WHERE id = ?";
                 try (SqlStmt stmt = prepare(sql)) {
-                    for (BaseColony colony : star.getColonies()) {
-                        if (colony.getPopulation() > MIN_POPULATION) {
-                            continue;
-                        }
+                    for (BaseColony colony : toRemove) {
                         stmt.setInt(1, ((Colony) colony).getID());
-                        stmt.update();
-                        toRemove.add(colony);
+                        stmt.addBatch();
                     }
-
-                    star.getColonies().removeAll(toRemove);
+                    stmt.executeBatch();
                 }
+
+                star.getColonies().removeAll(toRemove);
             }
         }
 
         private void updateFleets(Star star) throws Exception {
-            boolean needInsert = false;
-            boolean needDelete = false;
+            ArrayList<Fleet> updated = new ArrayList<Fleet>();
+            ArrayList<Fleet> toInsert = new ArrayList<Fleet>();
+            ArrayList<Fleet> toRemove = new ArrayList<Fleet>();
             DateTime now = DateTime.now();
             String sql = "UPDATE fleets SET" +
                             " star_id = ?," +
@@ -565,16 +766,19 @@ public class StarController {
                                 "Cannot have < 0 ships in a fleet. StarID=" + star.getID());
                     }
 
-                    if (baseFleet.getKey() == null) {
-                        needInsert = true;
+                    Fleet fleet = (Fleet) baseFleet;
+                    if (fleet.getKey() == null) {
+                        toInsert.add(fleet);
+                        continue;
+                    }
+                    if (fleet.getTimeDestroyed() != null && fleet.getTimeDestroyed().isBefore(now)) {
+                        toRemove.add(fleet);
                         continue;
                     }
-                    if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                        needDelete = true;
+                    if (!fleet.isDirty(star)) {
                         continue;
                     }
 
-                    Fleet fleet = (Fleet) baseFleet;
                     stmt.setInt(1, star.getID());
                     stmt.setInt(2, star.getSectorID());
                     stmt.setDouble(3, fleet.getNumShips());
@@ -587,22 +791,23 @@ public class StarController {
                     stmt.setDateTime(10, fleet.getTimeDestroyed());
                     stmt.setString(11, fleet.getNotes());
                     stmt.setInt(12, fleet.getID());
-                    stmt.update();
+                    stmt.addBatch();
+                    updated.add(fleet);
                 }
+                stmt.executeBatch();
             }
 
-            if (needInsert) {
+            for (Fleet fleet : updated) {
+                fleet.markClean(star);
+            }
+
+            if (!toInsert.isEmpty()) {
                 sql = "INSERT INTO fleets (star_id, sector_id, design_id, empire_id, num_ships," +
                                          " stance, state, state_start_time, eta, target_star_id," +
                                          " target_fleet_id, time_destroyed, notes)" +
                      " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
                 try (SqlStmt stmt = prepare(sql, Statement.RETURN_GENERATED_KEYS)) {
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getKey() != null) {
-                            continue;
-                        }
-
-                        Fleet fleet = (Fleet) baseFleet;
+                    for (Fleet fleet : toInsert) {
                         stmt.setInt(1, fleet.getStarID());
                         stmt.setInt(2, fleet.getSectorID());
                         stmt.setString(3, fleet.getDesignID());
@@ -620,86 +825,112 @@ public class StarController {
                         stmt.setInt(11, fleet.getTargetFleetID());
                         stmt.setDateTime(12, fleet.getTimeDestroyed());
                         stmt.setString(13, fleet.getNotes());
-                        stmt.update();
-                        fleet.setID(stmt.getAutoGeneratedID());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+
+                    int[] ids = stmt.getAutoGeneratedIDs();
+                    if (ids.length != toInsert.size()) {
+                        throw new RequestException(500, String.format(Locale.ENGLISH,
+                                "Inserted %d fleets but got %d IDs back. StarID=%d",
+                                toInsert.size(), ids.length, star.getID()));
+                    }
+                    for (int i = 0; i < ids.length; i++) {
+                        toInsert.get(i).setID(ids[i]);
+                        toInsert.get(i).markClean(star);
                     }
                 }
             }
 
-            if (needDelete) {
+            if (!toRemove.isEmpty()) {
                 sql = "DELETE FROM fleet_upgrades WHERE fleet_id = ?";
                 try (SqlStmt stmt = prepare(sql)) {
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                            Fleet fleet = (Fleet) baseFleet;
-                            stmt.setInt(1, fleet.getID());
-                            stmt.update();
-                        }
+                    for (Fleet fleet : toRemove) {
+                        stmt.setInt(1, fleet.getID());
+                        stmt.addBatch();
                     }
-                } catch(Exception e) {
-                    throw new RequestException(e);
+                    stmt.executeBatch();
                 }
 
                 sql = "DELETE FROM fleets WHERE id = ?";
-                ArrayList<BaseFleet> toRemove = new ArrayList<BaseFleet>();
                 try (SqlStmt stmt = prepare(sql)) {
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                            Fleet fleet = (Fleet) baseFleet;
-                            stmt.setInt(1, fleet.getID());
-                            stmt.update();
-                            toRemove.add(baseFleet);
-                        }
+                    for (Fleet fleet : toRemove) {
+                        stmt.setInt(1, fleet.getID());
+                        stmt.addBatch();
                     }
-
-                    star.getFleets().removeAll(toRemove);
-                } catch(Exception e) {
-                    throw new RequestException(e);
+                    stmt.executeBatch();
                 }
+
+                star.getFleets().removeAll(toRemove);
             }
         }
 
+        /**
+         * Writes back the upgrades of any fleets whose upgrades have changed (or which have moved
+         * here from another star). Each such fleet has its rows deleted and re-inserted.
+         */
         private void updateFleetUpgrades(Star star) throws Exception {
-            String sql = "DELETE FROM fleet_upgrades WHERE star_id = ?";
+            ArrayList<Fleet> dirtyFleets = new ArrayList<Fleet>();
+            for (BaseFleet baseFleet : star.getFleets()) {
+                Fleet fleet = (Fleet) baseFleet;
+                if (fleet.areUpgradesDirty(star)) {
+                    dirtyFleets.add(fleet);
+                }
+            }
+            if (dirtyFleets.isEmpty()) {
+                return;
+            }
+
+            String sql = "DELETE FROM fleet_upgrades WHERE fleet_id = ?";
             try (SqlStmt stmt = prepare(sql)) {
-                stmt.setInt(1, star.getID());
-                stmt.update();
+                for (Fleet fleet : dirtyFleets) {
+                    stmt.setInt(1, fleet.getID());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
             }
 
-            DateTime now = DateTime.now();
             sql = "INSERT INTO fleet_upgrades (star_id, fleet_id, upgrade_id, extra) VALUES (?, ?, ?, ?)";
             try (SqlStmt stmt = prepare(sql)) {
-                stmt.setInt(1, star.getID());
-                for (BaseFleet baseFleet : star.getFleets()) {
-                    if (baseFleet.getUpgrades() == null || baseFleet.getUpgrades().isEmpty()) {
-                        continue;
-                    }
-                    if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                        continue;
-                    }
-
-                    Fleet fleet = (Fleet) baseFleet;
-                    stmt.setInt(2, fleet.getID());
+                for (Fleet fleet : dirtyFleets) {
                     for (BaseFleetUpgrade upgrade : fleet.getUpgrades()) {
+                        stmt.setInt(1, star.getID());
+                        stmt.setInt(2, fleet.getID());
                         stmt.setString(3, upgrade.getUpgradeID());
                         stmt.setString(4, upgrade.getExtra());
-                        stmt.update();
+                        stmt.addBatch();
                     }
                 }
+                stmt.executeBatch();
+            }
+
+            for (Fleet fleet : dirtyFleets) {
+                fleet.markUpgradesClean(star);
             }
         }
 
         private void updateBuildRequests(Star star) throws Exception {
             String sql = "UPDATE build_requests SET progress = ?, end_time = ?, disable_notification = ? WHERE id = ?";
+            ArrayList<BuildRequest> updated = new ArrayList<BuildRequest>();
             try (SqlStmt stmt = prepare(sql)) {
                 for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
                     BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
+                    if (!buildRequest.isDirty()) {
+                        continue;
+                    }
+
                     stmt.setDouble(1, buildRequest.getProgress(false));
                     stmt.setDateTime(2, buildRequest.getEndTime());
                     stmt.setInt(3, buildRequest.getDisableNotification() ? 1 : 0);
                     stmt.setInt(4, buildRequest.getID());
-                    stmt.update();
+                    stmt.addBatch();
+                    updated.add(buildRequest);
                 }
+                stmt.executeBatch();
+            }
+
+            for (BuildRequest buildRequest : updated) {
+                buildRequest.markClean();
             }
         }
 
@@ -726,157 +957,6 @@ public class StarController {
             }
         }
 
-        private void populateColonies(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM colonies WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    Colony colony = new Colony(res);
-
-                    for (Star star : stars) {
-                        if (star.getID() == colony.getStarID()) {
-                            // max population for the colony is initially just it's congeniality
-                            BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
-                            colony.setMaxPopulation(planet.getPopulationCongeniality());
-
-                            star.getColonies().add(colony);
-                        }
-                    }
-                }
-            }
-        }
-
-        private void populateFleets(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT fleets.*, empires.alliance_id" +
-                        " FROM fleets" +
-                        " LEFT OUTER JOIN empires ON empires.id = fleets.empire_id" +
-                        " WHERE star_id IN "+inClause;
-
-            ArrayList<Fleet> fleets = new ArrayList<Fleet>();
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    Fleet fleet = new Fleet(res);
-                    fleets.add(fleet);
-
-                    for (Star star : stars) {
-                        if (star.getID() == fleet.getStarID()) {
-                            star.getFleets().add(fleet);
-                        }
-                    }
-                }
-            }
-
-            sql = "SELECT * FROM fleet_upgrades WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    FleetUpgrade fleetUpgrade = FleetUpgrade.create(res);
-
-                    for (Fleet fleet : fleets) {
-                        if (fleet.getID() == fleetUpgrade.getFleetID()) {
-                            fleet.getUpgrades().add(fleetUpgrade);
-                            break;
-                        }
-                    }
-                }
-            }
-        }
-
-        private void populateEmpires(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM empire_presences WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    EmpirePresence empirePresence = new EmpirePresence(res);
-
-                    for (Star star : stars) {
-                        if (star.getID() == empirePresence.getStarID()) {
-                            // by default, you get 500 max goods/minerals
-                            empirePresence.setMaxGoods(500);
-                            empirePresence.setMaxMinerals(500);
-
-                            star.getEmpirePresences().add(empirePresence);
-                        }
-                    }
-                }
-            }
-        }
-
-        private void populateBuildRequests(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM build_requests WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    int starID = res.getInt("star_id");
-                    Star star = null;
-                    for (Star thisStar : stars) {
-                        if (thisStar.getID() == starID) {
-                            star = thisStar;
-                            break;
-                        }
-                    }
-
-                    BuildRequest buildRequest = new BuildRequest(star, res);
-                    if (star != null) {
-                        star.getBuildRequests().add(buildRequest);
-                    }
-                }
-            }
-        }
-
-        private void populateBuildings(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM buildings WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    Building building = new Building(res);
-
-                    for (Star star : stars) {
-                        for (BaseColony baseColony : star.getColonies()) {
-                            Colony colony = (Colony) baseColony;
-                            if (colony.getID() == building.getColonyID()) {
-                                for (Design.Effect effect : building.getDesign().getEffects(building.getLevel())) {
-                                    BuildingEffect buildingEffect = (BuildingEffect) effect;
-                                    buildingEffect.apply(star, colony, building);
-                                }
-                                colony.getBuildings().add(building);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        private void populateCombatReports(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT star_id, rounds FROM combat_reports WHERE star_id IN "+inClause;
-            sql += " AND end_time > ?";
-            try (SqlStmt stmt = prepare(sql)) {
-                stmt.setDateTime(1, DateTime.now());
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    int starID = res.getInt(1);
-                    Messages.CombatReport pb = Messages.CombatReport.parseFrom(res.getBytes(2));
-                    CombatReport combatReport = new CombatReport();
-                    combatReport.fromProtocolBuffer(pb);
-
-                    for (Star star : stars) {
-                        if (star.getID() == starID) {
-                            star.setCombatReport(combatReport);
-                        }
-                    }
-                }
-            }
-            
-        }
-
         /**
          * Checks if any of the stars in the given list need native colonies added, and adds them
          * if so.
@@ -0,0 +1,266 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.common.model.BaseBuildRequest;
+import au.com.codeka.common.model.BaseColony;
+import au.com.codeka.common.model.BaseEmpirePresence;
+import au.com.codeka.common.model.BaseFleet;
+import au.com.codeka.common.model.BasePlanet;
+import au.com.codeka.common.model.BuildingEffect;
+import au.com.codeka.common.model.Design;
+import au.com.codeka.common.protobuf.Messages;
+import au.com.codeka.warworlds.server.data.SqlResult;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.model.BuildRequest;
+import au.com.codeka.warworlds.server.model.Building;
+import au.com.codeka.warworlds.server.model.Colony;
+import au.com.codeka.warworlds.server.model.CombatReport;
+import au.com.codeka.warworlds.server.model.EmpirePresence;
+import au.com.codeka.warworlds.server.model.Fleet;
+import au.com.codeka.warworlds.server.model.FleetUpgrade;
+import au.com.codeka.warworlds.server.model.Star;
+
+/**
+ * Loads stars along with their colonies, fleets, buildings and so on. All of the queries are
+ * sent as one multi-statement SELECT, so the whole graph comes back in a single round-trip.
+ */
+class StarGraphLoader {
+    /** The parts of the star graph (other than the stars themselves) that we can load. */
+    public enum Part {
+        EMPIRE_PRESENCES,
+        COLONIES,
+        BUILDINGS,
+        BUILD_REQUESTS,
+        FLEETS,
+        COMBAT_REPORTS
+    }
+
+    /** Everything \c StarController needs for a full star. */
+    public static final EnumSet<Part> ALL_PARTS = EnumSet.allOf(Part.class);
+
+    private static final String STAR_COLUMNS =
+            "stars.id, sector_id, name, sectors.x AS sector_x, sectors.y AS sector_y, stars.x," +
+            " stars.y, size, star_type, planets, extra, last_simulation, time_emptied, version";
+
+    private final BaseDataBase mDataBase;
+    private final EnumSet<Part> mParts;
+
+    public StarGraphLoader(BaseDataBase db, EnumSet<Part> parts) {
+        mDataBase = db;
+        mParts = parts;
+    }
+
+    /** Loads the stars with the given IDs. */
+    public List<Star> loadStars(int[] starIds) throws Exception {
+        if (starIds.length == 0) {
+            return new ArrayList<Star>();
+        }
+        return load("stars.id = ANY(?)", "star_id = ANY(?)", starIds);
+    }
+
+    /** Loads all the stars in the sectors with the given IDs. */
+    public List<Star> loadStarsForSectors(int[] sectorIds) throws Exception {
+        if (sectorIds.length == 0) {
+            return new ArrayList<Star>();
+        }
+        return load("stars.sector_id = ANY(?)",
+                "star_id IN (SELECT id FROM stars WHERE sector_id = ANY(?))", sectorIds);
+    }
+
+    /**
+     * Loads the stars. \c starWhere and \c childWhere must each have exactly one parameter,
+     * which is bound to \c ids.
+     */
+    private List<Star> load(String starWhere, String childWhere, int[] ids) throws Exception {
+        // the order here is important: buildings need their colonies, and build requests look at
+        // the buildings of their star.
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ").append(STAR_COLUMNS)
+           .append(" FROM stars INNER JOIN sectors ON stars.sector_id = sectors.id")
+           .append(" WHERE ").append(starWhere);
+        if (mParts.contains(Part.EMPIRE_PRESENCES)) {
+            sql.append("; SELECT * FROM empire_presences WHERE ").append(childWhere);
+        }
+        if (mParts.contains(Part.COLONIES)) {
+            sql.append("; SELECT * FROM colonies WHERE ").append(childWhere);
+        }
+        if (mParts.contains(Part.BUILDINGS)) {
+            sql.append("; SELECT * FROM buildings WHERE ").append(childWhere);
+        }
+        if (mParts.contains(Part.BUILD_REQUESTS)) {
+            sql.append("; SELECT * FROM build_requests WHERE ").append(childWhere);
+        }
+        if (mParts.contains(Part.FLEETS)) {
+            sql.append("; SELECT fleets.*, empires.alliance_id FROM fleets")
+               .append(" LEFT OUTER JOIN empires ON empires.id = fleets.empire_id")
+               .append(" WHERE ").append(childWhere);
+            sql.append("; SELECT * FROM fleet_upgrades WHERE ").append(childWhere);
+        }
+        if (mParts.contains(Part.COMBAT_REPORTS)) {
+            sql.append("; SELECT star_id, rounds FROM combat_reports WHERE ").append(childWhere)
+               .append(" AND end_time > ?");
+        }
+
+        ArrayList<Star> stars = new ArrayList<Star>();
+        HashMap<Integer, Star> starsById = new HashMap<Integer, Star>();
+        try (SqlStmt stmt = mDataBase.prepare(sql.toString())) {
+            // one parameter for the stars, one per child statement (fleets have two statements)
+            int numStatements = 1 + mParts.size() + (mParts.contains(Part.FLEETS) ? 1 : 0);
+            for (int i = 1; i <= numStatements; i++) {
+                stmt.setIntArray(i, ids);
+            }
+            if (mParts.contains(Part.COMBAT_REPORTS)) {
+                stmt.setDateTime(numStatements + 1, DateTime.now());
+            }
+
+            SqlResult res = stmt.selectMultiple();
+            while (res.next()) {
+                Star star = new Star(res);
+                star.setColonies(new ArrayList<BaseColony>());
+                star.setFleets(new ArrayList<BaseFleet>());
+                star.setEmpires(new ArrayList<BaseEmpirePresence>());
+                star.setBuildRequests(new ArrayList<BaseBuildRequest>());
+                stars.add(star);
+                starsById.put(star.getID(), star);
+            }
+
+            if (mParts.contains(Part.EMPIRE_PRESENCES)) {
+                populateEmpirePresences(stmt.nextResult(), starsById);
+            }
+            HashMap<Integer, Colony> coloniesById = new HashMap<Integer, Colony>();
+            if (mParts.contains(Part.COLONIES)) {
+                populateColonies(stmt.nextResult(), starsById, coloniesById);
+            }
+            if (mParts.contains(Part.BUILDINGS)) {
+                populateBuildings(stmt.nextResult(), starsById, coloniesById);
+            }
+            if (mParts.contains(Part.BUILD_REQUESTS)) {
+                populateBuildRequests(stmt.nextResult(), starsById);
+            }
+            if (mParts.contains(Part.FLEETS)) {
+                HashMap<Integer, Fleet> fleetsById = new HashMap<Integer, Fleet>();
+                populateFleets(stmt.nextResult(), starsById, fleetsById);
+                populateFleetUpgrades(stmt.nextResult(), fleetsById);
+                for (Star star : stars) {
+                    for (BaseFleet baseFleet : star.getFleets()) {
+                        ((Fleet) baseFleet).markUpgradesClean(star);
+                    }
+                }
+            }
+            if (mParts.contains(Part.COMBAT_REPORTS)) {
+                populateCombatReports(stmt.nextResult(), starsById);
+            }
+        }
+
+        return stars;
+    }
+
+    private static void populateEmpirePresences(SqlResult res, HashMap<Integer, Star> starsById)
+            throws Exception {
+        while (res.next()) {
+            EmpirePresence empirePresence = new EmpirePresence(res);
+            Star star = starsById.get(empirePresence.getStarID());
+            if (star == null) {
+                continue;
+            }
+
+            // by default, you get 500 max goods/minerals
+            empirePresence.setMaxGoods(500);
+            empirePresence.setMaxMinerals(500);
+            star.getEmpirePresences().add(empirePresence);
+        }
+    }
+
+    private static void populateColonies(SqlResult res, HashMap<Integer, Star> starsById,
+            HashMap<Integer, Colony> coloniesById) throws Exception {
+        while (res.next()) {
+            Colony colony = new Colony(res);
+            Star star = starsById.get(colony.getStarID());
+            if (star == null) {
+                continue;
+            }
+
+            // max population for the colony is initially just it's congeniality
+            BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
+            colony.setMaxPopulation(planet.getPopulationCongeniality());
+
+            star.getColonies().add(colony);
+            coloniesById.put(colony.getID(), colony);
+        }
+    }
+
+    private static void populateBuildings(SqlResult res, HashMap<Integer, Star> starsById,
+            HashMap<Integer, Colony> coloniesById) throws Exception {
+        while (res.next()) {
+            Building building = new Building(res);
+            Colony colony = coloniesById.get(building.getColonyID());
+            if (colony == null) {
+                continue;
+            }
+            Star star = starsById.get(colony.getStarID());
+
+            for (Design.Effect effect : building.getDesign().getEffects(building.getLevel())) {
+                BuildingEffect buildingEffect = (BuildingEffect) effect;
+                buildingEffect.apply(star, colony, building);
+            }
+            colony.getBuildings().add(building);
+        }
+    }
+
+    private static void populateBuildRequests(SqlResult res, HashMap<Integer, Star> starsById)
+            throws Exception {
+        while (res.next()) {
+            Star star = starsById.get(res.getInt("star_id"));
+            BuildRequest buildRequest = new BuildRequest(star, res);
+            if (star != null) {
+                star.getBuildRequests().add(buildRequest);
+            }
+        }
+    }
+
+    private static void populateFleets(SqlResult res, HashMap<Integer, Star> starsById,
+            HashMap<Integer, Fleet> fleetsById) throws Exception {
+        while (res.next()) {
+            Fleet fleet = new Fleet(res);
+            Star star = starsById.get(fleet.getStarID());
+            if (star == null) {
+                continue;
+            }
+
+            star.getFleets().add(fleet);
+            fleetsById.put(fleet.getID(), fleet);
+        }
+    }
+
+    private static void populateFleetUpgrades(SqlResult res, HashMap<Integer, Fleet> fleetsById)
+            throws Exception {
+        while (res.next()) {
+            FleetUpgrade fleetUpgrade = FleetUpgrade.create(res);
+            Fleet fleet = fleetsById.get(fleetUpgrade.getFleetID());
+            if (fleet != null) {
+                fleet.getUpgrades().add(fleetUpgrade);
+            }
+        }
+    }
+
+    private static void populateCombatReports(SqlResult res, HashMap<Integer, Star> starsById)
+            throws Exception {
+        while (res.next()) {
+            Star star = starsById.get(res.getInt(1));
+            if (star == null) {
+                continue;
+            }
+
+            Messages.CombatReport pb = Messages.CombatReport.parseFrom(res.getBytes(2));
+            CombatReport combatReport = new CombatReport();
+            combatReport.fromProtocolBuffer(pb);
+            star.setCombatReport(combatReport);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package au.com.codeka.warworlds.server.ctrl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.model.BaseStar;
@@ -9,6 +10,7 @@ import au.com.codeka.common.model.BuildingDesign;
 import au.com.codeka.common.model.DesignKind;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
 import au.com.codeka.warworlds.server.designeffects.WormholeDisruptorBuildingEffect;
@@ -44,28 +46,56 @@ public class WormholeController {
     new StarController().update(srcWormhole);
   }
 
-  /** Destroy the given wormhole. */
+  /**
+   * Gets the IDs of the stars that \c destroyWormhole will modify, sorted: the wormhole itself,
+   * the wormholes in the empire's alliance that are tuned to it, and the stars that fleets on
+   * their way to it are leaving from. The caller needs to lock all of them (in one call to
+   * \c StarLocks.lock) before destroying the wormhole.
+   */
+  public int[] getStarsAffectedByDestroy(Empire empire, int wormholeID) throws RequestException {
+    TreeSet<Integer> starIDs = new TreeSet<Integer>();
+    starIDs.add(wormholeID);
+    for (Star otherWormhole : getWormholesTunedTo(empire, wormholeID)) {
+      starIDs.add(otherWormhole.getID());
+    }
+    try {
+      starIDs.addAll(db.getFleetSourceStarIDs(wormholeID));
+    } catch (Exception e) {
+      throw new RequestException(e);
+    }
+
+    int[] result = new int[starIDs.size()];
+    int index = 0;
+    for (Integer starID : starIDs) {
+      result[index++] = starID;
+    }
+    return result;
+  }
+
+  /**
+   * Destroy the given wormhole. The caller must hold the locks on all the stars from
+   * \c getStarsAffectedByDestroy.
+   */
   public void destroyWormhole(Empire empire, Star wormhole) throws RequestException {
     // Make sure there are no other wormhole pointing to us. If there is, make sure they're not
     // pointing to us any more.
-    if (empire.getAlliance() != null) {
-      List<Star> wormholes = new StarController().getWormholesForAlliance(
-          Integer.parseInt(empire.getAlliance().getKey()));
-      for (Star otherWormhole : wormholes) {
-        if (otherWormhole.getWormholeExtra().getDestWormholeID() == wormhole.getID()) {
-          // re-fetch the star with all the info we need.
-          Star otherStar = new StarController().getStar(otherWormhole.getID());
-          otherStar.getWormholeExtra().tuneTo(0);
-          new StarController().update(otherStar);
-        }
-      }
+    for (Star otherWormhole : getWormholesTunedTo(empire, wormhole.getID())) {
+      // re-fetch the star with all the info we need.
+      Star otherStar = new StarController().getStar(otherWormhole.getID());
+      otherStar.getWormholeExtra().tuneTo(0);
+      new StarController().update(otherStar);
     }
 
+    List<Integer> srcStarIDs;
     try {
+      srcStarIDs = db.getFleetSourceStarIDs(wormhole.getID());
       db.destroyWormhole(wormhole.getID());
     } catch (Exception e) {
       throw new RequestException(e);
     }
+    // we've deleted the fleets on their way here from other stars as well
+    new StarController().markModified(srcStarIDs);
+    StarCache.i.invalidate(wormhole.getID());
   }
 
   /** Transfer ownership of the given wormhole to the given empire. */
@@ -76,6 +106,22 @@ public class WormholeController {
     new StarController().update(wormhole);
   }
 
+  private List<Star> getWormholesTunedTo(Empire empire, int wormholeID) throws RequestException {
+    List<Star> tunedWormholes = new ArrayList<Star>();
+    if (empire.getAlliance() == null) {
+      return tunedWormholes;
+    }
+
+    List<Star> wormholes = new StarController().getWormholesForAlliance(
+        Integer.parseInt(empire.getAlliance().getKey()));
+    for (Star otherWormhole : wormholes) {
+      if (otherWormhole.getWormholeExtra().getDestWormholeID() == wormholeID) {
+        tunedWormholes.add(otherWormhole);
+      }
+    }
+    return tunedWormholes;
+  }
+
   /** Returns {@code true} if the given {@link Star} is within range of a wormhole disruptor. */
   public boolean isInRangeOfWormholeDistruptor(int myEmpireID, Star wormhole)
       throws RequestException {
@@ -112,6 +158,18 @@ public class WormholeController {
       super(trans);
     }
 
+    public List<Integer> getFleetSourceStarIDs(int starID) throws Exception {
+      List<Integer> starIDs = new ArrayList<Integer>();
+      try (SqlStmt stmt = prepare("SELECT DISTINCT star_id FROM fleets WHERE target_star_id = ?")) {
+        stmt.setInt(1, starID);
+        SqlResult res = stmt.select();
+        while (res.next()) {
+          starIDs.add(res.getInt(1));
+        }
+      }
+      return starIDs;
+    }
+
     /** Destroys a wormhole. We delete the fleets, then the star itself. */
     public void destroyWormhole(int starID) throws Exception {
       try(SqlStmt stmt = prepare("DELETE FROM fleet_upgrades WHERE fleet_id IN (SELECT id FROM fleets WHERE star_id = ? OR target_star_id = ?)")) {
@@ -0,0 +1,65 @@
+package au.com.codeka.warworlds.server.data;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.warworlds.server.utils.Histogram;
+
+import com.google.gson.JsonObject;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.pool.HikariPool;
+
+/**
+ * One of the pools of connections that \c DB hands out from (see \c DB.Pool). As well as the
+ * connections themselves, this keeps track of how long callers wait for them.
+ */
+public class ConnectionPool {
+  private final String name;
+  private final int maxConnections;
+  private final long connectionTimeoutMs;
+  private final HikariPool pool;
+
+  private final Histogram waitMs = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+  /** The number of times we couldn't get a connection, usually because we timed out waiting. */
+  private final AtomicLong numFailed = new AtomicLong();
+
+  ConnectionPool(HikariConfig config) {
+    config.validate();
+    name = config.getPoolName();
+    maxConnections = config.getMaximumPoolSize();
+    connectionTimeoutMs = config.getConnectionTimeout();
+    pool = new HikariPool(config);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets a connection from the pool, waiting up to the pool's timeout if they're all in use. The
+   * caller must close it, which returns it to the pool.
+   */
+  Connection getConnection() throws SQLException {
+    long startTime = System.nanoTime();
+    try {
+      return pool.getConnection();
+    } catch (SQLException e) {
+      numFailed.incrementAndGet();
+      throw e;
+    } finally {
+      waitMs.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+  }
+
+  public void populateMetrics(JsonObject json) {
+    json.addProperty("max_connections", maxConnections);
+    json.addProperty("connection_timeout_ms", connectionTimeoutMs);
+    json.addProperty("active_connections", pool.getActiveConnections());
+    json.addProperty("idle_connections", pool.getIdleConnections());
+    json.addProperty("threads_waiting", pool.getThreadsAwaitingConnection());
+    json.addProperty("num_failed", numFailed.get());
+    json.add("wait_ms", waitMs.toJson());
+  }
+}
@@ -2,23 +2,76 @@ package au.com.codeka.warworlds.server.data;
 
 import java.sql.CallableStatement;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.warworlds.server.Configuration;
 
+import com.google.gson.JsonObject;
 import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
 import com.zaxxer.hikari.IConnectionCustomizer;
 
 /**
  * This is a wrapper class that helps us with connecting to the database.
+ *
+ * Connections come from one of several pools (see {@link Pool}), so that one kind of work can't
+ * use them all up and starve the others. Which pool is used is decided by the thread: call
+ * {@link #setThreadPool} when a thread starts, anything that doesn't gets {@link Pool#REQUESTS}.
+ * Code that only reads can switch to {@link Pool#REPLICA} for a while with {@link #usePool}.
  */
 public class DB {
   private static final Log log = new Log("DB");
-  private static final HikariDataSource dataSource;
   private static final String schemaName;
 
+  /** The connection pools, and who uses each of them. */
+  public enum Pool {
+    /** HTTP requests, i.e. players waiting on a response. This is the default. */
+    REQUESTS("requests", 30, 5000),
+
+    /** The \c StarSimulatorThread simulating stars in the background. */
+    SIMULATION("simulation", 4, 30000),
+
+    /** The \c EventProcessor, and the events it runs. */
+    EVENTS("events", 8, 30000),
+
+    /** Cron jobs and other housekeeping. */
+    BACKGROUND("background", 4, 60000),
+
+    /**
+     * Read-only queries that don't mind being a few seconds out of date. These go to the read
+     * replica if there is one and it's caught up (see \c ReplicaMonitor), otherwise to the
+     * \c REQUESTS pool on the primary.
+     */
+    REPLICA("replica", 20, 2000);
+
+    private final String name;
+    private final int defaultMaxConnections;
+    private final long defaultConnectionTimeoutMs;
+
+    Pool(String name, int defaultMaxConnections, long defaultConnectionTimeoutMs) {
+      this.name = name;
+      this.defaultMaxConnections = defaultMaxConnections;
+      this.defaultConnectionTimeoutMs = defaultConnectionTimeoutMs;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  /** Pools are only created the first time they're used, so cron jobs only open the one. */
+  private static final AtomicReferenceArray<ConnectionPool> pools =
+      new AtomicReferenceArray<ConnectionPool>(Pool.values().length);
+
+  private static final ThreadLocal<Pool> threadPool = new ThreadLocal<Pool>() {
+    @Override
+    protected Pool initialValue() {
+      return Pool.REQUESTS;
+    }
+  };
+
   private static final IConnectionCustomizer connectionCustomizer = new IConnectionCustomizer() {
     @Override
     public void customize(Connection connection) throws SQLException {
@@ -39,16 +92,6 @@ public class DB {
       Class.forName("org.postgresql.Driver");
 
       Configuration.DatabaseConfiguration dbconfig = Configuration.i.getDatabaseConfig();
-      HikariConfig config = new HikariConfig();
-      config.setMaximumPoolSize(40);
-      config.setDataSourceClassName("org.postgresql.ds.PGSimpleDataSource");
-      config.setUsername(dbconfig.getUsername());
-      config.setPassword(dbconfig.getPassword());
-      config.addDataSourceProperty("serverName", dbconfig.getServer());
-      config.addDataSourceProperty("portNumber", Integer.toString(dbconfig.getPort()));
-      config.addDataSourceProperty("databaseName", dbconfig.getDatabase());
-      config.setConnectionCustomizer(connectionCustomizer);
-      dataSource = new HikariDataSource(config);
       schemaName = dbconfig.getSchema();
     } catch (Exception e) {
       log.error("Error loading PostgreSQL driver.", e);
@@ -56,19 +99,163 @@ public class DB {
     }
   }
 
+  /** Sets the pool that connections for the current thread come from. */
+  public static void setThreadPool(Pool pool) {
+    threadPool.set(pool);
+  }
+
+  public static Pool getThreadPool() {
+    return threadPool.get();
+  }
+
+  /**
+   * Switches the current thread to the given pool until the returned \c PoolScope is closed,
+   * like so:
+   *
+   * <pre>
+   * try (DB.PoolScope scope = DB.usePool(DB.Pool.REPLICA)) {
+   *   ...
+   * }
+   * </pre>
+   */
+  public static PoolScope usePool(Pool pool) {
+    PoolScope scope = new PoolScope(threadPool.get());
+    threadPool.set(pool);
+    return scope;
+  }
+
+  /** Puts the thread back on its previous pool when closed. See {@link #usePool}. */
+  public static class PoolScope implements AutoCloseable {
+    private final Pool previous;
+
+    private PoolScope(Pool previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      threadPool.set(previous);
+    }
+  }
+
   public static SqlStmt prepare(String sql) throws SQLException {
-    Connection conn = dataSource.getConnection();
+    Connection conn = getConnection();
     return new SqlStmt(conn, sql, conn.prepareStatement(sql), true);
   }
 
   public static SqlStmt prepare(String sql, int autoGenerateKeys)
       throws SQLException {
-    Connection conn = dataSource.getConnection();
+    Connection conn = getConnection();
     return new SqlStmt(conn, sql,
         conn.prepareStatement(sql, autoGenerateKeys), true);
   }
 
   public static Transaction beginTransaction() throws SQLException {
-    return new Transaction(dataSource.getConnection());
+    return new Transaction(getConnection());
+  }
+
+  /** Adds the metrics of each pool that's been used so far to the given object, by name. */
+  public static void populateMetrics(JsonObject json) {
+    for (Pool pool : Pool.values()) {
+      ConnectionPool connectionPool = pools.get(pool.ordinal());
+      if (connectionPool != null) {
+        JsonObject poolJson = new JsonObject();
+        connectionPool.populateMetrics(poolJson);
+        json.add(pool.getName(), poolJson);
+      }
+    }
+  }
+
+  /**
+   * Prepares a statement on a connection from the given pool, regardless of the thread's pool
+   * and without falling back if it's the replica. Used by \c ReplicaMonitor.
+   */
+  static SqlStmt prepare(Pool pool, String sql) throws SQLException {
+    Connection conn = getPool(pool).getConnection();
+    return new SqlStmt(conn, sql, conn.prepareStatement(sql), true);
+  }
+
+  private static Connection getConnection() throws SQLException {
+    Pool pool = threadPool.get();
+    if (pool == Pool.REPLICA) {
+      if (ReplicaMonitor.i.isUsable()) {
+        try {
+          return getPool(Pool.REPLICA).getConnection();
+        } catch (SQLException e) {
+          ReplicaMonitor.i.onConnectionFailed(e);
+        }
+      }
+      ReplicaMonitor.i.onFallback();
+      pool = Pool.REQUESTS;
+    }
+    return getPool(pool).getConnection();
+  }
+
+  private static ConnectionPool getPool(Pool pool) {
+    ConnectionPool connectionPool = pools.get(pool.ordinal());
+    if (connectionPool != null) {
+      return connectionPool;
+    }
+
+    synchronized (pools) {
+      connectionPool = pools.get(pool.ordinal());
+      if (connectionPool == null) {
+        connectionPool = createPool(pool);
+        pools.set(pool.ordinal(), connectionPool);
+      }
+      return connectionPool;
+    }
+  }
+
+  private static ConnectionPool createPool(Pool pool) {
+    Configuration.DatabaseConfiguration dbconfig = Configuration.i.getDatabaseConfig();
+    int maxConnections = pool.defaultMaxConnections;
+    long connectionTimeoutMs = pool.defaultConnectionTimeoutMs;
+    Configuration.PoolConfiguration poolConfig = dbconfig.getPoolConfig(pool.getName());
+    if (poolConfig != null && poolConfig.getMaxConnections() != null) {
+      maxConnections = poolConfig.getMaxConnections();
+    }
+    if (poolConfig != null && poolConfig.getConnectionTimeoutMs() != null) {
+      connectionTimeoutMs = poolConfig.getConnectionTimeoutMs();
+    }
+    String server = dbconfig.getServer();
+    int port = dbconfig.getPort();
+    if (pool == Pool.REPLICA) {
+      server = dbconfig.getReplicaConfig().getServer();
+      port = dbconfig.getReplicaConfig().getPort();
+    }
+    log.info("Creating '%s' connection pool on %s:%d: %d connections, %dms timeout.",
+        pool.getName(), server, port, maxConnections, connectionTimeoutMs);
+
+    HikariConfig config = new HikariConfig();
+    config.setPoolName(pool.getName());
+    config.setMaximumPoolSize(maxConnections);
+    config.setConnectionTimeout(connectionTimeoutMs);
+    config.setDataSourceClassName("org.postgresql.ds.PGSimpleDataSource");
+    config.setUsername(dbconfig.getUsername());
+    config.setPassword(dbconfig.getPassword());
+    config.addDataSourceProperty("serverName", server);
+    config.addDataSourceProperty("portNumber", Integer.toString(port));
+    config.addDataSourceProperty("databaseName", dbconfig.getDatabase());
+    config.setConnectionCustomizer(connectionCustomizer);
+    return new ConnectionPool(config);
+  }
+
+  /**
+   * Opens a new connection that's not part of the pool, for things that need to hold on to a
+   * connection indefinitely (e.g. to LISTEN for notifications). The caller must close it.
+   */
+  public static Connection openDedicatedConnection() throws SQLException {
+    Configuration.DatabaseConfiguration dbconfig = Configuration.i.getDatabaseConfig();
+    String url = String.format("jdbc:postgresql://%s:%d/%s", dbconfig.getServer(),
+        dbconfig.getPort(), dbconfig.getDatabase());
+    Connection conn = DriverManager.getConnection(url, dbconfig.getUsername(),
+        dbconfig.getPassword());
+    connectionCustomizer.customize(conn);
+    return conn;
+  }
+
+  public static String getSchemaName() {
+    return schemaName;
   }
 }
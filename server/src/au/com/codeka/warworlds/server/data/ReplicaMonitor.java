@@ -0,0 +1,130 @@
+package au.com.codeka.warworlds.server.data;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.Configuration;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Works out whether it's OK to send queries to the read replica (see \c DB.Pool.REPLICA). Every
+ * second, we write the current time to the \c replication_heartbeat table on the primary and read
+ * it back from the replica: how old the replica's copy is tells us how far behind it is. If it's
+ * more than the configured \c maxStalenessMs, or we can't talk to it at all, queries go to the
+ * primary instead until it catches up.
+ *
+ * The lag is measured against the replica's clock, so if the primary and replica are on
+ * different machines their clocks should be in sync.
+ */
+public class ReplicaMonitor {
+  public static ReplicaMonitor i = new ReplicaMonitor();
+
+  private static final Log log = new Log("ReplicaMonitor");
+  private static final long CHECK_INTERVAL_MS = 1000;
+
+  private long maxStalenessMs;
+
+  private volatile boolean enabled;
+  private volatile boolean usable;
+  private volatile long lagMs = -1;
+
+  private final AtomicLong numFallbacks = new AtomicLong();
+  private final AtomicLong numConnectionsFailed = new AtomicLong();
+  private final AtomicLong numChecksFailed = new AtomicLong();
+
+  /** Starts checking the replica, if there is one. Until then, we never use it. */
+  public void start() {
+    Configuration.ReplicaConfiguration config =
+        Configuration.i.getDatabaseConfig().getReplicaConfig();
+    if (config == null) {
+      return;
+    }
+    maxStalenessMs = config.getMaxStalenessMs();
+    enabled = true;
+    log.info("Using read replica %s:%d, if it's less than %dms behind.", config.getServer(),
+        config.getPort(), maxStalenessMs);
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        DB.setThreadPool(DB.Pool.BACKGROUND);
+        while (true) {
+          check();
+          try {
+            Thread.sleep(CHECK_INTERVAL_MS);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.setName("ReplicaMonitor");
+    thread.start();
+  }
+
+  /** Returns true if queries for the replica should actually go to the replica right now. */
+  public boolean isUsable() {
+    return usable;
+  }
+
+  /** Called when we couldn't get a connection to the replica, we'll stop using it for now. */
+  void onConnectionFailed(SQLException e) {
+    numConnectionsFailed.incrementAndGet();
+    if (usable) {
+      log.warning("Error connecting to the replica, using the primary for now.", e);
+      usable = false;
+    }
+  }
+
+  /** Called when a query meant for the replica goes to the primary instead. */
+  void onFallback() {
+    if (enabled) {
+      numFallbacks.incrementAndGet();
+    }
+  }
+
+  public void populateMetrics(JsonObject json) {
+    json.addProperty("enabled", enabled);
+    if (!enabled) {
+      return;
+    }
+
+    json.addProperty("usable", usable);
+    json.addProperty("lag_ms", lagMs);
+    json.addProperty("max_staleness_ms", maxStalenessMs);
+    json.addProperty("num_fallbacks", numFallbacks.get());
+    json.addProperty("num_connections_failed", numConnectionsFailed.get());
+    json.addProperty("num_checks_failed", numChecksFailed.get());
+  }
+
+  private void check() {
+    boolean wasUsable = usable;
+    try {
+      try (SqlStmt stmt = DB.prepare(
+          "UPDATE replication_heartbeat SET heartbeat_time = NOW() WHERE id = 1")) {
+        stmt.update();
+      }
+
+      String sql = "SELECT CAST(EXTRACT(EPOCH FROM NOW() - heartbeat_time) * 1000 AS BIGINT)"
+          + " FROM replication_heartbeat WHERE id = 1";
+      try (SqlStmt stmt = DB.prepare(DB.Pool.REPLICA, sql)) {
+        Long lag = stmt.selectFirstValue(Long.class);
+        // a little bit negative just means the clocks are slightly out
+        lagMs = (lag == null ? -1 : Math.max(0, lag));
+      }
+      usable = (lagMs >= 0 && lagMs <= maxStalenessMs);
+      if (wasUsable != usable) {
+        log.info("Replica is %dms behind, %s.", lagMs, usable ? "using it" : "using the primary");
+      }
+    } catch (Exception e) {
+      numChecksFailed.incrementAndGet();
+      usable = false;
+      if (wasUsable) {
+        log.warning("Error checking the replica, using the primary for now.", e);
+      }
+    }
+  }
+}
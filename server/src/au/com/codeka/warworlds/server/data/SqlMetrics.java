@@ -0,0 +1,232 @@
+package au.com.codeka.warworlds.server.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.Configuration;
+import au.com.codeka.warworlds.server.utils.Histogram;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Keeps track of how long each SQL statement takes to execute, and how many rows it returns
+ * (or updates). Statements are grouped by their "normalised" text, where literal numbers and
+ * strings are replaced with "?", so the same query built with different inline values is only
+ * counted once. \c SqlStmt reports each statement here when it's closed.
+ *
+ * Statements that take longer than the configured \c slowQueryThresholdMs are also logged, and
+ * the most recent of them are kept (with their parameters) so they can be shown in the backend.
+ */
+public class SqlMetrics {
+    public static SqlMetrics i = new SqlMetrics();
+
+    private static final Log log = new Log("SqlMetrics");
+
+    /**
+     * Once we're tracking this many different statements, any new ones are lumped together. It
+     * stops something that builds a unique statement every time from using up all our memory.
+     */
+    private static final int MAX_STATEMENTS = 2000;
+    private static final String OTHER_STATEMENTS = "(other)";
+
+    /** The number of slow queries we keep. */
+    private static final int MAX_SLOW_QUERIES = 100;
+
+    private final ConcurrentHashMap<String, StatementMetrics> mStatements =
+            new ConcurrentHashMap<String, StatementMetrics>();
+    private final ArrayDeque<SlowQuery> mSlowQueries = new ArrayDeque<SlowQuery>();
+    private final AtomicLong mNumSlowQueries = new AtomicLong();
+
+    private SqlMetrics() {
+    }
+
+    /**
+     * Records one execution (or several, if it was executed more than once) of the given
+     * statement.
+     *
+     * @param sql The SQL text, as it was prepared.
+     * @param parameters The bound parameters, only used if it turns out to be a slow query.
+     * @param durationMs The total time spent executing the statement.
+     * @param numRows The number of rows returned (or updated) by the statement.
+     * @param failed Whether the statement threw an exception.
+     */
+    public void record(String sql, List<Object> parameters, long durationMs, long numRows,
+            boolean failed) {
+        getStatementMetrics(normalise(sql)).record(durationMs, numRows, failed);
+
+        int threshold = Configuration.i.getSlowQueryThresholdMs();
+        if (threshold > 0 && durationMs >= threshold) {
+            mNumSlowQueries.incrementAndGet();
+            SlowQuery slowQuery = new SlowQuery(sql, parameters, durationMs, numRows);
+            log.warning("Slow query (%dms, %d rows): %s %s", durationMs, numRows, sql,
+                    slowQuery.mParameters);
+            synchronized (mSlowQueries) {
+                mSlowQueries.addFirst(slowQuery);
+                while (mSlowQueries.size() > MAX_SLOW_QUERIES) {
+                    mSlowQueries.removeLast();
+                }
+            }
+        }
+    }
+
+    /** Forgets everything we've recorded so far. */
+    public void reset() {
+        mStatements.clear();
+        mNumSlowQueries.set(0);
+        synchronized (mSlowQueries) {
+            mSlowQueries.clear();
+        }
+    }
+
+    public void populateMetrics(JsonObject json) {
+        JsonArray statements = new JsonArray();
+        for (Map.Entry<String, StatementMetrics> entry : mStatements.entrySet()) {
+            JsonObject statement = new JsonObject();
+            statement.addProperty("sql", entry.getKey());
+            entry.getValue().populateMetrics(statement);
+            statements.add(statement);
+        }
+        json.add("statements", statements);
+
+        json.addProperty("slow_query_threshold_ms", Configuration.i.getSlowQueryThresholdMs());
+        json.addProperty("num_slow_queries", mNumSlowQueries.get());
+        JsonArray slowQueries = new JsonArray();
+        synchronized (mSlowQueries) {
+            for (SlowQuery slowQuery : mSlowQueries) {
+                slowQueries.add(slowQuery.toJson());
+            }
+        }
+        json.add("slow_queries", slowQueries);
+    }
+
+    private StatementMetrics getStatementMetrics(String sql) {
+        StatementMetrics metrics = mStatements.get(sql);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (mStatements.size() >= MAX_STATEMENTS) {
+            sql = OTHER_STATEMENTS;
+        }
+
+        metrics = new StatementMetrics();
+        StatementMetrics existing = mStatements.putIfAbsent(sql, metrics);
+        return existing == null ? metrics : existing;
+    }
+
+    /**
+     * Normalises the given SQL: whitespace is collapsed, and literal numbers and strings are
+     * replaced with "?". Numbers that are part of an identifier (e.g. "schema_version2") are left
+     * alone.
+     */
+    static String normalise(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int i = 0;
+        while (i < sql.length()) {
+            char ch = sql.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0 && i < sql.length()) {
+                    sb.append(' ');
+                }
+            } else if (ch == '\'') {
+                // skip to the closing quote, a doubled-up quote is an escaped one
+                i++;
+                while (i < sql.length()) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    i++;
+                }
+                i++;
+                sb.append('?');
+            } else if (Character.isDigit(ch) && !isIdentifierChar(sb)) {
+                while (i < sql.length()
+                        && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+            } else {
+                sb.append(ch);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Returns true if the last character in the given buffer could be part of an identifier. */
+    private static boolean isIdentifierChar(StringBuilder sb) {
+        if (sb.length() == 0) {
+            return false;
+        }
+        char ch = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(ch) || ch == '_' || ch == '"';
+    }
+
+    private static class StatementMetrics {
+        private final Histogram mDurationMs = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+        private final Histogram mRows = new Histogram(Histogram.COUNT_BOUNDS);
+        private final AtomicLong mNumErrors = new AtomicLong();
+
+        public void record(long durationMs, long numRows, boolean failed) {
+            mDurationMs.record(durationMs);
+            mRows.record(numRows);
+            if (failed) {
+                mNumErrors.incrementAndGet();
+            }
+        }
+
+        public void populateMetrics(JsonObject json) {
+            json.addProperty("num_errors", mNumErrors.get());
+            json.add("duration_ms", mDurationMs.toJson());
+            json.add("rows", mRows.toJson());
+        }
+    }
+
+    private static class SlowQuery {
+        private final DateTime mTime;
+        private final String mSql;
+        private final List<String> mParameters;
+        private final long mDurationMs;
+        private final long mNumRows;
+
+        public SlowQuery(String sql, List<Object> parameters, long durationMs, long numRows) {
+            mTime = DateTime.now();
+            mSql = sql;
+            mParameters = new ArrayList<String>();
+            for (Object param : parameters) {
+                mParameters.add(String.valueOf(param));
+            }
+            mDurationMs = durationMs;
+            mNumRows = numRows;
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("time", mTime.toString());
+            json.addProperty("sql", mSql);
+            JsonArray parameters = new JsonArray();
+            for (String param : mParameters) {
+                parameters.add(new JsonPrimitive(param));
+            }
+            json.add("parameters", parameters);
+            json.addProperty("duration_ms", mDurationMs);
+            json.addProperty("num_rows", mNumRows);
+            return json;
+        }
+    }
+}
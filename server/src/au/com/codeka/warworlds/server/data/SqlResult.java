@@ -10,6 +10,7 @@ import org.joda.time.DateTimeZone;
 /** Wrapper around a {@link ResultSet}. */
 public class SqlResult {
     private ResultSet mResultSet;
+    private int mNumRows;
 
     SqlResult(ResultSet rs) {
         mResultSet = rs;
@@ -19,8 +20,17 @@ public class SqlResult {
         mResultSet.close();
     }
 
+    /** Gets the number of rows we've read so far, for \c SqlMetrics. */
+    int getNumRows() {
+        return mNumRows;
+    }
+
     public boolean next() throws SQLException {
-        return mResultSet.next();
+        if (mResultSet.next()) {
+            mNumRows ++;
+            return true;
+        }
+        return false;
     }
 
     public Integer getInt(int position) throws SQLException {
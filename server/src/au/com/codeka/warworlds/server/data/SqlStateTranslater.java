@@ -30,6 +30,11 @@ public class SqlStateTranslater {
     return translate(sqlState) == ErrorCode.ConstraintViolation;
   }
 
+  /** Returns true if the error is because we tried to write on a read-only connection. */
+  public static boolean isReadOnlyViolation(SQLException e) {
+    return translate(e.getSQLState()) == ErrorCode.ReadOnlyTransaction;
+  }
+
   public static boolean isRetryable(SQLException e) {
     return isRetryable(e.getSQLState());
   }
@@ -48,6 +53,7 @@ public class SqlStateTranslater {
     UnknownError(""),
     TableDoesNotExist("42P01"),
     TransactionRollback("40*"),
+    ReadOnlyTransaction("25006"),
     ConstraintViolation("23*");
 
     private String sqlState;
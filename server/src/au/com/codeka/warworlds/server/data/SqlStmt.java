@@ -7,8 +7,11 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.ReadableInstant;
 
@@ -32,6 +35,13 @@ public class SqlStmt implements AutoCloseable {
     private ArrayList<Object> mParameters;
     private ArrayList<SqlResult> mResults;
     private boolean mWasStatementLogged;
+    private int mBatchSize;
+
+    // These are reported to SqlMetrics when we're closed.
+    private boolean mWasExecuted;
+    private boolean mFailed;
+    private long mExecutionNanos;
+    private long mNumRows;
 
     public SqlStmt(Connection conn, String sql, PreparedStatement stmt,
             boolean autoCloseConnection) {
@@ -104,6 +114,32 @@ public class SqlStmt implements AutoCloseable {
             saveParameter(position, String.format("<BLOB> %d bytes", bytes.length));
         }
     }
+    /**
+     * Binds an array of integers, for use with "= ANY(?)" in place of "IN (...)". That way the SQL
+     * text stays the same no matter how many values there are.
+     */
+    public void setIntArray(int position, int[] values) throws SQLException {
+        Integer[] boxed = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        setIntArray(position, boxed);
+    }
+    public void setIntArray(int position, Collection<Integer> values) throws SQLException {
+        setIntArray(position, values.toArray(new Integer[values.size()]));
+    }
+    public void setLongArray(int position, long[] values) throws SQLException {
+        Long[] boxed = new Long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        mStmt.setArray(position, mConn.createArrayOf("int8", boxed));
+        saveParameter(position, Arrays.toString(boxed));
+    }
+    private void setIntArray(int position, Integer[] values) throws SQLException {
+        mStmt.setArray(position, mConn.createArrayOf("int4", values));
+        saveParameter(position, Arrays.toString(values));
+    }
     public void setNull(int position) throws SQLException {
         mStmt.setNull(position, Types.NULL);
         saveParameter(position, "<NULL>");
@@ -122,7 +158,60 @@ public class SqlStmt implements AutoCloseable {
      */
     public int update() throws SQLException {
         logStatement();
-        return mStmt.executeUpdate();
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            int numRows = mStmt.executeUpdate();
+            mNumRows += numRows;
+            succeeded = true;
+            return numRows;
+        } finally {
+            onExecuted(startTime, succeeded);
+        }
+    }
+
+    /**
+     * Adds the current set of parameters to this statement's batch. Call \c executeBatch() to
+     * send the whole batch to the server in one round-trip.
+     */
+    public void addBatch() throws SQLException {
+        logStatement();
+        mStmt.addBatch();
+        mBatchSize ++;
+    }
+
+    /** Gets the number of sets of parameters that have been added to the batch so far. */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Executes all of the parameters added with \c addBatch(). Returns the update count for each
+     * one, in the order they were added. Does nothing if the batch is empty.
+     */
+    public int[] executeBatch() throws SQLException {
+        if (mBatchSize == 0) {
+            return new int[0];
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Executing batch of %d: %s", mBatchSize, mSql));
+        }
+
+        mBatchSize = 0;
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            int[] numRows = mStmt.executeBatch();
+            for (int n : numRows) {
+                if (n > 0) {
+                    mNumRows += n;
+                }
+            }
+            succeeded = true;
+            return numRows;
+        } finally {
+            onExecuted(startTime, succeeded);
+        }
     }
 
     public int getAutoGeneratedID() throws SQLException {
@@ -141,18 +230,48 @@ public class SqlStmt implements AutoCloseable {
         throw new SQLException("No auto-generated ID available.");
     }
 
+    /**
+     * Gets all of the auto-generated IDs from the last \c update() or \c executeBatch(), in the
+     * same order the parameters were added to the batch.
+     */
+    public int[] getAutoGeneratedIDs() throws SQLException {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        ResultSet rs = null;
+        try {
+            rs = mStmt.getGeneratedKeys();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+        }
+
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T selectFirstValue(Class<T> type) throws SQLException {
         logStatement();
 
         ResultSet rs = null;
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
         try {
             rs = mStmt.executeQuery();
+            succeeded = true;
             if (rs.next()) {
+                mNumRows ++;
                 return (T) rs.getObject(1);
             }
             return null;
         } finally {
+            onExecuted(startTime, succeeded);
             if (rs != null) rs.close();
         }
     }
@@ -160,9 +279,55 @@ public class SqlStmt implements AutoCloseable {
     public SqlResult select() throws SQLException {
         logStatement();
 
-        SqlResult result = new SqlResult(mStmt.executeQuery());
-        mResults.add(result);
-        return result;
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            SqlResult result = new SqlResult(mStmt.executeQuery());
+            mResults.add(result);
+            succeeded = true;
+            return result;
+        } finally {
+            onExecuted(startTime, succeeded);
+        }
+    }
+
+    /**
+     * Executes a statement made up of several SELECTs separated by semicolons. They're all sent
+     * to the server in a single round-trip. Returns the results of the first SELECT, call
+     * \c nextResult() to get the results of each of the following ones, in order.
+     */
+    public SqlResult selectMultiple() throws SQLException {
+        logStatement();
+        long startTime = System.nanoTime();
+        boolean hasResults;
+        boolean succeeded = false;
+        try {
+            hasResults = mStmt.execute();
+            succeeded = true;
+        } finally {
+            onExecuted(startTime, succeeded);
+        }
+        if (!hasResults) {
+            throw new SQLException("Expected a result set from the first statement.");
+        }
+
+        SqlResult res = new SqlResult(mStmt.getResultSet());
+        mResults.add(res);
+        return res;
+    }
+
+    /**
+     * After \c selectMultiple(), returns the results of the next SELECT, or null if there are no
+     * more. The previous \c SqlResult is closed.
+     */
+    public SqlResult nextResult() throws SQLException {
+        if (!mStmt.getMoreResults()) {
+            return null;
+        }
+
+        SqlResult res = new SqlResult(mStmt.getResultSet());
+        mResults.add(res);
+        return res;
     }
 
     /**
@@ -172,7 +337,14 @@ public class SqlStmt implements AutoCloseable {
      */
     public SqlResult updateAndSelect() throws SQLException {
         logStatement();
-        mStmt.execute();
+        long startTime = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            mStmt.execute();
+            succeeded = true;
+        } finally {
+            onExecuted(startTime, succeeded);
+        }
 
         do {
             SqlResult res = new SqlResult(mStmt.getResultSet());
@@ -181,6 +353,14 @@ public class SqlStmt implements AutoCloseable {
         } while (mStmt.getMoreResults());
     }
 
+    private void onExecuted(long startNanos, boolean succeeded) {
+        mExecutionNanos += System.nanoTime() - startNanos;
+        mWasExecuted = true;
+        if (!succeeded) {
+            mFailed = true;
+        }
+    }
+
     private void logStatement() {
         if (mWasStatementLogged) {
             return;
@@ -203,9 +383,15 @@ public class SqlStmt implements AutoCloseable {
     public void close() throws Exception {
         logStatement();
 
+        long numRows = mNumRows;
         for (SqlResult res : mResults) {
+            numRows += res.getNumRows();
             res.close();
         }
+        if (mWasExecuted) {
+            SqlMetrics.i.record(mSql, mParameters,
+                    TimeUnit.NANOSECONDS.toMillis(mExecutionNanos), numRows, mFailed);
+        }
         mStmt.close();
         if (mAutoCloseConnection) {
             mConn.close();
@@ -4,6 +4,8 @@ import au.com.codeka.common.Log;
 import au.com.codeka.common.model.BaseFleet;
 import au.com.codeka.common.model.BaseStar;
 import au.com.codeka.common.model.ShipEffect;
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.model.Fleet;
@@ -51,5 +53,10 @@ public class WormholeGeneratorShipEffect extends ShipEffect {
             log.error("Error removing wormhole generator.", e);
         }
         star.getFleets().remove(fleet);
+        try {
+            new StarController().markModified(star);
+        } catch (RequestException e) {
+            log.error("Error marking star modified.", e);
+        }
     }
 }
@@ -1,18 +1,21 @@
 package au.com.codeka.warworlds.server.events;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 import org.joda.time.DateTime;
 
 import au.com.codeka.common.Log;
+import au.com.codeka.common.model.BaseBuildRequest;
 import au.com.codeka.common.model.BaseColony;
 import au.com.codeka.common.model.DesignKind;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.Configuration;
 import au.com.codeka.warworlds.server.Event;
-import au.com.codeka.warworlds.server.RequestContext;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.BuildingController;
 import au.com.codeka.warworlds.server.ctrl.EmpireController;
 import au.com.codeka.warworlds.server.ctrl.FleetController;
@@ -30,129 +33,198 @@ public class BuildCompleteEvent extends Event {
     private final Log log = new Log("BuildCompleteEvent");
 
     @Override
-    public String getNextEventTimeSql() {
-        return "SELECT MIN(end_time) FROM build_requests WHERE processing = 0";
+    protected DateTime getNextEventTime(Star star) {
+        DateTime next = null;
+        for (BaseBuildRequest buildRequest : star.getBuildRequests()) {
+            next = earliest(next, buildRequest.getEndTime());
+        }
+        return next;
     }
 
     @Override
-    public void process() {
-        ArrayList<Integer> processedIDs = new ArrayList<Integer>();
-        String sql = "SELECT id, star_id, colony_id, empire_id, existing_building_id," +
-                           " existing_fleet_id, upgrade_id, design_kind, design_id, count, notes, disable_notification" +
-                    " FROM build_requests" +
-                    " WHERE end_time < ? AND processing = 0" +
-                    " LIMIT 10"; // just do ten at a time, which will allow us to interleave other events
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, DateTime.now().plusSeconds(10)); // anything in the next 10 seconds is a candidate
-            SqlResult res = stmt.select();
-            while (res.next()) {
-                int id = res.getInt(1);
+    protected String getScheduleSql() {
+        return "SELECT star_id, MIN(end_time) FROM build_requests WHERE processing = 0" +
+              " GROUP BY star_id";
+    }
 
-                RequestContext.i.setContext("event: BuildCompleteEvent build_request.id="+id);
+    /**
+     * Processes every build request that's due on the given star. However many there are, the
+     * star is only loaded, simulated and saved once.
+     */
+    @Override
+    protected void processStar(int starID) throws Exception {
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+            ArrayList<CompletedBuild> builds = claimBuildRequests(starID);
+            if (builds.isEmpty()) {
+                // they've already been processed
+                return;
+            }
 
-                sql = "UPDATE build_requests SET processing = 1 WHERE processing = 0 AND id = ?";
-                try (SqlStmt stmt2 = DB.prepare(sql)) {
-                    stmt2.setInt(1, id);
-                    if (stmt2.update() != 1) {
-                        continue;
-                    }
-                }
-                processedIDs.add(id);
-
-                int starID = res.getInt(2);
-                int colonyID = res.getInt(3);
-                int empireID = res.getInt(4);
-                Integer existingBuildingID = res.getInt(5);
-                Integer existingFleetID = res.getInt(6);
-                String upgradeID = res.getString(7);
-                DesignKind designKind = DesignKind.fromNumber(res.getInt(8));
-                String designID = res.getString(9);
-                float count = res.getFloat(10);
-                String notes = res.getString(11);
-                boolean disableNotification = (res.getInt(12) > 0);
-
-                Star star = new StarController().getStar(starID);
-                Colony colony = null;
-                for (BaseColony bc : star.getColonies()) {
-                    if (((Colony) bc).getID() == colonyID) {
-                        colony = (Colony) bc;
-                    }
-                }
+            Star star;
+            try {
+                star = new StarController().getStar(starID);
+            } catch (RequestException e) {
+                // we haven't built anything yet, so they can be picked up again when we retry
+                releaseBuildRequests(builds);
+                throw e;
+            }
 
-                try {
-                    processBuildRequest(id, star, colony, empireID, existingBuildingID, existingFleetID, upgradeID,
-                                        designKind, designID, count, notes, disableNotification);
-                } catch (Exception e) {
-                    log.error("Error processing build-complete event!", e);
+            // once we start building, the new fleets and buildings are written straight away, so
+            // the build requests have to go whatever happens (otherwise we'd build them twice).
+            try {
+                processBuildRequests(star, builds);
+                for (CompletedBuild build : builds) {
+                    onEventProcessed(build.endTime);
                 }
+            } finally {
+                deleteBuildRequests(starID, builds);
             }
-        } catch(Exception e) {
-            log.error("Error processing build-complete event!", e);
         }
+    }
 
-        if (processedIDs.isEmpty()) {
-            return;
+    /**
+     * Marks the build requests that are due on the given star as being processed, so that nobody
+     * else picks them up, and returns them in the order they completed.
+     */
+    private ArrayList<CompletedBuild> claimBuildRequests(int starID) throws Exception {
+        ArrayList<CompletedBuild> builds = new ArrayList<CompletedBuild>();
+        String sql = "UPDATE build_requests SET processing = 1" +
+                    " WHERE star_id = ? AND end_time < ? AND processing = 0" +
+                    " RETURNING id, colony_id, empire_id, existing_building_id, existing_fleet_id," +
+                              " upgrade_id, design_kind, design_id, count, notes, disable_notification," +
+                              " end_time";
+        try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setInt(1, starID);
+            stmt.setDateTime(2, DateTime.now().plusSeconds(10));
+            SqlResult res = stmt.select();
+            while (res.next()) {
+                builds.add(new CompletedBuild(res));
+            }
         }
 
-        sql = "DELETE FROM build_requests WHERE id IN ";
-        for (int i = 0; i < processedIDs.size(); i++) {
-            if (i == 0) {
-                sql += "(";
-            } else {
-                sql += ", ";
+        Collections.sort(builds, new Comparator<CompletedBuild>() {
+            @Override
+            public int compare(CompletedBuild lhs, CompletedBuild rhs) {
+                return lhs.endTime.compareTo(rhs.endTime);
             }
-            sql += processedIDs.get(i);
+        });
+        return builds;
+    }
+
+    private void releaseBuildRequests(ArrayList<CompletedBuild> builds) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (CompletedBuild build : builds) {
+            ids.add(build.id);
+        }
+
+        String sql = "UPDATE build_requests SET processing = 0 WHERE id = ANY(?)";
+        try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setIntArray(1, ids);
+            stmt.update();
+        } catch(Exception e) {
+            log.error("Error releasing build requests!", e);
+        }
+    }
+
+    private void deleteBuildRequests(int starID, ArrayList<CompletedBuild> builds) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (CompletedBuild build : builds) {
+            ids.add(build.id);
         }
-        sql += ")";
+
+        String sql = "DELETE FROM build_requests WHERE id = ANY(?)";
         try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setIntArray(1, ids);
             stmt.update();
+            new StarController().markModified(starID);
         } catch(Exception e) {
             log.error("Error processing build-complete event!", e);
             // TODO: errors?
         }
     }
 
-    private void processBuildRequest(int buildRequestID, Star star, Colony colony, int empireID,
-                                     Integer existingBuildingID, Integer existingFleetID, String upgradeID,
-                                     DesignKind designKind, String designID, float count, String notes,
-                                     boolean disableNotification) throws RequestException {
-        Simulation sim = new Simulation();
+    private void processBuildRequests(Star star, ArrayList<CompletedBuild> builds) throws RequestException {
+        final Simulation sim = new Simulation();
         sim.simulate(star);
 
-        Fleet fleet = null;
-        if (designKind == DesignKind.BUILDING) {
-            processBuildingBuild(star, colony, empireID, existingBuildingID, designID, notes);
-        } else {
-            fleet = processFleetBuild(star, colony, empireID, existingFleetID, upgradeID, designID, count, notes);
+        ArrayList<Fleet> fleets = new ArrayList<Fleet>();
+        final ArrayList<Fleet> newFleets = new ArrayList<Fleet>();
+        ArrayList<Colony> colonies = new ArrayList<Colony>();
+        for (CompletedBuild build : builds) {
+            Colony colony = null;
+            for (BaseColony bc : star.getColonies()) {
+                if (((Colony) bc).getID() == build.colonyID) {
+                    colony = (Colony) bc;
+                }
+            }
+
+            Fleet fleet = null;
+            try {
+                if (build.designKind == DesignKind.BUILDING) {
+                    processBuildingBuild(star, colony, build.empireID, build.existingBuildingID,
+                                         build.designID, build.notes);
+                } else {
+                    fleet = processFleetBuild(star, colony, build.empireID, build.existingFleetID,
+                                              build.upgradeID, build.designID, build.count, build.notes);
+                    if (build.existingFleetID == null) {
+                        newFleets.add(fleet);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error processing build-complete event!", e);
+            }
+            fleets.add(fleet);
+            colonies.add(colony);
         }
 
         sim.simulate(star); // simulate again to re-calculate the end times
-        new StarController().update(star);
-
-        if (!disableNotification) {
-            Messages.SituationReport.Builder sitrep_pb = Messages.SituationReport.newBuilder();
-            sitrep_pb.setRealm(Configuration.i.getRealmName());
-            sitrep_pb.setEmpireKey(Integer.toString(empireID));
-            sitrep_pb.setReportTime(DateTime.now().getMillis() / 1000);
-            sitrep_pb.setStarKey(star.getKey());
-            sitrep_pb.setPlanetIndex(colony.getPlanetIndex());
-            Messages.SituationReport.BuildCompleteRecord.Builder build_complete_pb = Messages.SituationReport.BuildCompleteRecord.newBuilder();
-            build_complete_pb.setBuildKind(Messages.BuildRequest.BUILD_KIND.valueOf(designKind.getValue()));
-            build_complete_pb.setBuildRequestKey(Integer.toString(buildRequestID));
-            build_complete_pb.setDesignId(designID);
-            build_complete_pb.setCount(Math.round(count));
-            sitrep_pb.setBuildCompleteRecord(build_complete_pb);
-            if (star.getCombatReport() != null && fleet != null) {
-                Messages.SituationReport.FleetUnderAttackRecord.Builder fleet_under_attack_pb = Messages.SituationReport.FleetUnderAttackRecord.newBuilder();
-                fleet_under_attack_pb.setCombatReportKey(star.getCombatReport().getKey());
-                fleet_under_attack_pb.setFleetDesignId(fleet.getDesignID());
-                fleet_under_attack_pb.setFleetKey(fleet.getKey());
-                fleet_under_attack_pb.setNumShips(fleet.getNumShips());
-                sitrep_pb.setFleetUnderAttackRecord(fleet_under_attack_pb);
+        star = saveStar(star, sim, new StarController.StarMutator() {
+            @Override
+            public void mutate(Star star) {
+                // the new fleets are already in the fresh copy, but not their notes or the
+                // effects of their arrival.
+                for (Fleet newFleet : newFleets) {
+                    Fleet fleet = (Fleet) star.getFleet(newFleet.getID());
+                    if (fleet != null) {
+                        fleet.setNotes(newFleet.getNotes());
+                        FleetMoveCompleteEvent.fireFleetArrivedEvents(star, fleet);
+                    }
+                }
+                sim.simulate(star);
             }
+        });
+
+        for (int i = 0; i < builds.size(); i++) {
+            if (!builds.get(i).disableNotification) {
+                saveBuildCompleteSitrep(star, colonies.get(i), builds.get(i), fleets.get(i));
+            }
+        }
+    }
 
-            new SituationReportController().saveSituationReport(sitrep_pb.build());
+    private void saveBuildCompleteSitrep(Star star, Colony colony, CompletedBuild build, Fleet fleet)
+            throws RequestException {
+        Messages.SituationReport.Builder sitrep_pb = Messages.SituationReport.newBuilder();
+        sitrep_pb.setRealm(Configuration.i.getRealmName());
+        sitrep_pb.setEmpireKey(Integer.toString(build.empireID));
+        sitrep_pb.setReportTime(DateTime.now().getMillis() / 1000);
+        sitrep_pb.setStarKey(star.getKey());
+        sitrep_pb.setPlanetIndex(colony.getPlanetIndex());
+        Messages.SituationReport.BuildCompleteRecord.Builder build_complete_pb = Messages.SituationReport.BuildCompleteRecord.newBuilder();
+        build_complete_pb.setBuildKind(Messages.BuildRequest.BUILD_KIND.valueOf(build.designKind.getValue()));
+        build_complete_pb.setBuildRequestKey(Integer.toString(build.id));
+        build_complete_pb.setDesignId(build.designID);
+        build_complete_pb.setCount(Math.round(build.count));
+        sitrep_pb.setBuildCompleteRecord(build_complete_pb);
+        if (star.getCombatReport() != null && fleet != null) {
+            Messages.SituationReport.FleetUnderAttackRecord.Builder fleet_under_attack_pb = Messages.SituationReport.FleetUnderAttackRecord.newBuilder();
+            fleet_under_attack_pb.setCombatReportKey(star.getCombatReport().getKey());
+            fleet_under_attack_pb.setFleetDesignId(fleet.getDesignID());
+            fleet_under_attack_pb.setFleetKey(fleet.getKey());
+            fleet_under_attack_pb.setNumShips(fleet.getNumShips());
+            sitrep_pb.setFleetUnderAttackRecord(fleet_under_attack_pb);
         }
+
+        new SituationReportController().saveSituationReport(sitrep_pb.build());
     }
 
     private Fleet processFleetBuild(Star star, Colony colony, int empireID, Integer existingFleetID,
@@ -182,4 +254,35 @@ public class BuildCompleteEvent extends Event {
             new BuildingController().upgradeBuilding(star, colony, existingBuildingID);
         }
     }
+
+    /** A build request that's been claimed for processing. */
+    private static class CompletedBuild {
+        public final int id;
+        public final int colonyID;
+        public final int empireID;
+        public final Integer existingBuildingID;
+        public final Integer existingFleetID;
+        public final String upgradeID;
+        public final DesignKind designKind;
+        public final String designID;
+        public final float count;
+        public final String notes;
+        public final boolean disableNotification;
+        public final DateTime endTime;
+
+        public CompletedBuild(SqlResult res) throws Exception {
+            id = res.getInt(1);
+            colonyID = res.getInt(2);
+            empireID = res.getInt(3);
+            existingBuildingID = res.getInt(4);
+            existingFleetID = res.getInt(5);
+            upgradeID = res.getString(6);
+            designKind = DesignKind.fromNumber(res.getInt(7));
+            designID = res.getString(8);
+            count = res.getFloat(9);
+            notes = res.getString(10);
+            disableNotification = (res.getInt(11) > 0);
+            endTime = res.getDateTime(12);
+        }
+    }
 }
@@ -11,8 +11,8 @@ import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.Configuration;
 import au.com.codeka.warworlds.server.Event;
-import au.com.codeka.warworlds.server.RequestContext;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.SituationReportController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
@@ -26,62 +26,70 @@ public class EmpireStarGoodsReachedZeroEvent extends Event {
     private final Log log = new Log("BuildCompleteEvent");
 
     @Override
-    public String getNextEventTimeSql() {
-        return "SELECT MIN(goods_zero_time) FROM empire_presences";
+    protected DateTime getNextEventTime(Star star) {
+        DateTime next = null;
+        for (BaseEmpirePresence empirePresence : star.getEmpirePresences()) {
+            next = earliest(next, empirePresence.getGoodsZeroTime());
+        }
+        return next;
     }
 
     @Override
-    public void process() {
-        ArrayList<Integer> processedIDs = new ArrayList<Integer>();
-        String sql = "SELECT id, star_id" +
-                    " FROM empire_presences" +
-                    " WHERE goods_zero_time IS NOT NULL AND goods_zero_time < ?";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, DateTime.now().plusSeconds(10));
-            SqlResult res = stmt.select();
-            while (res.next()) {
-                int id = res.getInt(1);
-                int starID = res.getInt(2);
-
-                RequestContext.i.setContext("event: EmpireStarGoodsReachedZero star.id="+starID);
+    protected String getScheduleSql() {
+        return "SELECT star_id, MIN(goods_zero_time) FROM empire_presences" +
+              " WHERE goods_zero_time IS NOT NULL GROUP BY star_id";
+    }
 
-                try {
-                    Star star = new StarController().getStar(starID);
-                    processStar(star);
-                } catch (Exception e) {
-                    log.error("Error processing goods-zero event!", e);
+    @Override
+    protected void processStar(int starID) throws Exception {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+            ArrayList<DateTime> goodsZeroTimes = new ArrayList<DateTime>();
+            String sql = "SELECT id, goods_zero_time FROM empire_presences" +
+                        " WHERE star_id = ? AND goods_zero_time < ?";
+            try (SqlStmt stmt = DB.prepare(sql)) {
+                stmt.setInt(1, starID);
+                stmt.setDateTime(2, DateTime.now().plusSeconds(10));
+                SqlResult res = stmt.select();
+                while (res.next()) {
+                    ids.add(res.getInt(1));
+                    goodsZeroTimes.add(res.getDateTime(2));
                 }
+            }
+            if (ids.isEmpty()) {
+                // we've already processed them
+                return;
+            }
 
-                processedIDs.add(id);
+            Star star = new StarController().getStar(starID);
+            processGoodsReachedZero(star);
+            for (DateTime goodsZeroTime : goodsZeroTimes) {
+                onEventProcessed(goodsZeroTime);
             }
-        } catch(Exception e) {
-            log.error("Error processing goods-zero event!", e);
+        } finally {
+            clearGoodsZeroTimes(starID, ids);
         }
+    }
 
-        if (processedIDs.isEmpty()) {
+    private void clearGoodsZeroTimes(int starID, ArrayList<Integer> ids) {
+        if (ids.isEmpty()) {
             return;
         }
 
-        sql = "UPDATE empire_presences SET goods_zero_time = NULL WHERE id IN ";
-        for (int i = 0; i < processedIDs.size(); i++) {
-            if (i == 0) {
-                sql += "(";
-            } else {
-                sql += ", ";
-            }
-            sql += processedIDs.get(i);
-        }
-        sql += ")";
+        String sql = "UPDATE empire_presences SET goods_zero_time = NULL WHERE id = ANY(?)";
         try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setIntArray(1, ids);
             stmt.update();
+            new StarController().markModified(starID);
         } catch(Exception e) {
             log.error("Error processing empire-star-goods-zero event!", e);
         }
     }
 
-    private void processStar(Star star) throws RequestException {
+    private void processGoodsReachedZero(Star star) throws RequestException {
         Simulation sim = new Simulation();
         sim.simulate(star);
+        star = saveStar(star, sim);
 
         for (BaseEmpirePresence baseEmpire : star.getEmpirePresences()) {
             EmpirePresence empire = (EmpirePresence) baseEmpire;
@@ -105,7 +113,5 @@ public class EmpireStarGoodsReachedZeroEvent extends Event {
                 new SituationReportController().saveSituationReport(sitrep_pb.build());
             }
         }
-
-        new StarController().update(star);
     }
 }
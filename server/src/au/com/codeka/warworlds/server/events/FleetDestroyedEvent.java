@@ -1,5 +1,6 @@
 package au.com.codeka.warworlds.server.events;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.joda.time.DateTime;
@@ -10,7 +11,7 @@ import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.Configuration;
 import au.com.codeka.warworlds.server.Event;
-import au.com.codeka.warworlds.server.RequestContext;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.SituationReportController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
@@ -24,42 +25,58 @@ public class FleetDestroyedEvent extends Event {
     private final Log log = new Log("FleetDestroyedEvent");
 
     @Override
-    protected String getNextEventTimeSql() {
-        return "SELECT MIN(time_destroyed) FROM fleets";
+    protected DateTime getNextEventTime(Star star) {
+        DateTime next = null;
+        for (BaseFleet fleet : star.getFleets()) {
+            next = earliest(next, fleet.getTimeDestroyed());
+        }
+        return next;
     }
 
     @Override
-    public void process() {
-        String sql = "SELECT id, star_id FROM fleets WHERE time_destroyed < ?";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, DateTime.now().plusSeconds(10)); // anything in the next 10 seconds is a candidate
-            SqlResult res = stmt.select();
-            while (res.next()) {
-                int fleetID = res.getInt(1);
-                Star star = new StarController().getStar(res.getInt(2));
-
-                RequestContext.i.setContext("event: FleetDestroyedEvent fleet.id="+fleetID);
+    protected String getScheduleSql() {
+        return "SELECT star_id, MIN(time_destroyed) FROM fleets" +
+              " WHERE time_destroyed IS NOT NULL GROUP BY star_id";
+    }
 
-                try {
-                    processFleetDestroyed(star, fleetID);
-                } catch (Exception e) {
-                    log.error("Error processing fleet-move event!", e);
+    @Override
+    protected void processStar(int starID) throws Exception {
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+            ArrayList<Integer> fleetIDs = new ArrayList<Integer>();
+            ArrayList<DateTime> timesDestroyed = new ArrayList<DateTime>();
+            String sql = "SELECT id, time_destroyed FROM fleets WHERE star_id = ? AND time_destroyed < ?";
+            try (SqlStmt stmt = DB.prepare(sql)) {
+                stmt.setInt(1, starID);
+                stmt.setDateTime(2, DateTime.now().plusSeconds(10)); // anything in the next 10 seconds is a candidate
+                SqlResult res = stmt.select();
+                while (res.next()) {
+                    fleetIDs.add(res.getInt(1));
+                    timesDestroyed.add(res.getDateTime(2));
                 }
             }
-        } catch(Exception e) {
-            log.error("Error processing fleet-move event!", e);
+            if (fleetIDs.isEmpty()) {
+                // they've already been processed
+                return;
+            }
+
+            Star star = new StarController().getStar(starID);
+            for (int i = 0; i < fleetIDs.size(); i++) {
+                star = processFleetDestroyed(star, fleetIDs.get(i));
+                onEventProcessed(timesDestroyed.get(i));
+            }
         }
     }
 
-    private void processFleetDestroyed(Star star, int fleetID) throws Exception {
+    /** Returns the star, as it was saved. */
+    private Star processFleetDestroyed(Star star, int fleetID) throws Exception {
         Fleet fleet = (Fleet) star.findFleet(Integer.toString(fleetID));
         if (fleet == null) {
-            return;
+            return star;
         }
 
         Simulation sim = new Simulation();
         sim.simulate(star);
-        new StarController().update(star);
+        star = saveStar(star, sim);
 
         // if the fleet is no longer in the star, then it was destroyed!
         boolean fleetWasDestroyed = true;
@@ -134,5 +151,7 @@ public class FleetDestroyedEvent extends Event {
                 }
             }
         }
+
+        return star;
     }
 }
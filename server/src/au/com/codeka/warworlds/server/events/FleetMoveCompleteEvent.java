@@ -1,6 +1,8 @@
 package au.com.codeka.warworlds.server.events;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.joda.time.DateTime;
 
@@ -8,15 +10,15 @@ import au.com.codeka.common.Log;
 import au.com.codeka.common.model.BaseCombatReport;
 import au.com.codeka.common.model.BaseFleet;
 import au.com.codeka.common.model.BaseFleetUpgrade;
-import au.com.codeka.common.model.BaseStar;
 import au.com.codeka.common.model.ShipDesign;
 import au.com.codeka.common.model.ShipEffect;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.Configuration;
 import au.com.codeka.warworlds.server.Event;
-import au.com.codeka.warworlds.server.RequestContext;
+import au.com.codeka.warworlds.server.EventProcessor;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.SituationReportController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
@@ -31,104 +33,186 @@ import au.com.codeka.warworlds.server.model.Star;
 public class FleetMoveCompleteEvent extends Event {
     private final static Log log = new Log("FleetMoveCompleteEvent");
 
+    /**
+     * Arrivals are scheduled (and processed) on the star the fleet is moving to, so that all of
+     * the fleets arriving at a star are processed together, wherever they came from. But moving
+     * fleets stay on their source star until they arrive, so that's where we find out about them.
+     */
     @Override
-    public String getNextEventTimeSql() {
-        return "SELECT MIN(eta) FROM fleets";
+    public void schedule(Star star, EventProcessor.Schedule schedule) {
+        for (BaseFleet baseFleet : star.getFleets()) {
+            Fleet fleet = (Fleet) baseFleet;
+            if (fleet.getEta() != null && fleet.getDestinationStarID() != null) {
+                schedule.bringForward(fleet.getDestinationStarID(), fleet.getEta());
+            }
+        }
+    }
+
+    @Override
+    protected String getScheduleSql() {
+        return "SELECT target_star_id, MIN(eta) FROM fleets WHERE eta IS NOT NULL" +
+              " GROUP BY target_star_id";
     }
 
+    /**
+     * Processes every fleet that's due to arrive at the given star. However many fleets there are,
+     * the destination star and each of the source stars are only loaded, simulated and saved once.
+     */
     @Override
-    public void process() {
-        String sql = "SELECT id, star_id, target_star_id FROM fleets WHERE eta < ?";
+    protected void processStar(int destStarID) throws Exception {
+        ArrayList<Integer> fleetIDs = new ArrayList<Integer>();
+        ArrayList<DateTime> etas = new ArrayList<DateTime>();
+        ArrayList<Integer> starIDs = new ArrayList<Integer>();
+        starIDs.add(destStarID);
+
+        String sql = "SELECT id, star_id, eta FROM fleets WHERE target_star_id = ? AND eta < ? ORDER BY eta";
         try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, DateTime.now().plusSeconds(10)); // anything in the next 10 seconds is a candidate
+            stmt.setInt(1, destStarID);
+            stmt.setDateTime(2, DateTime.now().plusSeconds(10));
             SqlResult res = stmt.select();
             while (res.next()) {
-                int fleetID = res.getInt(1);
+                fleetIDs.add(res.getInt(1));
+                etas.add(res.getDateTime(3));
                 int srcStarID = res.getInt(2);
-                int destStarID = res.getInt(3);
-
-                RequestContext.i.setContext("event: FleetMoveCompleteEvent fleet.id="+fleetID);
-
-                Star srcStar = null;
-                Star destStar = null;
-                for (BaseStar baseStar : new StarController().getStars(new int[] {srcStarID, destStarID})) {
-                    Star star = (Star) baseStar;
-                    if (star.getID() == srcStarID) {
-                        srcStar = star;
-                    }
-                    if (star.getID() == destStarID) {
-                        destStar = star;
-                    }
+                if (!starIDs.contains(srcStarID)) {
+                    starIDs.add(srcStarID);
                 }
+            }
+        }
+        if (fleetIDs.isEmpty()) {
+            // they've already been processed
+            return;
+        }
 
-                try {
-                    processFleet(fleetID, srcStar, destStar, true);
-                } catch (Exception e) {
-                    log.error("Error processing fleet-move event!", e);
+        int[] starIDArray = new int[starIDs.size()];
+        for (int i = 0; i < starIDs.size(); i++) {
+            starIDArray[i] = starIDs.get(i);
+        }
+        try (StarLocks.Lock lock = StarLocks.i.lock(starIDArray)) {
+            Star destStar = null;
+            ArrayList<Star> srcStars = new ArrayList<Star>();
+            for (Star star : new StarController().getStars(starIDArray)) {
+                if (star.getID() == destStarID) {
+                    destStar = star;
+                } else {
+                    srcStars.add(star);
                 }
             }
-        } catch(Exception e) {
-            log.error("Error processing fleet-move event!", e);
+
+            processFleets(fleetIDs, srcStars, destStar, true);
+        }
+
+        for (DateTime eta : etas) {
+            onEventProcessed(eta);
         }
     }
 
     public static void processFleet(int fleetID, Star srcStar, Star destStar,
             boolean addSitrep) throws RequestException {
-        Simulation sim = new Simulation();
-        sim.simulate(srcStar);
-        sim.simulate(destStar);
+        processFleets(Arrays.asList(fleetID), Arrays.asList(srcStar), destStar, addSitrep);
+    }
 
-        // remove the fleet from the source star and add it to the dest star
-        Fleet fleet = null;
-        for (BaseFleet baseFleet : srcStar.getFleets()) {
-            fleet = (Fleet) baseFleet;
-            if (fleet.getID() == fleetID) {
-                srcStar.getFleets().remove(fleet);
-                destStar.getFleets().add(fleet);
+    /**
+     * Moves the given fleets (in order) from whichever of the source stars they're on to the
+     * destination star, then simulates and saves all of the stars once.
+     *
+     * The destination star is saved first, because that's what moves the fleets in the database.
+     * Once it's saved, a source star that somebody else has saved in the meantime only needs to
+     * be simulated and saved again (see \c saveStar).
+     */
+    public static void processFleets(List<Integer> fleetIDs, List<Star> srcStars, Star destStar,
+            boolean addSitrep) throws RequestException {
+        final Simulation sim = new Simulation();
+        for (Star srcStar : srcStars) {
+            sim.simulate(srcStar);
+        }
+        sim.simulate(destStar);
 
-                fleet.idle(DateTime.now());
-                break;
+        // remove the fleets from the source stars and add them to the dest star
+        final ArrayList<Fleet> arrivedFleets = new ArrayList<Fleet>();
+        for (int fleetID : fleetIDs) {
+            Fleet fleet = removeFleet(srcStars, fleetID);
+            if (fleet == null) {
+                // it's already arrived (or been destroyed)
+                continue;
             }
+            fleet.idle(DateTime.now());
+            arrivedFleets.add(fleet);
         }
-        if (fleet == null) {
+        if (arrivedFleets.isEmpty()) {
             return;
         }
+        addArrivedFleets(destStar, arrivedFleets, sim);
 
-        // fire off the effects to let them know we've arrived
-        fireFleetArrivedEvents(destStar, fleet);
-
-        // simulate the destination star again, in case there's any combat
-        sim.simulate(destStar);
-
-        new StarController().update(srcStar);
-        new StarController().update(destStar);
+        destStar = saveStar(destStar, sim, new StarController.StarMutator() {
+            @Override
+            public void mutate(Star star) {
+                addArrivedFleets(star, arrivedFleets, sim);
+            }
+        });
+        for (Star srcStar : srcStars) {
+            saveStar(srcStar, sim);
+        }
 
         if (addSitrep) {
-            Messages.SituationReport.Builder sitrep_pb = Messages.SituationReport.newBuilder();
-            sitrep_pb.setRealm(Configuration.i.getRealmName());
-            sitrep_pb.setEmpireKey(fleet.getEmpireKey());
-            sitrep_pb.setReportTime(DateTime.now().getMillis() / 1000);
-            sitrep_pb.setStarKey(destStar.getKey());
-            sitrep_pb.setPlanetIndex(-1);
-            Messages.SituationReport.MoveCompleteRecord.Builder move_complete_pb = Messages.SituationReport.MoveCompleteRecord.newBuilder();
-            move_complete_pb.setFleetKey(fleet.getKey());
-            move_complete_pb.setFleetDesignId(fleet.getDesignID());
-            move_complete_pb.setNumShips(fleet.getNumShips());
-            for (ScoutReport scoutReport : destStar.getScoutReports()) {
-                move_complete_pb.setScoutReportKey(scoutReport.getKey());
+            for (Fleet fleet : arrivedFleets) {
+                saveMoveCompleteSitrep(fleet, destStar);
             }
-            sitrep_pb.setMoveCompleteRecord(move_complete_pb);
-            if (destStar.getCombatReport() != null && isFleetInCombatReport(fleet.getKey(), (CombatReport) destStar.getCombatReport())) {
-                Messages.SituationReport.FleetUnderAttackRecord.Builder fleet_under_attack_pb = Messages.SituationReport.FleetUnderAttackRecord.newBuilder();
-                fleet_under_attack_pb.setCombatReportKey(destStar.getCombatReport().getKey());
-                fleet_under_attack_pb.setFleetDesignId(fleet.getDesignID());
-                fleet_under_attack_pb.setFleetKey(fleet.getKey());
-                fleet_under_attack_pb.setNumShips(fleet.getNumShips());
-                sitrep_pb.setFleetUnderAttackRecord(fleet_under_attack_pb);
+        }
+    }
+
+    /**
+     * Adds the given fleets to the given star, fires off their arrival effects and simulates the
+     * star again, in case there's any combat.
+     */
+    private static void addArrivedFleets(Star star, List<Fleet> fleets, Simulation sim) {
+        for (Fleet fleet : fleets) {
+            star.getFleets().add(fleet);
+
+            // fire off the effects to let them know we've arrived
+            fireFleetArrivedEvents(star, fleet);
+        }
+        sim.simulate(star);
+    }
+
+    private static Fleet removeFleet(List<Star> stars, int fleetID) {
+        for (Star star : stars) {
+            for (BaseFleet baseFleet : star.getFleets()) {
+                Fleet fleet = (Fleet) baseFleet;
+                if (fleet.getID() == fleetID) {
+                    star.getFleets().remove(fleet);
+                    return fleet;
+                }
             }
-    
-            new SituationReportController().saveSituationReport(sitrep_pb.build());
         }
+        return null;
+    }
+
+    private static void saveMoveCompleteSitrep(Fleet fleet, Star destStar) throws RequestException {
+        Messages.SituationReport.Builder sitrep_pb = Messages.SituationReport.newBuilder();
+        sitrep_pb.setRealm(Configuration.i.getRealmName());
+        sitrep_pb.setEmpireKey(fleet.getEmpireKey());
+        sitrep_pb.setReportTime(DateTime.now().getMillis() / 1000);
+        sitrep_pb.setStarKey(destStar.getKey());
+        sitrep_pb.setPlanetIndex(-1);
+        Messages.SituationReport.MoveCompleteRecord.Builder move_complete_pb = Messages.SituationReport.MoveCompleteRecord.newBuilder();
+        move_complete_pb.setFleetKey(fleet.getKey());
+        move_complete_pb.setFleetDesignId(fleet.getDesignID());
+        move_complete_pb.setNumShips(fleet.getNumShips());
+        for (ScoutReport scoutReport : destStar.getScoutReports()) {
+            move_complete_pb.setScoutReportKey(scoutReport.getKey());
+        }
+        sitrep_pb.setMoveCompleteRecord(move_complete_pb);
+        if (destStar.getCombatReport() != null && isFleetInCombatReport(fleet.getKey(), (CombatReport) destStar.getCombatReport())) {
+            Messages.SituationReport.FleetUnderAttackRecord.Builder fleet_under_attack_pb = Messages.SituationReport.FleetUnderAttackRecord.newBuilder();
+            fleet_under_attack_pb.setCombatReportKey(destStar.getCombatReport().getKey());
+            fleet_under_attack_pb.setFleetDesignId(fleet.getDesignID());
+            fleet_under_attack_pb.setFleetKey(fleet.getKey());
+            fleet_under_attack_pb.setNumShips(fleet.getNumShips());
+            sitrep_pb.setFleetUnderAttackRecord(fleet_under_attack_pb);
+        }
+
+        new SituationReportController().saveSituationReport(sitrep_pb.build());
     }
 
     private static boolean isFleetInCombatReport(String fleetKey, CombatReport combatReport) {
@@ -2,8 +2,10 @@ package au.com.codeka.warworlds.server.handlers;
 
 import au.com.codeka.common.model.BaseBuildRequest;
 import au.com.codeka.common.model.Simulation;
+import au.com.codeka.warworlds.server.EventProcessor;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.BuildQueueController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.events.BuildCompleteEvent;
@@ -13,46 +15,58 @@ import au.com.codeka.warworlds.server.model.Star;
 public class BuildAccelerateHandler extends RequestHandler {
     @Override
     protected void post() throws RequestException {
-        Simulation sim = new Simulation();
-        Star star = new StarController().getStar(Integer.parseInt(getUrlParameter("starid")));
-        sim.simulate(star);
-
-        int buildRequestID = Integer.parseInt(getUrlParameter("buildid"));
-        int myEmpireID = getSession().getEmpireID();
-        float accelerateAmount = 0.5f;
-        if (getRequest().getParameter("amount") != null) {
-            accelerateAmount = Float.parseFloat(getRequest().getParameter("amount"));
-        }
+        int starID = Integer.parseInt(getUrlParameter("starid"));
+        boolean buildComplete = false;
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+            Simulation sim = new Simulation();
+            Star star = new StarController().getStar(starID);
+            sim.simulate(star);
 
-        if (accelerateAmount < 0.5f) {
-            accelerateAmount = 0.5f;
-        } else if (accelerateAmount > 1.0f) {
-            accelerateAmount = 1.0f;
-        }
+            int buildRequestID = Integer.parseInt(getUrlParameter("buildid"));
+            int myEmpireID = getSession().getEmpireID();
+            float accelerateAmount = 0.5f;
+            if (getRequest().getParameter("amount") != null) {
+                accelerateAmount = Float.parseFloat(getRequest().getParameter("amount"));
+            }
 
-        for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
-            BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
-            if (buildRequest.getID() == buildRequestID) {
-                if (buildRequest.getEmpireID() != myEmpireID) {
-                    throw new RequestException(403);
-                }
+            if (accelerateAmount < 0.5f) {
+                accelerateAmount = 0.5f;
+            } else if (accelerateAmount > 1.0f) {
+                accelerateAmount = 1.0f;
+            }
 
-                if (buildRequest.getCount() < 1) {
-                    throw new RequestException(500, "Shouldn't be able to see " + buildRequest.getCount() + " ships?");
-                }
+            for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
+                BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
+                if (buildRequest.getID() == buildRequestID) {
+                    if (buildRequest.getEmpireID() != myEmpireID) {
+                        throw new RequestException(403);
+                    }
+
+                    if (buildRequest.getCount() < 1) {
+                        throw new RequestException(500, "Shouldn't be able to see " + buildRequest.getCount() + " ships?");
+                    }
 
-                if (new BuildQueueController().accelerate(star, buildRequest, accelerateAmount)) {
-                    // if it's complete, trigger the build complete event now, without going through
-                    // the event processor (saves a bit of time)
-                    new BuildQueueController().saveBuildRequest(buildRequest);
-                    new BuildCompleteEvent().process();
-                } else {
-                    // if it's not actually complete yet, just simulate the star again
-                    sim.simulate(star);
-                    new StarController().update(star);
+                    if (new BuildQueueController().accelerate(star, buildRequest, accelerateAmount)) {
+                        new BuildQueueController().saveBuildRequest(buildRequest);
+                        // tell whichever node owns the star that the build is due now, in case
+                        // we can't finish it ourselves below.
+                        EventProcessor.i.onStarUpdated(star);
+                        buildComplete = true;
+                    } else {
+                        // if it's not actually complete yet, just simulate the star again
+                        sim.simulate(star);
+                        new StarController().update(star);
+                    }
+                    break;
                 }
-                return;
             }
         }
+
+        if (buildComplete) {
+            // if it's complete, process the build complete event now, so the build is finished
+            // by the time we respond. It locks the star itself, and we do this even if another
+            // node owns the star: claiming the build requests makes sure only one of us does it.
+            new BuildCompleteEvent().processNow(starID);
+        }
     }
 }
@@ -7,6 +7,7 @@ import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.BuildQueueController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
@@ -27,8 +28,10 @@ public class BuildQueueHandler extends RequestHandler {
     }
 
     private void tryPost(Messages.BuildRequest build_request_pb) throws Exception {
-        try (Transaction t = DB.beginTransaction()) {
-            Star star = new StarController(t).getStar(Integer.parseInt(build_request_pb.getStarKey()));
+        int starID = Integer.parseInt(build_request_pb.getStarKey());
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID);
+                Transaction t = DB.beginTransaction()) {
+            Star star = new StarController(t).getStar(starID);
             if (star == null) {
                 throw new RequestException(404);
             }
@@ -53,7 +56,7 @@ public class BuildQueueHandler extends RequestHandler {
             buildRequest.setPlanetIndex(colony.getPlanetIndex());
             buildRequest.setStartTime(DateTime.now());
             buildRequest.setEndTime(DateTime.now().plusMinutes(5));
-            new BuildQueueController(t).build(buildRequest);
+            new BuildQueueController(t).build(star, buildRequest);
 
             // add the build request to the star and simulate again
             star.getBuildRequests().add(buildRequest);
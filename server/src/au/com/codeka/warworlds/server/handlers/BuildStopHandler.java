@@ -4,6 +4,7 @@ import au.com.codeka.common.model.BaseBuildRequest;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.BuildQueueController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.model.BuildRequest;
@@ -12,23 +13,26 @@ import au.com.codeka.warworlds.server.model.Star;
 public class BuildStopHandler extends RequestHandler {
     @Override
     protected void post() throws RequestException {
-        Simulation sim = new Simulation();
-        Star star = new StarController().getStar(Integer.parseInt(getUrlParameter("starid")));
-        sim.simulate(star);
+        int starID = Integer.parseInt(getUrlParameter("starid"));
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+            Simulation sim = new Simulation();
+            Star star = new StarController().getStar(starID);
+            sim.simulate(star);
 
-        int buildRequestID = Integer.parseInt(getUrlParameter("buildid"));
-        int myEmpireID = getSession().getEmpireID();
+            int buildRequestID = Integer.parseInt(getUrlParameter("buildid"));
+            int myEmpireID = getSession().getEmpireID();
 
-        for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
-            BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
-            if (buildRequest.getID() == buildRequestID) {
-                if (buildRequest.getEmpireID() != myEmpireID) {
-                    throw new RequestException(403);
-                }
+            for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
+                BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
+                if (buildRequest.getID() == buildRequestID) {
+                    if (buildRequest.getEmpireID() != myEmpireID) {
+                        throw new RequestException(403);
+                    }
 
-                new BuildQueueController().stop(star, buildRequest);
-                new StarController().update(star);
-                break;
+                    new BuildQueueController().stop(star, buildRequest);
+                    new StarController().update(star);
+                    break;
+                }
             }
         }
     }
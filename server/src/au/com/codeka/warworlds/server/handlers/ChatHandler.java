@@ -126,4 +126,9 @@ public class ChatHandler extends RequestHandler {
         msg.toProtocolBuffer(chat_msg_builder, true);
         setResponseBody(chat_msg_builder.build());
     }
+
+    @Override
+    protected boolean canReadFromReplica() {
+        return true;
+    }
 }
@@ -6,6 +6,7 @@ import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.ColonyController;
 import au.com.codeka.warworlds.server.ctrl.EmpireController;
 import au.com.codeka.warworlds.server.ctrl.FleetController;
@@ -26,9 +27,11 @@ public class ColoniesHandler extends RequestHandler {
         Messages.ColonizeRequest colonize_request_pb = getRequestBody(Messages.ColonizeRequest.class);
         Empire myEmpire = new EmpireController().getEmpire(getSession().getEmpireID());
 
-        try (Transaction t = DB.beginTransaction()) {
+        int starID = Integer.parseInt(getUrlParameter("starid"));
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID);
+                Transaction t = DB.beginTransaction()) {
             // fetch the star, simulate & update it
-            Star star = new StarController(t).getStar(Integer.parseInt(getUrlParameter("starid")));
+            Star star = new StarController(t).getStar(starID);
             Simulation sim = new Simulation();
             sim.simulate(star);
             new StarController(t).update(star);
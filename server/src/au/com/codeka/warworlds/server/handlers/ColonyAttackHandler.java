@@ -5,6 +5,7 @@ import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.ColonyController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
@@ -18,7 +19,8 @@ public class ColonyAttackHandler extends RequestHandler {
         int colonyID = Integer.parseInt(getUrlParameter("colonyid"));
         int starID = Integer.parseInt(getUrlParameter("starid"));
 
-        try (Transaction t = DB.beginTransaction()) {
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID);
+                Transaction t = DB.beginTransaction()) {
             Star star = new StarController(t).getStar(starID);
 
             Colony colony = null;
@@ -18,4 +18,9 @@ public class CombatReportHandler extends RequestHandler {
             throw new RequestException(404);
         }
     }
+
+    @Override
+    protected boolean canReadFromReplica() {
+        return true;
+    }
 }
@@ -123,4 +123,9 @@ public class EmpiresSearchHandler extends RequestHandler {
         }
         setResponseBody(pb.build());
     }
+
+    @Override
+    protected boolean canReadFromReplica() {
+        return true;
+    }
 }
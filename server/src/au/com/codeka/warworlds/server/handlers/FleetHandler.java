@@ -5,6 +5,7 @@ import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.Transaction;
@@ -29,9 +30,11 @@ public class FleetHandler extends RequestHandler {
             throw new RequestException(404, "No access to this fleet allowed.");
         }
 
-        try (Transaction t = DB.beginTransaction()) {
+        int starID = Integer.parseInt(getUrlParameter("starid"));
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID);
+                Transaction t = DB.beginTransaction()) {
             Simulation sim = new Simulation();
-            Star star = new StarController(t).getStar(Integer.parseInt(getUrlParameter("starid")));
+            Star star = new StarController(t).getStar(starID);
             sim.simulate(star);
 
             int fleetID = Integer.parseInt(getUrlParameter("fleetid"));
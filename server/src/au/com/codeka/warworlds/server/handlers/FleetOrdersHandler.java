@@ -17,6 +17,7 @@ import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.EventProcessor;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.EmpireController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
@@ -37,9 +38,11 @@ public class FleetOrdersHandler extends RequestHandler {
     protected void post() throws RequestException {
         Messages.FleetOrder fleet_order_pb = getRequestBody(Messages.FleetOrder.class);
 
-        try (Transaction t = DB.beginTransaction()) {
+        int starID = Integer.parseInt(getUrlParameter("starid"));
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID);
+                Transaction t = DB.beginTransaction()) {
             Simulation sim = new Simulation();
-            Star star = new StarController(t).getStar(Integer.parseInt(getUrlParameter("starid")));
+            Star star = new StarController(t).getStar(starID);
             sim.simulate(star);
 
             int fleetID = Integer.parseInt(getUrlParameter("fleetid"));
@@ -132,9 +135,13 @@ public class FleetOrdersHandler extends RequestHandler {
                     "Cannot enter wormhole, tuning is still in progress.");
         }
 
-        // OK, we're good to go!
-        Star destStar = new StarController().getStar(wormholeExtra.getDestWormholeID());
-        FleetMoveCompleteEvent.processFleet(fleet.getID(), star, destStar, false);
+        // OK, we're good to go! We already have the source star locked, so this is taking the
+        // locks out of order, but StarLocks will time out rather than deadlock.
+        int destStarID = wormholeExtra.getDestWormholeID();
+        try (StarLocks.Lock lock = StarLocks.i.lock(destStarID)) {
+            Star destStar = new StarController().getStar(destStarID);
+            FleetMoveCompleteEvent.processFleet(fleet.getID(), star, destStar, false);
+        }
     }
 
     private void orderFleetMerge(Transaction t, Star star, Fleet fleet,
@@ -213,6 +220,7 @@ public class FleetOrdersHandler extends RequestHandler {
                 }
 
                 star.getFleets().remove(otherFleet);
+                new StarController(t).markModified(star);
             }
         }
     }
@@ -53,4 +53,9 @@ public class RankingHistoryHandler extends RequestHandler {
             throw new RequestException(e);
         }
     }
+
+    @Override
+    protected boolean canReadFromReplica() {
+        return true;
+    }
 }
@@ -101,4 +101,9 @@ public class SectorsHandler extends RequestHandler {
         }
         setResponseBody(sectors_pb.build());
     }
+
+    @Override
+    protected boolean canReadFromReplica() {
+        return true;
+    }
 }
@@ -69,4 +69,9 @@ public class SitReportsHandler extends RequestHandler {
         sitreps_pb.setCursor(cursor);
         setResponseBody(sitreps_pb.build());
     }
+
+    @Override
+    protected boolean canReadFromReplica() {
+        return true;
+    }
 }
@@ -9,8 +9,6 @@ import au.com.codeka.warworlds.server.ctrl.AllianceController;
 import au.com.codeka.warworlds.server.ctrl.BuildingController;
 import au.com.codeka.warworlds.server.ctrl.PurchaseController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
-import au.com.codeka.warworlds.server.data.DB;
-import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.model.BuildingPosition;
 import au.com.codeka.warworlds.server.model.Star;
 
@@ -67,21 +65,19 @@ public class StarHandler extends RequestHandler {
             }
         }
 
-        String sql = "UPDATE stars SET name = ? WHERE id = ?";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setString(1, star_rename_request_pb.getNewName().trim());
-            stmt.setInt(2, starID);
-            stmt.update();
-        } catch(Exception e) {
-            throw new RequestException(e);
-        }
+        final String newName = star_rename_request_pb.getNewName().trim();
+        Star star = new StarController().modify(starID, new StarController.StarMutator() {
+            @Override
+            public void mutate(Star star) {
+                star.setName(newName);
+            }
+        });
 
         if (star_rename_request_pb.hasPurchaseInfo()) {
             new PurchaseController().addPurchase(getSession().getEmpireID(), star_rename_request_pb.getPurchaseInfo(),
                     star_rename_request_pb);
         }
 
-        Star star = new StarController().getStar(starID);
         Messages.Star.Builder star_pb = Messages.Star.newBuilder();
         star.toProtocolBuffer(star_pb);
         setResponseBody(star_pb.build());
@@ -56,11 +56,15 @@ public class StarSimulateHandler extends RequestHandler {
             }
         });
 
-        Star star = new StarController().getStar(starID);
-        sim.simulate(star);
-
         if (update) {
-            new StarController().update(star);
+            new StarController().modify(starID, sim, new StarController.StarMutator() {
+                @Override
+                public void mutate(Star star) {
+                }
+            });
+        } else {
+            Star star = new StarController().getStar(starID);
+            sim.simulate(star);
         }
     }
 }
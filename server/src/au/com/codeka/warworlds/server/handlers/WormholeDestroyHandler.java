@@ -1,8 +1,11 @@
 package au.com.codeka.warworlds.server.handlers;
 
+import java.util.Arrays;
+
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.EmpireController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.ctrl.WormholeController;
@@ -14,14 +17,28 @@ public class WormholeDestroyHandler extends RequestHandler {
   @Override
   protected void post() throws RequestException {
     int starID = Integer.parseInt(getUrlParameter("starid"));
-    Star wormhole = new StarController().getStar(starID);
-    int myEmpireID = getSession().getEmpireID();
-    if (!new WormholeController().isInRangeOfWormholeDistruptor(myEmpireID, wormhole)) {
-      throw new RequestException(400, Messages.GenericError.ErrorCode.NoWormholeDisruptorInRange,
-          "You don't have any wormhole disruptors in range of this wormhole.");
-    }
-
     Empire empire = new EmpireController().getEmpire(getSession().getEmpireID());
-    new WormholeController().destroyWormhole(empire, wormhole);
+    WormholeController wormholeController = new WormholeController();
+
+    while (true) {
+      int[] starIDs = wormholeController.getStarsAffectedByDestroy(empire, starID);
+      try (StarLocks.Lock lock = StarLocks.i.lock(starIDs)) {
+        if (!Arrays.equals(starIDs, wormholeController.getStarsAffectedByDestroy(empire, starID))) {
+          // something started heading for the wormhole (or was tuned to it) while we were
+          // waiting for the locks, so we need to lock that as well.
+          continue;
+        }
+
+        Star wormhole = new StarController().getStar(starID);
+        if (!wormholeController.isInRangeOfWormholeDistruptor(empire.getID(), wormhole)) {
+          throw new RequestException(400,
+              Messages.GenericError.ErrorCode.NoWormholeDisruptorInRange,
+              "You don't have any wormhole disruptors in range of this wormhole.");
+        }
+
+        wormholeController.destroyWormhole(empire, wormhole);
+        return;
+      }
+    }
   }
 }
@@ -3,6 +3,7 @@ package au.com.codeka.warworlds.server.handlers;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.ctrl.WormholeController;
 import au.com.codeka.warworlds.server.model.Star;
@@ -12,13 +13,15 @@ public class WormholeTakeOverHandler extends RequestHandler {
   @Override
   protected void post() throws RequestException {
     int starID = Integer.parseInt(getUrlParameter("starid"));
-    Star wormhole = new StarController().getStar(starID);
-    int myEmpireID = getSession().getEmpireID();
-    if (!new WormholeController().isInRangeOfWormholeDistruptor(myEmpireID, wormhole)) {
-      throw new RequestException(400, Messages.GenericError.ErrorCode.NoWormholeDisruptorInRange,
-          "You don't have any wormhole disruptors in range of this wormhole.");
-    }
+    try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+      Star wormhole = new StarController().getStar(starID);
+      int myEmpireID = getSession().getEmpireID();
+      if (!new WormholeController().isInRangeOfWormholeDistruptor(myEmpireID, wormhole)) {
+        throw new RequestException(400, Messages.GenericError.ErrorCode.NoWormholeDisruptorInRange,
+            "You don't have any wormhole disruptors in range of this wormhole.");
+      }
 
-    new WormholeController().takeOverWormhole(myEmpireID, wormhole);
+      new WormholeController().takeOverWormhole(myEmpireID, wormhole);
+    }
   }
 }
@@ -3,6 +3,7 @@ package au.com.codeka.warworlds.server.handlers;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.StarLocks;
 import au.com.codeka.warworlds.server.ctrl.AllianceController;
 import au.com.codeka.warworlds.server.ctrl.EmpireController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
@@ -16,44 +17,46 @@ public class WormholeTuneHandler extends RequestHandler {
     protected void post() throws RequestException {
         int starID = Integer.parseInt(getUrlParameter("starid"));
 
-        Star srcWormhole = new StarController().getStar(starID);
-        if (srcWormhole.getStarType().getType() != Star.Type.Wormhole) {
-            throw new RequestException(404);
-        }
+        try (StarLocks.Lock lock = StarLocks.i.lock(starID)) {
+            Star srcWormhole = new StarController().getStar(starID);
+            if (srcWormhole.getStarType().getType() != Star.Type.Wormhole) {
+                throw new RequestException(404);
+            }
 
-        Messages.WormholeTuneRequest pb = getRequestBody(Messages.WormholeTuneRequest.class);
-        if (pb.getSrcStarId() != starID) {
-            throw new RequestException(404);
-        }
+            Messages.WormholeTuneRequest pb = getRequestBody(Messages.WormholeTuneRequest.class);
+            if (pb.getSrcStarId() != starID) {
+                throw new RequestException(404);
+            }
 
-        Star destWormhole = new StarController().getStar(pb.getDestStarId());
-        if (destWormhole.getStarType().getType() != Star.Type.Wormhole) {
-            throw new RequestException(400);
-        }
+            Star destWormhole = new StarController().getStar(pb.getDestStarId());
+            if (destWormhole.getStarType().getType() != Star.Type.Wormhole) {
+                throw new RequestException(400);
+            }
 
-        Star.WormholeExtra srcWormholeExtra = srcWormhole.getWormholeExtra();
-        Star.WormholeExtra destWormholeExtra = destWormhole.getWormholeExtra();
+            Star.WormholeExtra srcWormholeExtra = srcWormhole.getWormholeExtra();
+            Star.WormholeExtra destWormholeExtra = destWormhole.getWormholeExtra();
 
-        Empire empire = new EmpireController().getEmpire(getSession().getEmpireID());
-        if (srcWormholeExtra.getEmpireID() != empire.getID()) {
-            Empire ownerEmpire = new EmpireController().getEmpire(srcWormholeExtra.getEmpireID());
-            if (!new AllianceController().isSameAlliance(ownerEmpire, empire)) {
-                throw new RequestException(400, "You do not have control of this wormhole and cannot tune it.");
+            Empire empire = new EmpireController().getEmpire(getSession().getEmpireID());
+            if (srcWormholeExtra.getEmpireID() != empire.getID()) {
+                Empire ownerEmpire = new EmpireController().getEmpire(srcWormholeExtra.getEmpireID());
+                if (!new AllianceController().isSameAlliance(ownerEmpire, empire)) {
+                    throw new RequestException(400, "You do not have control of this wormhole and cannot tune it.");
+                }
             }
-        }
 
-        if (destWormholeExtra.getEmpireID() != empire.getID()) {
-            Empire ownerEmpire = new EmpireController().getEmpire(destWormholeExtra.getEmpireID());
-            if (!new AllianceController().isSameAlliance(ownerEmpire, empire)) {
-                throw new RequestException(400, "You do not have control of the destination wormhole and cannot tune it.");
+            if (destWormholeExtra.getEmpireID() != empire.getID()) {
+                Empire ownerEmpire = new EmpireController().getEmpire(destWormholeExtra.getEmpireID());
+                if (!new AllianceController().isSameAlliance(ownerEmpire, empire)) {
+                    throw new RequestException(400, "You do not have control of the destination wormhole and cannot tune it.");
+                }
             }
-        }
 
-        new WormholeController().tuneWormhole(srcWormhole, destWormhole);
+            new WormholeController().tuneWormhole(srcWormhole, destWormhole);
 
-        srcWormhole = new StarController().getStar(srcWormhole.getID());
-        Messages.Star.Builder star_pb = Messages.Star.newBuilder();
-        srcWormhole.toProtocolBuffer(star_pb);
-        setResponseBody(star_pb.build());
+            srcWormhole = new StarController().getStar(srcWormhole.getID());
+            Messages.Star.Builder star_pb = Messages.Star.newBuilder();
+            srcWormhole.toProtocolBuffer(star_pb);
+            setResponseBody(star_pb.build());
+        }
     }
 }
@@ -10,7 +10,12 @@ import org.joda.time.Days;
 import au.com.codeka.common.Log;
 import au.com.codeka.common.TimeFormatter;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ShardManager;
+import au.com.codeka.warworlds.server.StarLocks;
+import au.com.codeka.warworlds.server.StarSimulatorThreadManager;
+import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.ReplicaMonitor;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 
@@ -74,6 +79,31 @@ public class AdminDashboardHandler extends AdminHandler {
 
     JsonObject json = new JsonObject();
     populateOldestStar(json);
+
+    JsonObject simulationJson = new JsonObject();
+    StarSimulatorThreadManager.i.populateMetrics(simulationJson);
+    json.add("star_simulation", simulationJson);
+
+    JsonObject locksJson = new JsonObject();
+    StarLocks.i.populateMetrics(locksJson);
+    json.add("star_locks", locksJson);
+
+    JsonObject versionsJson = new JsonObject();
+    StarController.populateMetrics(versionsJson);
+    json.add("star_versions", versionsJson);
+
+    JsonObject poolsJson = new JsonObject();
+    DB.populateMetrics(poolsJson);
+    json.add("db_pools", poolsJson);
+
+    JsonObject replicaJson = new JsonObject();
+    ReplicaMonitor.i.populateMetrics(replicaJson);
+    json.add("replica", replicaJson);
+
+    JsonObject shardingJson = new JsonObject();
+    ShardManager.i.populateMetrics(shardingJson);
+    json.add("sharding", shardingJson);
+
     setResponseJson(json);
   }
 
@@ -0,0 +1,27 @@
+package au.com.codeka.warworlds.server.handlers.admin;
+
+import au.com.codeka.warworlds.server.EventProcessor;
+import au.com.codeka.warworlds.server.RequestException;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Shows how far behind the \c EventProcessor is running. The "metrics" route returns the raw
+ * numbers as JSON, for the page (and anything else that wants to keep an eye on them).
+ */
+public class AdminDebugEventsHandler extends AdminHandler {
+    @Override
+    protected void get() throws RequestException {
+        if (!isAdmin()) {
+            return;
+        }
+
+        if ("metrics".equals(getExtraOption())) {
+            JsonObject json = new JsonObject();
+            EventProcessor.i.populateMetrics(json);
+            writeJson(json);
+        } else {
+            render("admin/debug/events.html", null);
+        }
+    }
+}
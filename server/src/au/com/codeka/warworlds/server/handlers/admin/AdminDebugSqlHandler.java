@@ -0,0 +1,37 @@
+package au.com.codeka.warworlds.server.handlers.admin;
+
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.SqlMetrics;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Shows how long each SQL statement is taking, and the most recent slow queries. The "metrics"
+ * route returns the raw numbers as JSON, and POSTing to the page resets them.
+ */
+public class AdminDebugSqlHandler extends AdminHandler {
+    @Override
+    protected void get() throws RequestException {
+        if (!isAdmin()) {
+            return;
+        }
+
+        if ("metrics".equals(getExtraOption())) {
+            JsonObject json = new JsonObject();
+            SqlMetrics.i.populateMetrics(json);
+            writeJson(json);
+        } else {
+            render("admin/debug/sql.html", null);
+        }
+    }
+
+    @Override
+    protected void post() throws RequestException {
+        if (!isAdmin()) {
+            return;
+        }
+
+        SqlMetrics.i.reset();
+        redirect("/realms/" + getRealm() + "/admin/debug/sql");
+    }
+}
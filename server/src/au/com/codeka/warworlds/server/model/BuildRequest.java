@@ -1,6 +1,7 @@
 package au.com.codeka.warworlds.server.model;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 
 import au.com.codeka.common.model.BaseBuildRequest;
 import au.com.codeka.common.model.BaseBuilding;
@@ -18,6 +19,12 @@ public class BuildRequest extends BaseBuildRequest {
     private Integer mExistingBuildingID;
     private boolean mDisableNotification;
 
+    /**
+     * The values of the columns \c StarController writes back, as of the last time we were loaded
+     * from or saved to the database. If null, we don't know what's in the database.
+     */
+    private Object[] mPersistedValues;
+
     public BuildRequest() {
     }
     public BuildRequest(Star star, SqlResult res) throws SQLException {
@@ -57,6 +64,7 @@ public class BuildRequest extends BaseBuildRequest {
             mDisableNotification = true;
         }
         mNotes = res.getString("notes");
+        markClean();
     }
 
     public int getID() {
@@ -96,6 +104,21 @@ public class BuildRequest extends BaseBuildRequest {
         mDisableNotification = true;
     }
 
+    /** Returns true if we've changed since we were loaded from (or saved to) the database. */
+    public boolean isDirty() {
+        return mPersistedValues == null || !Arrays.equals(mPersistedValues, getPersistedValues());
+    }
+
+    /** Called after this build request has been saved to the database. */
+    public void markClean() {
+        mPersistedValues = getPersistedValues();
+    }
+
+    private Object[] getPersistedValues() {
+        return new Object[] {mProgress, mEndTime == null ? null : mEndTime.getMillis(),
+                mDisableNotification};
+    }
+
     @Override
     public void fromProtocolBuffer(Messages.BuildRequest pb) {
         super.fromProtocolBuffer(pb);
@@ -2,6 +2,7 @@ package au.com.codeka.warworlds.server.model;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.joda.time.DateTime;
 
@@ -15,6 +16,12 @@ public class Colony extends BaseColony {
     private int mStarID;
     private Integer mEmpireID;
 
+    /**
+     * The values of the columns \c StarController writes back, as of the last time we were loaded
+     * from or saved to the database. If null, we don't know what's in the database.
+     */
+    private float[] mPersistedValues;
+
     public Colony() {
         mBuildings = new ArrayList<BaseBuilding>();
     }
@@ -38,6 +45,11 @@ public class Colony extends BaseColony {
         mPopulation = res.getFloat("population");
         mDefenceBoost = 1.0f;
         mBuildings = new ArrayList<BaseBuilding>();
+
+        // uncollected_taxes is always written back as zero, so if it's not zero, we're dirty
+        if (mUncollectedTaxes == 0.0f) {
+            markClean();
+        }
     }
     public Colony(int id, int sectorID, int starID, int planetIndex, Integer empireID,
             float population) {
@@ -86,6 +98,21 @@ public class Colony extends BaseColony {
         return mEmpireID;
     }
 
+    /** Returns true if this colony has changed since it was loaded from (or saved to) the database. */
+    public boolean isDirty() {
+        return mPersistedValues == null || !Arrays.equals(mPersistedValues, getPersistedValues());
+    }
+
+    /** Called after this colony has been saved to the database. */
+    public void markClean() {
+        mPersistedValues = getPersistedValues();
+    }
+
+    private float[] getPersistedValues() {
+        return new float[] {mPopulationFocus, mConstructionFocus, mFarmingFocus, mMiningFocus,
+                mPopulation};
+    }
+
     /**
      * Sanitize this colony for viewing by other empires. Basically, we just zero-out various
      * "sensitive" bits of data.
@@ -1,6 +1,9 @@
 package au.com.codeka.warworlds.server.model;
 
 import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
 
 import au.com.codeka.common.model.BaseEmpirePresence;
 import au.com.codeka.warworlds.server.data.SqlResult;
@@ -10,6 +13,12 @@ public class EmpirePresence extends BaseEmpirePresence {
     private int mStarID;
     private int mEmpireID;
 
+    /**
+     * The values of the columns \c StarController writes back, as of the last time we were loaded
+     * from or saved to the database. If null, we don't know what's in the database.
+     */
+    private Object[] mPersistedValues;
+
     public EmpirePresence() {
     }
     public EmpirePresence(SqlResult res) throws SQLException {
@@ -21,6 +30,12 @@ public class EmpirePresence extends BaseEmpirePresence {
         mEmpireKey = Integer.toString(mEmpireID);
         mTotalGoods = res.getFloat("total_goods");
         mTotalMinerals = res.getFloat("total_minerals");
+
+        Float taxPerHour = res.getFloat("tax_per_hour");
+        if (taxPerHour != null) {
+            mPersistedValues = getPersistedValues(mTotalGoods, mTotalMinerals, taxPerHour,
+                    res.getDateTime("goods_zero_time"));
+        }
     }
 
     public int getID() {
@@ -32,4 +47,22 @@ public class EmpirePresence extends BaseEmpirePresence {
     public int getEmpireID() {
         return mEmpireID;
     }
+
+    /** Returns true if we've changed since we were loaded from (or saved to) the database. */
+    public boolean isDirty() {
+        return mPersistedValues == null || !Arrays.equals(mPersistedValues, getPersistedValues(
+                mTotalGoods, mTotalMinerals, getTaxPerHour(), mGoodsZeroTime));
+    }
+
+    /** Called after this empire presence has been saved to the database. */
+    public void markClean() {
+        mPersistedValues = getPersistedValues(mTotalGoods, mTotalMinerals, getTaxPerHour(),
+                mGoodsZeroTime);
+    }
+
+    private static Object[] getPersistedValues(float totalGoods, float totalMinerals,
+            float taxPerHour, DateTime goodsZeroTime) {
+        return new Object[] {totalGoods, totalMinerals, taxPerHour,
+                goodsZeroTime == null ? null : goodsZeroTime.getMillis()};
+    }
 }
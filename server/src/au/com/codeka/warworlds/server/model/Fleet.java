@@ -2,6 +2,7 @@ package au.com.codeka.warworlds.server.model;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
@@ -21,6 +22,20 @@ public class Fleet extends BaseFleet {
     private Integer mDestinationStarID;
     private Integer mTargetFleetID;
 
+    /**
+     * The values of the columns \c StarController writes back (including the star and sector we
+     * were written under), as of the last time we were loaded from or saved to the database. If
+     * null, we don't know what's in the database.
+     */
+    private Object[] mPersistedValues;
+
+    /**
+     * The star our fleet_upgrades rows were saved under and how many of them there were, or -1 if
+     * we don't know what's in the database.
+     */
+    private int mPersistedUpgradesStarID;
+    private int mNumPersistedUpgrades = -1;
+
     public Fleet() {
     }
     public Fleet(SqlResult res) throws SQLException {
@@ -54,6 +69,7 @@ public class Fleet extends BaseFleet {
         }
 
         mNotes = res.getString("notes");
+        mPersistedValues = getPersistedValues(mStarID, mSectorID);
     }
     public Fleet(Empire empire, Star star, String designID, float numShips) {
         mStarID = star.getID();
@@ -122,6 +138,59 @@ public class Fleet extends BaseFleet {
         return (ShipDesign) DesignManager.i.getDesign(DesignKind.SHIP, mDesignID);
     }
 
+    /**
+     * Returns true if this fleet has changed since it was loaded from (or saved to) the database.
+     * The \c Star is the one we're about to be saved under, which is not necessarily the one we
+     * were loaded from (e.g. if we've just moved).
+     */
+    public boolean isDirty(Star star) {
+        return mPersistedValues == null || !Arrays.equals(mPersistedValues,
+                getPersistedValues(star.getID(), star.getSectorID()));
+    }
+
+    /** Called after this fleet has been saved to the database under the given \c Star. */
+    public void markClean(Star star) {
+        mPersistedValues = getPersistedValues(star.getID(), star.getSectorID());
+    }
+
+    /**
+     * Returns true if our upgrades need to be written back to the database, because they've been
+     * added, removed or changed, or because we've moved to a different star.
+     */
+    public boolean areUpgradesDirty(Star star) {
+        int numUpgrades = (mUpgrades == null ? 0 : mUpgrades.size());
+        if (mNumPersistedUpgrades != numUpgrades || mPersistedUpgradesStarID != star.getID()) {
+            return true;
+        }
+        for (int i = 0; i < numUpgrades; i++) {
+            if (((FleetUpgrade) mUpgrades.get(i)).isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Called after our upgrades have been loaded from (or saved to) the database. */
+    public void markUpgradesClean(Star star) {
+        mPersistedUpgradesStarID = star.getID();
+        mNumPersistedUpgrades = 0;
+        if (mUpgrades != null) {
+            for (BaseFleetUpgrade upgrade : mUpgrades) {
+                ((FleetUpgrade) upgrade).markClean();
+            }
+            mNumPersistedUpgrades = mUpgrades.size();
+        }
+    }
+
+    private Object[] getPersistedValues(int starID, int sectorID) {
+        return new Object[] {starID, sectorID, mNumShips, mStance, mState, getMillis(mStateStartTime),
+                getMillis(mEta), mDestinationStarID, mTargetFleetID, getMillis(mTimeDestroyed), mNotes};
+    }
+
+    private static Long getMillis(DateTime dt) {
+        return dt == null ? null : dt.getMillis();
+    }
+
     /**
      * Returns a float, between 0 and 1, that indicates how close we are to our destination.
      * This method assumes we're actually moving...
@@ -10,6 +10,10 @@ import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.data.SqlResult;
 
 public class FleetUpgrade extends BaseFleetUpgrade {
+    /** True if we've been loaded from (or saved to) the database, and \c mPersistedExtra is valid. */
+    private boolean mIsPersisted;
+    private String mPersistedExtra;
+
     public FleetUpgrade() {
     }
     protected FleetUpgrade(SqlResult res) throws SQLException {
@@ -42,6 +46,21 @@ public class FleetUpgrade extends BaseFleetUpgrade {
         mFleetID = id;
     }
 
+    /** Returns true if we've changed since we were loaded from (or saved to) the database. */
+    public boolean isDirty() {
+        if (!mIsPersisted) {
+            return true;
+        }
+        String extra = getExtra();
+        return (extra == null) ? (mPersistedExtra != null) : !extra.equals(mPersistedExtra);
+    }
+
+    /** Called after this upgrade has been saved to the database. */
+    public void markClean() {
+        mIsPersisted = true;
+        mPersistedExtra = getExtra();
+    }
+
     /** This is called when the fleet that owns us arrives at a star. */
     public void onArrived(Star star, Fleet fleet) {
     }
@@ -18,6 +18,8 @@ import au.com.codeka.warworlds.server.data.SqlResult;
 public class Star extends BaseStar {
     private int mID;
     private int mSectorID;
+    private long mVersion;
+    private long mCacheToken = -1;
     private ArrayList<ScoutReport> mScoutReports = new ArrayList<ScoutReport>();
 
     public Star() {
@@ -48,6 +50,7 @@ public class Star extends BaseStar {
         mStarType = sStarTypes[res.getInt("star_type")];
         mLastSimulation = res.getDateTime("last_simulation");
         mTimeEmptied = res.getDateTime("time_emptied");
+        mVersion = res.getLong("version");
 
         try {
             Messages.Planets planets_pb = Messages.Planets.parseFrom(res.getBytes("planets"));
@@ -83,6 +86,28 @@ public class Star extends BaseStar {
         mKey = Integer.toString(mID);
     }
 
+    /**
+     * Gets the version of the star's row when we loaded it (it's bumped every time the star is
+     * saved). See \c StarController.update.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+    public void setVersion(long version) {
+        mVersion = version;
+    }
+
+    /**
+     * Gets the \c StarCache token we were given when this star was loaded, or -1 if it wasn't
+     * loaded by \c StarController (in which case it must never be cached).
+     */
+    public long getCacheToken() {
+        return mCacheToken;
+    }
+    public void setCacheToken(long token) {
+        mCacheToken = token;
+    }
+
     public Colony getColony(int id) {
         for (BaseColony colony : mColonies) {
             Colony c = (Colony) colony;
@@ -183,6 +208,13 @@ public class Star extends BaseStar {
         return report;
     }
 
+    @Override
+    public Star deepCopy() {
+        Star copy = (Star) super.deepCopy();
+        copy.mScoutReports = new ArrayList<ScoutReport>(mScoutReports);
+        return copy;
+    }
+
     @Override
     public BaseStar clone() {
         Messages.Star.Builder star_pb = Messages.Star.newBuilder();
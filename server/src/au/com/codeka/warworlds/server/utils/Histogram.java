@@ -0,0 +1,100 @@
+package au.com.codeka.warworlds.server.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * A simple, thread-safe histogram with fixed buckets. Values are counted in the first bucket
+ * whose upper bound they're less than or equal to, and anything bigger than the last bound goes
+ * in an overflow bucket. Percentiles are estimated as the upper bound of the bucket they fall in.
+ */
+public class Histogram {
+    /** Bucket bounds suitable for latencies, in milliseconds (1ms up to 10 minutes). */
+    public static final long[] LATENCY_MS_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 120000,
+            300000, 600000};
+
+    /** Bucket bounds suitable for counts of things. */
+    public static final long[] COUNT_BOUNDS = {
+            0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final long[] mBounds;
+    private final AtomicLongArray mBuckets;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    public Histogram(long[] bounds) {
+        mBounds = bounds;
+        mBuckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < mBounds.length && value > mBounds[bucket]) {
+            bucket++;
+        }
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Gets the (estimated) value that the given fraction of recorded values are less than or equal
+     * to. Values in the overflow bucket are reported as the maximum.
+     */
+    public long getPercentile(double fraction) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < mBounds.length; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return mBounds[i];
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Gets a \c JsonObject with the count, mean, max and some percentiles, plus the count in each
+     * bucket (keyed by its upper bound, with "+Inf" for the overflow bucket).
+     */
+    public JsonObject toJson() {
+        long count = mCount.get();
+        JsonObject json = new JsonObject();
+        json.addProperty("count", count);
+        json.addProperty("sum", mSum.get());
+        json.addProperty("mean", count == 0 ? 0 : mSum.get() / count);
+        json.addProperty("max", count == 0 ? 0 : mMax.get());
+        json.addProperty("p50", getPercentile(0.5));
+        json.addProperty("p90", getPercentile(0.9));
+        json.addProperty("p99", getPercentile(0.99));
+
+        JsonArray buckets = new JsonArray();
+        for (int i = 0; i <= mBounds.length; i++) {
+            JsonObject bucket = new JsonObject();
+            bucket.addProperty("le", i < mBounds.length ? Long.toString(mBounds[i]) : "+Inf");
+            bucket.addProperty("count", mBuckets.get(i));
+            buckets.add(bucket);
+        }
+        json.add("buckets", buckets);
+        return json;
+    }
+}
@@ -0,0 +1,201 @@
+package au.com.codeka.warworlds.testing;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import au.com.codeka.common.model.BaseBuildRequest;
+import au.com.codeka.common.model.BaseColony;
+import au.com.codeka.common.model.BaseEmpirePresence;
+import au.com.codeka.common.model.BaseFleet;
+import au.com.codeka.common.model.Simulation;
+import au.com.codeka.common.protobuf.Messages;
+import au.com.codeka.warworlds.server.Configuration;
+import au.com.codeka.warworlds.server.model.DesignManager;
+import au.com.codeka.warworlds.server.model.Star;
+
+/**
+ * Runs recorded stars through the \c Simulation twice: once with plain fixed 15 minute steps and
+ * once with the adaptive stepper (and steady-state fast forward), and reports how far apart the
+ * results are.
+ *
+ * Each argument is a file containing a serialized \c Messages.Star, for example the response
+ * body of <code>GET /realms/{realm}/stars/{id}</code>. The server's config file is found the same
+ * way the server finds it (the au.com.codeka.warworlds.server.ConfigFile property).
+ */
+public class SimulationRegressionTest {
+    private static final float DEFAULT_TOLERANCE = 0.01f;
+
+    public static void main(String[] args) throws Exception {
+        Configuration.loadConfig();
+        DesignManager.setup();
+
+        float tolerance = DEFAULT_TOLERANCE;
+        ArrayList<String> files = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--tolerance=")) {
+                tolerance = Float.parseFloat(arg.substring("--tolerance=".length()));
+            } else {
+                files.add(arg);
+            }
+        }
+
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        int numFailed = 0;
+        for (String fileName : files) {
+            Messages.Star star_pb;
+            InputStream ins = new FileInputStream(fileName);
+            try {
+                star_pb = Messages.Star.parseFrom(ins);
+            } finally {
+                ins.close();
+            }
+
+            Star fixedStar = new Star();
+            fixedStar.fromProtocolBuffer(star_pb);
+            Simulation sim = new Simulation(now, true, null);
+            sim.setStepTolerance(0.0f);
+            sim.setFastForwardEnabled(false);
+            long startTime = System.nanoTime();
+            sim.simulate(fixedStar);
+            long fixedNanos = System.nanoTime() - startTime;
+
+            Star adaptiveStar = new Star();
+            adaptiveStar.fromProtocolBuffer(star_pb);
+            sim = new Simulation(now, true, null);
+            sim.setStepTolerance(tolerance);
+            startTime = System.nanoTime();
+            sim.simulate(adaptiveStar);
+            long adaptiveNanos = System.nanoTime() - startTime;
+
+            ArrayList<String> missing = new ArrayList<String>();
+            float diff = compare(now, fixedStar, adaptiveStar, missing);
+            boolean failed = diff > tolerance || !missing.isEmpty();
+            if (failed) {
+                numFailed ++;
+            }
+            System.out.println(String.format("%s %s: max difference %.5f, fixed %.2fms, adaptive %.2fms",
+                    failed ? "FAIL" : "OK  ", fileName, diff, fixedNanos / 1000000.0,
+                    adaptiveNanos / 1000000.0));
+            for (String msg : missing) {
+                System.out.println("     " + msg);
+            }
+        }
+
+        System.out.println(String.format("%d of %d stars outside tolerance of %.4f",
+                numFailed, files.size(), tolerance));
+        if (numFailed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the biggest relative difference between the two stars. Colonies, empires, build
+     * requests and fleets are matched up by key, and any that only one of the stars has (say,
+     * because a colony died in one run but not the other) are added to \c missing.
+     */
+    private static float compare(DateTime now, Star expected, Star actual,
+            ArrayList<String> missing) {
+        float diff = 0.0f;
+
+        HashMap<String, BaseColony> actualColonies = new HashMap<String, BaseColony>();
+        for (BaseColony colony : actual.getColonies()) {
+            actualColonies.put(colony.getKey(), colony);
+        }
+        for (BaseColony expectedColony : expected.getColonies()) {
+            BaseColony actualColony = actualColonies.remove(expectedColony.getKey());
+            if (actualColony == null) {
+                missing.add("colony " + expectedColony.getKey() + " missing from adaptive run");
+                continue;
+            }
+            diff = Math.max(diff, difference(expectedColony.getPopulation(), actualColony.getPopulation()));
+            diff = Math.max(diff, difference(expectedColony.getUncollectedTaxes(),
+                    actualColony.getUncollectedTaxes()));
+        }
+        for (String key : actualColonies.keySet()) {
+            missing.add("colony " + key + " missing from fixed run");
+        }
+
+        HashMap<String, BaseEmpirePresence> actualEmpires = new HashMap<String, BaseEmpirePresence>();
+        for (BaseEmpirePresence empire : actual.getEmpirePresences()) {
+            actualEmpires.put(empire.getKey(), empire);
+        }
+        for (BaseEmpirePresence expectedEmpire : expected.getEmpirePresences()) {
+            BaseEmpirePresence actualEmpire = actualEmpires.remove(expectedEmpire.getKey());
+            if (actualEmpire == null) {
+                missing.add("empire " + expectedEmpire.getKey() + " missing from adaptive run");
+                continue;
+            }
+            diff = Math.max(diff, difference(expectedEmpire.getTotalGoods(), actualEmpire.getTotalGoods()));
+            diff = Math.max(diff, difference(expectedEmpire.getTotalMinerals(),
+                    actualEmpire.getTotalMinerals()));
+            diff = Math.max(diff, difference(now, expectedEmpire.getGoodsZeroTime(),
+                    actualEmpire.getGoodsZeroTime()));
+        }
+        for (String key : actualEmpires.keySet()) {
+            missing.add("empire " + key + " missing from fixed run");
+        }
+
+        HashMap<String, BaseBuildRequest> actualBuildRequests = new HashMap<String, BaseBuildRequest>();
+        for (BaseBuildRequest buildRequest : actual.getBuildRequests()) {
+            actualBuildRequests.put(buildRequest.getKey(), buildRequest);
+        }
+        for (BaseBuildRequest expectedBuildRequest : expected.getBuildRequests()) {
+            BaseBuildRequest actualBuildRequest = actualBuildRequests.remove(expectedBuildRequest.getKey());
+            if (actualBuildRequest == null) {
+                missing.add("build request " + expectedBuildRequest.getKey()
+                        + " missing from adaptive run");
+                continue;
+            }
+            diff = Math.max(diff, difference(expectedBuildRequest.getProgress(false),
+                    actualBuildRequest.getProgress(false)));
+            diff = Math.max(diff, difference(now, expectedBuildRequest.getEndTime(),
+                    actualBuildRequest.getEndTime()));
+        }
+        for (String key : actualBuildRequests.keySet()) {
+            missing.add("build request " + key + " missing from fixed run");
+        }
+
+        HashMap<String, BaseFleet> actualFleets = new HashMap<String, BaseFleet>();
+        for (BaseFleet fleet : actual.getFleets()) {
+            actualFleets.put(fleet.getKey(), fleet);
+        }
+        for (BaseFleet expectedFleet : expected.getFleets()) {
+            BaseFleet actualFleet = actualFleets.remove(expectedFleet.getKey());
+            if (actualFleet == null) {
+                missing.add("fleet " + expectedFleet.getKey() + " missing from adaptive run");
+                continue;
+            }
+            diff = Math.max(diff, difference(expectedFleet.getNumShips(), actualFleet.getNumShips()));
+            diff = Math.max(diff, difference(now, expectedFleet.getTimeDestroyed(),
+                    actualFleet.getTimeDestroyed()));
+        }
+        for (String key : actualFleets.keySet()) {
+            missing.add("fleet " + key + " missing from fixed run");
+        }
+
+        return diff;
+    }
+
+    private static float difference(float expected, float actual) {
+        return Math.abs(expected - actual) / Math.max(1.0f, Math.abs(expected));
+    }
+
+    /**
+     * Times are compared in hours, relative to the expected time from \c now, the time both runs
+     * simulated up to (so being an hour off on a build that finishes in a week is fine, but not on
+     * one that finishes in five minutes).
+     */
+    private static float difference(DateTime now, DateTime expected, DateTime actual) {
+        if (expected == null || actual == null) {
+            return (expected == actual) ? 0.0f : 1.0f;
+        }
+        long nowMillis = now.getMillis();
+        return difference((expected.getMillis() - nowMillis) / 3600000.0f,
+                (actual.getMillis() - nowMillis) / 3600000.0f);
+    }
+}